@@ -0,0 +1,145 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import com.google.gson.Gson;
+
+import common.BooleanReturn;
+import common.CopyRequest;
+import common.HeartbeatRequest;
+import common.PathRequest;
+import common.RegisterRequest;
+import common.SizeReturn;
+import common.SuccessfulRegistrationResponse;
+import util.BinaryCodec;
+import util.Util;
+
+/** Compares the cost of encoding and decoding server-to-server messages as
+    JSON and with <code>BinaryCodec</code>.
+
+    <p>
+    JSON is encoded the way the servers send it (<code>Gson.toJson</code>,
+    then UTF-8 bytes) and decoded the way handlers read it (lines joined from
+    a <code>BufferedReader</code>, then <code>Gson.fromJson</code>). The
+    registration message is one full page of 10000 paths, sent once plain and
+    once front-coded as storage servers send it.
+
+    <p>
+    For each message type and encoding the run prints the size on the wire
+    and the time and heap allocation per encode and per decode. Each case is
+    warmed up for as long as it is then measured (one second by default).
+
+    <p>
+    Usage: <code>java bench.CodecBench [millis per case]</code>
+ */
+public class CodecBench {
+    private static final Gson gson = new Gson();
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private interface Operation {
+        Object run() throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+
+        Map<String, Object> messages = new LinkedHashMap<>();
+        messages.put("PathRequest", new PathRequest("/data/d17/s42/f1234567"));
+        messages.put("CopyRequest", new CopyRequest("/data/d17/s42/f1234567", "127.0.0.1", 7001));
+        messages.put("SizeReturn", new SizeReturn(67_108_864));
+        messages.put("BooleanReturn", new BooleanReturn(true));
+        messages.put("HeartbeatRequest", heartbeat());
+        messages.put("RegisterRequest", registration(false));
+        messages.put("RegisterRequest (fc)", registration(true));
+        messages.put("RegistrationResponse", new SuccessfulRegistrationResponse(new String[0]));
+
+        System.out.printf("%-21s %-7s %9s %12s %12s %12s %12s%n", "message", "format", "bytes",
+                "enc ns", "enc B alloc", "dec ns", "dec B alloc");
+        for (Map.Entry<String, Object> entry : messages.entrySet()) {
+            Object message = entry.getValue();
+            Class<?> type = message.getClass();
+
+            byte[] json = gson.toJson(message).getBytes(StandardCharsets.UTF_8);
+            double[] encode = measure(millis, () -> gson.toJson(message).getBytes(StandardCharsets.UTF_8));
+            double[] decode = measure(millis, () -> {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(json)))) {
+                    return gson.fromJson(reader.lines().collect(Collectors.joining("\n")), type);
+                }
+            });
+            report(entry.getKey(), "json", json.length, encode, decode);
+
+            byte[] binary = BinaryCodec.encode(message);
+            encode = measure(millis, () -> BinaryCodec.encode(message));
+            decode = measure(millis, () -> BinaryCodec.decode(binary, type));
+            report(entry.getKey(), "binary", binary.length, encode, decode);
+        }
+    }
+
+    private static HeartbeatRequest heartbeat() {
+        HeartbeatRequest heartbeat = new HeartbeatRequest("127.0.0.1", 7001, 8001);
+        heartbeat.free_bytes = 98_765_432_100L;
+        heartbeat.file_count = 123_456;
+        heartbeat.used_bytes = 1_234_567_890_123L;
+        heartbeat.reads_in_flight = 3;
+        heartbeat.writes_in_flight = 1;
+        heartbeat.latency_p50_ms = 0.8;
+        heartbeat.latency_p99_ms = 12.5;
+        return heartbeat;
+    }
+
+    private static RegisterRequest registration(boolean frontCoded) {
+        List<String> files = new ArrayList<>();
+        for (int f = 0; f < 10_000; f++) {
+            files.add(String.format("/data/d%02d/s%02d/f%07d", f / 1000, (f / 10) % 100, f));
+        }
+        RegisterRequest request = new RegisterRequest("127.0.0.1", 7001, 8001,
+                frontCoded ? Util.compressPrefixes(files) : files);
+        request.prefix_compressed = frontCoded;
+        request.more = true;
+        return request;
+    }
+
+    // Returns {nanoseconds, bytes allocated} per operation
+    private static double[] measure(long millis, Operation operation) throws IOException {
+        Object sink = null;
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        while (System.nanoTime() < deadline) {
+            sink = operation.run();
+        }
+
+        long thread = Thread.currentThread().getId();
+        long count = 0;
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        deadline = start + millis * 1_000_000;
+        long now = start;
+        while (now < deadline) {
+            for (int i = 0; i < 64; i++) {
+                sink = operation.run();
+            }
+            count += 64;
+            now = System.nanoTime();
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        if (sink == null) {
+            throw new IllegalStateException();
+        }
+        return new double[] { (double) (now - start) / count, (double) allocated / count };
+    }
+
+    private static void report(String name, String format, int bytes, double[] encode, double[] decode) {
+        System.out.printf("%-21s %-7s %9d %12.0f %12.0f %12.0f %12.0f%n", name, format, bytes,
+                encode[0], encode[1], decode[0], decode[1]);
+    }
+}
@@ -0,0 +1,129 @@
+package bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpServer;
+
+import util.ServerExecutors;
+
+/** Load benchmark for the HTTP server executor modes.
+
+    <p>
+    Starts an <code>HttpServer</code> on each executor mode from
+    <code>ServerExecutors</code> whose handler blocks for a fixed time, the way
+    the naming and storage handlers block on outbound calls and disk I/O. A
+    closed loop of concurrent clients then keeps one request each in flight.
+    Reports throughput and p50/p99 latency per mode and client count.
+
+    <p>
+    Usage: <code>java bench.ExecutorLoadBench [seconds-per-run] [block-ms]
+    [threads] [clients,...]</code>. The default client counts are
+    10,100,1000,10000; the largest runs need a file descriptor limit above
+    twice the client count.
+ */
+public class ExecutorLoadBench {
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3;
+        int blockMillis = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int[] clientCounts = args.length > 3
+                ? Arrays.stream(args[3].split(",")).mapToInt(Integer::parseInt).toArray()
+                : new int[] {10, 100, 1000, 10000};
+
+        System.out.printf("%-13s %8s %12s %10s %10s %8s%n", "mode", "clients", "req/sec", "p50 ms", "p99 ms", "errors");
+        for (String mode : ServerExecutors.MODES) {
+            for (int clients : clientCounts) {
+                long[] result = run(mode, threads, clients, seconds, blockMillis);
+                System.out.printf("%-13s %8d %12.0f %10.2f %10.2f %8d%n", mode, clients, result[0] / seconds,
+                        result[1] / 1e6, result[2] / 1e6, result[3]);
+            }
+        }
+        System.exit(0);
+    }
+
+    // Returns {requests, p50 latency ns, p99 latency ns, errors}.
+    private static long[] run(String mode, int threads, int clients, double seconds, int blockMillis)
+            throws IOException, InterruptedException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), clients);
+        server.createContext("/work", exchange -> {
+            try {
+                Thread.sleep(blockMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "{\"success\":true}".getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        ExecutorService executor = ServerExecutors.create(mode, threads);
+        server.setExecutor(executor);
+        server.start();
+
+        ExecutorService clientPool = Executors.newCachedThreadPool();
+        HttpClient client = HttpClient.newBuilder()
+                .executor(clientPool)
+                .connectTimeout(Duration.ofSeconds(30))
+                .build();
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/work"))
+                .timeout(Duration.ofSeconds(60))
+                .GET()
+                .build();
+
+        long[] latencies = new long[1 << 20];
+        AtomicInteger recorded = new AtomicInteger();
+        AtomicLong errors = new AtomicLong();
+        CountDownLatch finished = new CountDownLatch(clients);
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        for (int c = 0; c < clients; c++) {
+            issue(client, request, deadline, latencies, recorded, errors, finished);
+        }
+        finished.await();
+
+        server.stop(0);
+        executor.shutdownNow();
+        clientPool.shutdownNow();
+
+        int total = Math.min(recorded.get(), latencies.length);
+        if (total == 0) {
+            return new long[] {0, 0, 0, errors.get()};
+        }
+        long[] sorted = Arrays.copyOf(latencies, total);
+        Arrays.sort(sorted);
+        return new long[] {recorded.get(), sorted[total / 2], sorted[(int) (total * 0.99)], errors.get()};
+    }
+
+    // One simulated client: send, record, and send again until the deadline.
+    private static void issue(HttpClient client, HttpRequest request, long deadline, long[] latencies,
+                              AtomicInteger recorded, AtomicLong errors, CountDownLatch finished) {
+        long begin = System.nanoTime();
+        if (begin >= deadline) {
+            finished.countDown();
+            return;
+        }
+        client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, failure) -> {
+            if (failure != null || response.statusCode() != 200) {
+                errors.incrementAndGet();
+            } else {
+                // keep the most recent samples once the buffer is full
+                latencies[recorded.getAndIncrement() & (latencies.length - 1)] = System.nanoTime() - begin;
+            }
+            issue(client, request, deadline, latencies, recorded, errors, finished);
+        });
+    }
+}
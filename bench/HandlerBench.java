@@ -0,0 +1,256 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import common.BooleanReturn;
+import common.DataReturn;
+import common.FilesReturn;
+import common.PathRequest;
+import common.ReadRequest;
+import common.ServerInfo;
+import common.StorageRequest;
+import common.StorageReturn;
+import common.WriteRequest;
+import util.JsonServer;
+
+/** Measures the heap allocated, and the time taken, to parse a request body and
+    write the response for typical requests to each endpoint.
+
+    <p>
+    Each endpoint's request and response are run through an in-memory
+    exchange twice. The first run uses the handlers' former I/O path: the body
+    is collected into a String from a <code>BufferedReader</code> and parsed,
+    and the response is built with <code>Gson.toJson</code> and encoded with
+    <code>getBytes</code> twice. The second run uses <code>JsonServer</code>,
+    which streams the body into a <code>JsonReader</code> and writes the
+    response through a <code>JsonWriter</code> into a pooled buffer. The work
+    the handler does between the two is left out.
+
+    <p>
+    The large cases are a 10000-entry <code>/list</code> and 1 MB reads and
+    writes, whose Base64 payload travels in the JSON body.
+
+    <p>
+    Usage: <code>java bench.HandlerBench [millis per case]</code>
+ */
+public class HandlerBench {
+    private static final Gson gson = new Gson();
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Exposes the shared handler I/O to the benchmark
+    private static class Server extends JsonServer {
+        void handle(HttpExchange exchange, Class<?> requestType, Object response) throws IOException {
+            if (readRequest(exchange, requestType) == null) {
+                throw new IllegalStateException("empty request");
+            }
+            sendJsonResponse(exchange, 200, response);
+        }
+    }
+
+    // The helpers the handlers used before JsonServer
+    private static void legacy(HttpExchange exchange, Class<?> requestType, Object response) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
+            String requestBody = reader.lines().collect(Collectors.joining("\n"));
+            if (gson.fromJson(requestBody, requestType) == null) {
+                throw new IllegalStateException("empty request");
+            }
+        }
+        String responseBody = gson.toJson(response);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, responseBody.getBytes().length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(responseBody.getBytes());
+        }
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange, Class<?> requestType, Object response) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        Server server = new Server();
+
+        String megabyte = Base64.getEncoder().encodeToString(randomBytes(1 << 20));
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            names.add(String.format("file-%05d.dat", i));
+        }
+
+        System.out.printf("%-16s %-10s %12s %14s %10s%n", "endpoint", "path", "us/request", "B alloc/req", "vs legacy");
+        run("/is_valid_path", new PathRequest("/data/d17/f42"), new BooleanReturn(true), server, millis);
+        run("/get_storage", new StorageRequest("/data/d17/f42", true), new StorageReturn("127.0.0.1", 7001,
+                List.of(new ServerInfo("127.0.0.1", 7001), new ServerInfo("127.0.0.1", 7002))), server, millis);
+        run("/list", new PathRequest("/data/d17"), new FilesReturn(names), server, millis);
+        run("/storage_read", new ReadRequest("/data/d17/f42", 0, 1 << 20), new DataReturn(megabyte), server, millis);
+        run("/storage_write", new WriteRequest("/data/d17/f42", 0, megabyte), new BooleanReturn(true), server, millis);
+    }
+
+    private static void run(String endpoint, Object request, Object response, Server server, long millis)
+            throws IOException {
+        byte[] body = gson.toJson(request).getBytes(StandardCharsets.UTF_8);
+        double[] before = measure(millis, body, request.getClass(), response, HandlerBench::legacy);
+        double[] after = measure(millis, body, request.getClass(), response, server::handle);
+        System.out.printf("%-16s %-10s %12.1f %14.0f%n", endpoint, "legacy", before[0] / 1000, before[1]);
+        System.out.printf("%-16s %-10s %12.1f %14.0f %9.2fx%n", endpoint, "JsonServer", after[0] / 1000, after[1],
+                after[1] / before[1]);
+    }
+
+    // Returns {nanoseconds, bytes allocated} per request
+    private static double[] measure(long millis, byte[] body, Class<?> requestType, Object response,
+            Handler handler) throws IOException {
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        while (System.nanoTime() < deadline) {
+            handler.handle(new Exchange(body), requestType, response);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long count = 0;
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        deadline = start + millis * 1_000_000;
+        long now = start;
+        while (now < deadline) {
+            handler.handle(new Exchange(body), requestType, response);
+            count++;
+            now = System.nanoTime();
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        return new double[] { (double) (now - start) / count, (double) allocated / count };
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    // An exchange whose request body is a byte array and whose response body
+    // is counted and discarded
+    private static class Exchange extends HttpExchange {
+        private final Headers requestHeaders = new Headers();
+        private final Headers responseHeaders = new Headers();
+        private final InputStream requestBody;
+        private final OutputStream responseBody = new OutputStream() {
+            @Override
+            public void write(int b) {
+                written++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                written += len;
+            }
+        };
+        private long written;
+        private int responseCode = -1;
+
+        Exchange(byte[] body) {
+            this.requestBody = new ByteArrayInputStream(body);
+            this.requestHeaders.set("Content-Type", "application/json");
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return this.requestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return this.responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return URI.create("/");
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return "POST";
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return this.requestBody;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return this.responseBody;
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) {
+            this.responseCode = rCode;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return this.responseCode;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public String getProtocol() {
+            return "HTTP/1.1";
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return null;
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import storage.Inventory;
+
+/** Times the storage server's startup inventory of a large data directory.
+
+    <p>
+    A tree of empty files is generated once (100 top-level directories of 100
+    subdirectories each, files spread evenly over them) and reused by later
+    runs with the same file count. It is then listed with a single-threaded
+    <code>Files.walkFileTree</code>, which collects the same paths and sizes,
+    and with <code>Inventory</code> on fork-join pools of increasing size. Each
+    scan runs three times and the fastest run is reported, so all of them see
+    a warm dentry cache.
+
+    <p>
+    Usage: <code>java bench.InventoryBench [files] [directory] [threads,...]</code>
+ */
+public class InventoryBench {
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws IOException {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path root = Paths.get(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"), "inventory-" + files);
+        int cores = Runtime.getRuntime().availableProcessors();
+        String threadList = args.length > 2 ? args[2] : "1,2,4," + cores;
+
+        generate(root, files);
+
+        System.out.printf("%d files under %s, %d cores%n", files, root, cores);
+        System.out.printf("%-22s %10s %14s%n", "scan", "ms", "files/s");
+        long best = Long.MAX_VALUE;
+        int found = 0;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            found = walk(root);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        report("walkFileTree", best, found);
+
+        for (String value : threadList.split(",")) {
+            int threads = Integer.parseInt(value.trim());
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            best = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                found = Inventory.scan(root, pool).files.size();
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            pool.shutdown();
+            report("Inventory, " + threads + " threads", best, found);
+        }
+    }
+
+    private static void report(String name, long nanos, int found) {
+        System.out.printf("%-22s %10.1f %14.0f%n", name, nanos / 1e6, found / (nanos / 1e9));
+    }
+
+    // Same output as Inventory, gathered by one thread; returns the file count.
+    private static int walk(Path root) throws IOException {
+        List<String> paths = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                paths.add("/" + root.relativize(file).toString());
+                sizes.add(attributes.size());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return paths.size();
+    }
+
+    private static void generate(Path root, int files) throws IOException {
+        Path marker = root.resolveSibling(root.getFileName() + ".complete");
+        if (Files.exists(marker)) {
+            return;
+        }
+        System.out.printf("Generating %d files under %s%n", files, root);
+        int directories = 100 * 100;
+        for (int f = 0; f < files; f++) {
+            int leaf = f % directories;
+            Path dir = root.resolve("d" + (leaf / 100)).resolve("s" + (leaf % 100));
+            if (f < directories) {
+                Files.createDirectories(dir);
+            }
+            Files.createFile(dir.resolve("f" + f));
+        }
+        Files.createFile(marker);
+    }
+}
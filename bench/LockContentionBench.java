@@ -0,0 +1,101 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import common.Path;
+import naming.Replicator;
+import naming.TreeNode;
+
+/** Contention benchmark for path locking on a single hot file.
+
+    <p>
+    Each client repeatedly locks and unlocks the same path, taking the lock
+    exclusively with the given probability, and records how long every
+    acquisition waited. Reports throughput and wait-time percentiles for 1 to
+    64 clients.
+
+    <p>
+    Usage: <code>java bench.LockContentionBench [seconds-per-run] [write-ratio]</code>
+ */
+public class LockContentionBench {
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2;
+        double writeRatio = args.length > 1 ? Double.parseDouble(args[1]) : 0.1;
+
+        TreeNode root = new TreeNode("", true, -1);
+        Path hot = Path.of("/hot/file");
+        root.addFile(hot, false, 7003);
+
+        // warm up
+        run(root, hot, 8, 0.5, writeRatio);
+
+        System.out.printf("%8s %14s %12s %12s %12s%n", "clients", "locks/sec", "p50 us", "p99 us", "max us");
+        for (int clients = 1; clients <= 64; clients *= 2) {
+            long[] result = run(root, hot, clients, seconds, writeRatio);
+            System.out.printf("%8d %14.0f %12.1f %12.1f %12.1f%n", clients, result[0] / seconds,
+                    result[1] / 1e3, result[2] / 1e3, result[3] / 1e3);
+        }
+    }
+
+    // Returns {operations, p50 wait ns, p99 wait ns, max wait ns}.
+    private static long[] run(TreeNode root, Path hot, int clients, double seconds, double writeRatio)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        CountDownLatch start = new CountDownLatch(1);
+        List<long[]> samples = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int c = 0; c < clients; c++) {
+            long[] waits = new long[1 << 20];
+            samples.add(waits);
+            Thread client = new Thread(() -> {
+                int n = 0;
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline) {
+                        boolean exclusive = ThreadLocalRandom.current().nextDouble() < writeRatio;
+                        long begin = System.nanoTime();
+                        TreeNode[] chain = root.lock(hot, exclusive, Replicator.NONE);
+                        long waited = System.nanoTime() - begin;
+                        TreeNode.unlock(chain, exclusive);
+                        // keep the most recent samples once the buffer is full
+                        waits[1 + n % (waits.length - 1)] = waited;
+                        n++;
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                waits[0] = n;
+            });
+            threads.add(client);
+            client.start();
+        }
+        start.countDown();
+        for (Thread client : threads) {
+            client.join();
+        }
+
+        long operations = 0;
+        int total = 0;
+        for (long[] waits : samples) {
+            operations += waits[0];
+            total += (int) Math.min(waits[0], waits.length - 1);
+        }
+        long[] all = new long[total];
+        int i = 0;
+        for (long[] waits : samples) {
+            int n = (int) Math.min(waits[0], waits.length - 1);
+            System.arraycopy(waits, 1, all, i, n);
+            i += n;
+        }
+        Arrays.sort(all);
+        if (total == 0) {
+            return new long[] {0, 0, 0, 0};
+        }
+        return new long[] {operations, all[total / 2], all[(int) (total * 0.99)], all[total - 1]};
+    }
+}
@@ -0,0 +1,103 @@
+package bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.Path;
+import naming.NamespaceLog;
+import naming.TreeNode;
+
+/** Measures naming server restart time from a namespace snapshot plus log tail.
+
+    <p>
+    Builds a namespace of the requested size, snapshots it, appends a tail of
+    create records through the group-committed log from several threads, and
+    then times a full recovery into an empty tree.
+
+    <p>
+    Usage: <code>java bench.NamespaceRecoveryBench [entries] [tail-records] [threads]</code>
+    (10M entries needs a heap of several GB, e.g. <code>-Xmx12g</code>).
+ */
+public class NamespaceRecoveryBench {
+    private static final int FILES_PER_DIR = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int tail = args.length > 1 ? Integer.parseInt(args[1]) : entries / 10;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        File dir = java.nio.file.Files.createTempDirectory("namespace-log").toFile();
+        TreeNode root = new TreeNode("", true, -1);
+        Map<Integer, Integer> portMap = new ConcurrentHashMap<>();
+        NamespaceLog log = new NamespaceLog(dir);
+        log.recover(root, portMap);
+        portMap.put(7003, 7001);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            root.addFile(Path.of("/d" + (i / FILES_PER_DIR) + "/f" + i), false, 7003);
+        }
+        System.out.printf("built %,d entries in %d ms%n", entries, millisSince(start));
+
+        start = System.nanoTime();
+        log.snapshot(root, portMap);
+        System.out.printf("snapshot written in %d ms, %,d bytes%n", millisSince(start), directorySize(dir));
+
+        start = System.nanoTime();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            Thread writer = new Thread(() -> {
+                CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+                for (int i = offset; i < tail; i += threads) {
+                    Path path = Path.of("/tail" + (i / FILES_PER_DIR) + "/f" + i);
+                    root.addFile(path, false, 7003);
+                    last = log.createFile(path, 7003);
+                    // every 64th record waits for durability, like a handler acknowledging a client
+                    if (i % 64 == offset) {
+                        last.join();
+                    }
+                }
+                last.join();
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        long tailMillis = Math.max(1, millisSince(start));
+        System.out.printf("appended %,d log records in %d ms (%,.0f records/sec)%n",
+                tail, tailMillis, tail * 1000.0 / tailMillis);
+
+        TreeNode recovered = new TreeNode("", true, -1);
+        start = System.nanoTime();
+        long replayed = new NamespaceLog(dir).recover(recovered, new ConcurrentHashMap<>());
+        System.out.printf("recovered %,d entries (%,d replayed) in %d ms%n",
+                count(recovered) - 1, replayed, millisSince(start));
+    }
+
+    private static long millisSince(long start) {
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static long directorySize(File dir) {
+        long size = 0;
+        for (File file : dir.listFiles()) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    private static long count(TreeNode node) {
+        long total = 1;
+        for (TreeNode child : node.children()) {
+            total += count(child);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,169 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import common.Path;
+import naming.ClusterView;
+import naming.PlacementPolicy;
+
+/** Places a synthetic file population with each placement policy and reports
+    how evenly it lands on the storage servers.
+
+    <p>
+    The simulated cluster mixes 100 GB and 200 GB volumes. Free space is only
+    refreshed every 1000 creates, the way heartbeats lag behind the naming
+    server's own decisions. File sizes are log-uniform between 4 KB and 64 MB
+    and reads are Zipf-distributed over the files.
+
+    <p>
+    For each policy the run prints the coefficient of variation and max/mean
+    ratio of disk utilization across servers, and the coefficient of
+    variation of the read load each server receives. For consistent hashing
+    it also prints the fraction of files that map to a different primary once
+    one more server joins.
+
+    <p>
+    Usage: <code>java bench.PlacementBench [servers] [files] [replicas]</code>
+ */
+public class PlacementBench {
+    private static final long GB = 1L << 30;
+    private static final int REFRESH_EVERY = 1000;
+
+    public static void main(String[] args) {
+        int servers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        int replicas = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        Random random = new Random(42);
+        Path[] paths = new Path[files];
+        long[] sizes = new long[files];
+        for (int f = 0; f < files; f++) {
+            paths[f] = Path.of("/data/d" + (f % 100) + "/f" + f);
+            // log-uniform between 4 KB and 64 MB
+            sizes[f] = (long) (4096 * Math.pow(16384, random.nextDouble()));
+        }
+        double[] readShare = zipf(files, random);
+
+        Map<String, PlacementPolicy> policies = new LinkedHashMap<>();
+        policies.put("first", new PlacementPolicy.First());
+        policies.put("most-free", new PlacementPolicy.MostFree());
+        policies.put("free-space", new PlacementPolicy.WeightedFreeSpace());
+        policies.put("hash", new PlacementPolicy.ConsistentHash(128));
+
+        System.out.printf("%d servers, %d files, %d replicas each%n", servers, files, replicas);
+        System.out.printf("%-11s %10s %12s %12s %10s%n", "policy", "used CV", "used max/avg", "bytes CV", "reads CV");
+        for (Map.Entry<String, PlacementPolicy> policy : policies.entrySet()) {
+            place(policy.getKey(), policy.getValue(), servers, paths, sizes, readShare, replicas);
+        }
+
+        System.out.printf("hash: %.1f%% of files move to a new primary when server %d joins (ideal %.1f%%)%n",
+                100 * remapped(servers, paths), servers + 1, 100.0 / (servers + 1));
+    }
+
+    private static ClusterView cluster(int servers) {
+        ClusterView cluster = new ClusterView();
+        for (int i = 0; i < servers; i++) {
+            ClusterView.StorageNode node = cluster.add(7001 + i, 8001 + i);
+            node.freeBytes = capacity(i);
+        }
+        return cluster;
+    }
+
+    private static long capacity(int server) {
+        return (server % 2 == 0 ? 100 : 200) * GB;
+    }
+
+    private static void place(String name, PlacementPolicy policy, int servers, Path[] paths, long[] sizes,
+            double[] readShare, int replicas) {
+        ClusterView cluster = cluster(servers);
+        Map<Integer, Integer> index = new HashMap<>();
+        for (int i = 0; i < servers; i++) {
+            index.put(7001 + i, i);
+        }
+
+        long[] used = new long[servers];
+        long[] fileCount = new long[servers];
+        double[] reads = new double[servers];
+        for (int f = 0; f < paths.length; f++) {
+            if (f % REFRESH_EVERY == 0) {
+                for (ClusterView.StorageNode node : cluster.nodes()) {
+                    int i = index.get(node.clientPort);
+                    node.freeBytes = Math.max(0, capacity(i) - used[i]);
+                    node.fileCount = fileCount[i];
+                }
+            }
+            List<ClusterView.StorageNode> targets = policy.place(paths[f], replicas, cluster);
+            for (int r = 0; r < targets.size(); r++) {
+                int i = index.get(targets.get(r).clientPort);
+                used[i] += sizes[f];
+                fileCount[i]++;
+                // readers are spread over the holders
+                reads[i] += readShare[f] / targets.size();
+            }
+        }
+
+        double[] utilization = new double[servers];
+        double[] bytes = new double[servers];
+        for (int i = 0; i < servers; i++) {
+            utilization[i] = (double) used[i] / capacity(i);
+            bytes[i] = used[i];
+        }
+        System.out.printf("%-11s %10.3f %12.2f %12.3f %10.3f%n", name, cv(utilization), maxOverMean(utilization),
+                cv(bytes), cv(reads));
+    }
+
+    private static double remapped(int servers, Path[] paths) {
+        ClusterView before = cluster(servers);
+        ClusterView after = cluster(servers + 1);
+        PlacementPolicy.ConsistentHash oldRing = new PlacementPolicy.ConsistentHash(128);
+        PlacementPolicy.ConsistentHash newRing = new PlacementPolicy.ConsistentHash(128);
+        int moved = 0;
+        for (Path path : paths) {
+            if (oldRing.place(path, 1, before).get(0).clientPort != newRing.place(path, 1, after).get(0).clientPort) {
+                moved++;
+            }
+        }
+        return (double) moved / paths.length;
+    }
+
+    // Zipf(1) read share per file, shuffled so popularity is unrelated to the
+    // file's index and therefore to its name.
+    private static double[] zipf(int files, Random random) {
+        List<Integer> order = new ArrayList<>(files);
+        for (int f = 0; f < files; f++) {
+            order.add(f);
+        }
+        Collections.shuffle(order, random);
+        double[] share = new double[files];
+        double sum = 0;
+        for (int rank = 0; rank < files; rank++) {
+            share[order.get(rank)] = 1.0 / (rank + 1);
+            sum += 1.0 / (rank + 1);
+        }
+        for (int f = 0; f < files; f++) {
+            share[f] /= sum;
+        }
+        return share;
+    }
+
+    private static double cv(double[] values) {
+        double mean = Arrays.stream(values).average().orElse(0);
+        double variance = 0;
+        for (double v : values) {
+            variance += (v - mean) * (v - mean);
+        }
+        return mean == 0 ? 0 : Math.sqrt(variance / values.length) / mean;
+    }
+
+    private static double maxOverMean(double[] values) {
+        double mean = Arrays.stream(values).average().orElse(0);
+        return mean == 0 ? 0 : Arrays.stream(values).max().orElse(0) / mean;
+    }
+}
@@ -0,0 +1,196 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import common.Path;
+import naming.AdaptiveReplicationPolicy;
+import naming.ClusterView;
+import naming.NamespaceLog;
+import naming.ReplicationPolicy;
+import naming.Replicator;
+import naming.ThresholdReplicationPolicy;
+import naming.TreeNode;
+
+/** Replays a file access trace against each replication policy.
+
+    <p>
+    Every read in the trace is treated as a shared lock grant and every write
+    as an exclusive one, exactly as the naming server sees them. Copies
+    complete instantly and are only counted, so a run measures what a policy
+    decides: how many copies it makes, how many bytes they move, how many are
+    invalidated by writes, and how many replicas files carry over time.
+
+    <p>
+    Trace lines have the form <code>&lt;millis&gt; &lt;r|w&gt; &lt;path&gt;
+    [bytes]</code>. Without a trace file a synthetic workload is generated:
+    Zipf-distributed reads over 500 files with 5% writes, whose hot set moves
+    halfway through.
+
+    <p>
+    Usage: <code>java bench.ReplicationSim [trace-file|-] [storage-nodes]</code>
+ */
+public class ReplicationSim {
+    private static final long DEFAULT_BYTES = 1 << 20;
+
+    private static class Access {
+        final long nanos;
+        final boolean write;
+        final Path path;
+        final long bytes;
+
+        Access(long nanos, boolean write, Path path, long bytes) {
+            this.nanos = nanos;
+            this.write = write;
+            this.path = path;
+            this.bytes = bytes;
+        }
+    }
+
+    // Replicator whose copies and deletions complete at once and are only counted.
+    private static class SimReplicator extends Replicator {
+        private final Map<String, Long> sizes;
+        long clock;
+        long copies;
+        long copyBytes;
+        long dropped;
+
+        SimReplicator(ReplicationPolicy policy, ClusterView cluster, Map<String, Long> sizes) {
+            super(policy, cluster, NamespaceLog.NONE);
+            this.sizes = sizes;
+        }
+
+        @Override
+        protected long now() {
+            return this.clock;
+        }
+
+        @Override
+        protected CompletableFuture<Boolean> copy(ClusterView.StorageNode target, String path, int sourcePort) {
+            this.copies++;
+            this.copyBytes += this.sizes.getOrDefault(path, DEFAULT_BYTES);
+            return CompletableFuture.completedFuture(true);
+        }
+
+        @Override
+        protected CompletableFuture<Void> drop(Collection<Integer> commandPorts, String path) {
+            this.dropped += commandPorts.size();
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<Access> trace = args.length > 0 && !args[0].equals("-") ? read(args[0]) : synthetic(500, 300_000, 0.05);
+        int nodes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Map<String, ReplicationPolicy> policies = new LinkedHashMap<>();
+        policies.put("threshold", new ThresholdReplicationPolicy(20));
+        policies.put("adaptive", new AdaptiveReplicationPolicy(20, 3, 20));
+
+        System.out.printf("%d accesses, %d storage nodes%n", trace.size(), nodes);
+        System.out.printf("%-10s %10s %12s %12s %14s %12s %14s%n", "policy", "copies", "copy MB", "invalidated",
+                "avg replicas", "max replicas", "final replicas");
+        for (Map.Entry<String, ReplicationPolicy> policy : policies.entrySet()) {
+            replay(policy.getKey(), policy.getValue(), trace, nodes);
+        }
+    }
+
+    private static void replay(String name, ReplicationPolicy policy, List<Access> trace, int nodes) {
+        ClusterView cluster = new ClusterView();
+        for (int port = 1; port <= nodes; port++) {
+            cluster.add(port, 100 + port);
+        }
+
+        TreeNode root = new TreeNode("", true, -1);
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        Map<Path, TreeNode> files = new LinkedHashMap<>();
+        for (Access access : trace) {
+            if (!files.containsKey(access.path)) {
+                root.addFile(access.path, false, 1 + files.size() % nodes);
+                files.put(access.path, root.findNode(access.path));
+                sizes.put(access.path.toString(), access.bytes);
+            }
+        }
+
+        SimReplicator replicator = new SimReplicator(policy, cluster, sizes);
+        double replicaSum = 0;
+        int samples = 0;
+        int maxReplicas = 0;
+        for (int i = 0; i < trace.size(); i++) {
+            Access access = trace.get(i);
+            replicator.clock = access.nanos;
+            replicator.afterGrant(files.get(access.path), access.path, access.write);
+
+            if (i % 1000 == 999) {
+                int total = 0;
+                for (TreeNode file : files.values()) {
+                    total += file.sourcePorts.length;
+                    maxReplicas = Math.max(maxReplicas, file.sourcePorts.length);
+                }
+                replicaSum += (double) total / files.size();
+                samples++;
+            }
+        }
+
+        int finalReplicas = 0;
+        for (TreeNode file : files.values()) {
+            finalReplicas += file.sourcePorts.length;
+        }
+        System.out.printf("%-10s %10d %12.1f %12d %14.2f %12d %14d%n", name, replicator.copies,
+                replicator.copyBytes / 1e6, replicator.dropped, samples == 0 ? 1.0 : replicaSum / samples,
+                maxReplicas, finalReplicas);
+    }
+
+    private static List<Access> read(String file) throws IOException {
+        List<Access> trace = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(file))) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            long nanos = (long) (Double.parseDouble(fields[0]) * 1e6);
+            long bytes = fields.length > 3 ? Long.parseLong(fields[3]) : DEFAULT_BYTES;
+            trace.add(new Access(nanos, fields[1].equals("w"), Path.of(fields[2]), bytes));
+        }
+        return trace;
+    }
+
+    // Zipf(1) reads with the given write ratio, one access every 200us; the
+    // popularity ranking is rotated halfway so the hot set changes.
+    private static List<Access> synthetic(int fileCount, int accesses, double writeRatio) {
+        Random random = new Random(42);
+        Path[] paths = new Path[fileCount];
+        long[] bytes = new long[fileCount];
+        for (int f = 0; f < fileCount; f++) {
+            paths[f] = Path.of("/data/d" + (f % 20) + "/f" + f);
+            // log-uniform between 64 KB and 16 MB
+            bytes[f] = (long) (65536 * Math.pow(256, random.nextDouble()));
+        }
+
+        double[] cumulative = new double[fileCount];
+        double sum = 0;
+        for (int rank = 0; rank < fileCount; rank++) {
+            sum += 1.0 / (rank + 1);
+            cumulative[rank] = sum;
+        }
+
+        List<Access> trace = new ArrayList<>(accesses);
+        for (int i = 0; i < accesses; i++) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            rank = rank < 0 ? -rank - 1 : rank;
+            int f = i < accesses / 2 ? rank : (rank + fileCount / 2) % fileCount;
+            trace.add(new Access(i * 200_000L, random.nextDouble() < writeRatio, paths[f], bytes[f]));
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,88 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Random;
+
+import common.Path;
+import naming.TreeNode;
+
+/** Heap footprint of the naming server's namespace tree.
+
+    <p>
+    Builds a tree of the given number of files, spread over directories of
+    the given size, as registration would (one storage server holding every
+    file), and reports the retained heap per file together with the build
+    time and the rate of lookups of random files. The path strings used to
+    build the tree are not retained, so the figure covers the nodes, their
+    names and their directories' child tables.
+
+    <p>
+    Ten million files need a heap of several gigabytes, e.g.
+    <code>java -Xmx8g bench.TreeFootprintBench 10000000</code>.
+
+    <p>
+    Usage: <code>java bench.TreeFootprintBench [files] [files per directory]</code>
+ */
+public class TreeFootprintBench {
+    private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int perDirectory = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int directories = (files + perDirectory - 1) / perDirectory;
+
+        long before = usedHeap();
+        long start = System.nanoTime();
+        TreeNode root = new TreeNode("", true, -1);
+        for (int i = 0; i < files; i++) {
+            root.addFile(path(i, perDirectory), false, 7001);
+        }
+        long buildNanos = System.nanoTime() - start;
+        long retained = usedHeap() - before;
+
+        Random random = new Random(42);
+        Path[] sample = new Path[100_000];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = path(random.nextInt(files), perDirectory);
+        }
+        int lookups = 0;
+        int found = 0;
+        start = System.nanoTime();
+        for (int round = 0; round < 20; round++) {
+            for (Path path : sample) {
+                if (root.findNode(path) != null) {
+                    found++;
+                }
+                lookups++;
+            }
+        }
+        long lookupNanos = System.nanoTime() - start;
+        if (found != lookups) {
+            throw new IllegalStateException("lost " + (lookups - found) + " files");
+        }
+
+        System.out.printf("%,d files in %,d directories of %,d%n", files, directories, perDirectory);
+        System.out.printf("retained heap   %,12d MB%n", retained >> 20);
+        System.out.printf("per file        %,12d bytes%n", retained / files);
+        System.out.printf("build           %,12d ms%n", buildNanos / 1_000_000);
+        System.out.printf("lookups         %,12.0f per second%n", lookups * 1e9 / lookupNanos);
+        // keeps the tree reachable until it was measured
+        if (root.findNode(path(0, perDirectory)) == null) {
+            throw new IllegalStateException();
+        }
+    }
+
+    private static Path path(int file, int perDirectory) {
+        int directory = file / perDirectory;
+        return new Path(String.format("/d%03d/d%05d/f%07d.dat", directory % 1000, directory, file));
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
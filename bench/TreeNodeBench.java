@@ -0,0 +1,87 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import common.Path;
+import naming.TreeNode;
+
+/** Multi-threaded create/list/delete benchmark for the naming server's namespace tree.
+
+    <p>
+    Each thread works in its own top-level directory, so with per-directory
+    locking the throughput should scale with the number of cores.
+
+    <p>
+    Usage: <code>java bench.TreeNodeBench [files-per-thread] [rounds]</code>
+ */
+public class TreeNodeBench {
+    public static void main(String[] args) throws Exception {
+        int filesPerThread = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int t = 1; t < cores; t *= 2) {
+            threadCounts.add(t);
+        }
+        threadCounts.add(cores);
+
+        // warm up
+        run(cores, filesPerThread / 4);
+
+        System.out.printf("%8s %14s %10s%n", "threads", "ops/sec", "speedup");
+        double base = 0;
+        for (int threads : threadCounts) {
+            double best = 0;
+            for (int r = 0; r < rounds; r++) {
+                best = Math.max(best, run(threads, filesPerThread));
+            }
+            if (base == 0) {
+                base = best;
+            }
+            System.out.printf("%8d %14.0f %10.2f%n", threads, best, best / base);
+        }
+    }
+
+    // Returns namespace operations per second across all threads.
+    private static double run(int threads, int filesPerThread) throws InterruptedException {
+        TreeNode root = new TreeNode("", true, -1);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        Map<Integer, Integer> noStorage = Map.of();
+
+        for (int t = 0; t < threads; t++) {
+            Path dir = Path.of("/t" + t);
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    root.addFile(dir, true, 0);
+                    for (int i = 0; i < filesPerThread; i++) {
+                        root.addFile(new Path(dir, "f" + i), false, 1);
+                    }
+                    for (int i = 0; i < filesPerThread; i++) {
+                        root.findNode(dir).childCount();
+                    }
+                    for (int i = 0; i < filesPerThread; i++) {
+                        root.deleteFile(new Path(dir, "f" + i), noStorage);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        return (3.0 * threads * filesPerThread) / (elapsed / 1e9);
+    }
+}
@@ -0,0 +1,21 @@
+package common;
+
+public class BatchOperation {
+    // one of create_file, create_directory, delete, lock, unlock, is_directory
+    public String op;
+    public String path;
+    public boolean exclusive;
+    // optional for unlock; the lease returned by an earlier lock
+    public String lease_id;
+
+    public BatchOperation(String op, String path, boolean exclusive) {
+        this.op = op;
+        this.path = path;
+        this.exclusive = exclusive;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchOperation: " + "op = <" + op + "> path = <" + path + "> exclusive = <" + exclusive + ">";
+    }
+}
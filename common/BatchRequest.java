@@ -0,0 +1,11 @@
+package common;
+
+import java.util.List;
+
+public class BatchRequest {
+    public List<BatchOperation> operations;
+
+    public BatchRequest(List<BatchOperation> operations) {
+        this.operations = operations;
+    }
+}
@@ -0,0 +1,22 @@
+package common;
+
+/**
+ * Note: exception_type and exception_info are only set when the operation failed,
+ * and lease_id only for a granted lock
+ */
+public class BatchResult {
+    public boolean success;
+    public String exception_type;
+    public String exception_info;
+    public String lease_id;
+
+    public BatchResult(boolean success) {
+        this.success = success;
+    }
+
+    public BatchResult(String exception_type, String exception_info) {
+        this.success = false;
+        this.exception_type = exception_type;
+        this.exception_info = exception_info;
+    }
+}
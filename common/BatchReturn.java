@@ -0,0 +1,11 @@
+package common;
+
+import java.util.List;
+
+public class BatchReturn {
+    public List<BatchResult> results;
+
+    public BatchReturn(List<BatchResult> results) {
+        this.results = results;
+    }
+}
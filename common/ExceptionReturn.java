@@ -1,6 +1,21 @@
 package common;
 
+import java.io.IOException;
+import java.util.Objects;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+// Serialized through its own adapter: Gson's reflective one would also walk
+// the fields inherited from Throwable, which the module system does not open
+// to it.
+@JsonAdapter(ExceptionReturn.Adapter.class)
 public class ExceptionReturn extends Exception {
+    private static final long serialVersionUID = 1L;
+
     public String exception_type;
     public String exception_info;
 
@@ -8,7 +23,7 @@ public class ExceptionReturn extends Exception {
         this.exception_type = exception_type;
         this.exception_info = exception_info;
     }
-    
+
     @Override
     public String toString() {
         return "ExceptionReturn: " + "exception_type = " + exception_type + " exception_info = " + exception_info;
@@ -19,6 +34,51 @@ public class ExceptionReturn extends Exception {
         if (obj == this) return true;
         if (!(obj instanceof ExceptionReturn)) return false;
         ExceptionReturn exceptionReturn = (ExceptionReturn) obj;
-        return this.exception_type.equals(exceptionReturn.exception_type) && this.exception_info.equals(exceptionReturn.exception_info);
+        return Objects.equals(this.exception_type, exceptionReturn.exception_type)
+                && Objects.equals(this.exception_info, exceptionReturn.exception_info);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.exception_type, this.exception_info);
+    }
+
+    public static class Adapter extends TypeAdapter<ExceptionReturn> {
+        @Override
+        public void write(JsonWriter out, ExceptionReturn value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("exception_type").value(value.exception_type);
+            out.name("exception_info").value(value.exception_info);
+            out.endObject();
+        }
+
+        @Override
+        public ExceptionReturn read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String type = null;
+            String info = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if (name.equals("exception_type")) {
+                    type = in.nextString();
+                } else if (name.equals("exception_info")) {
+                    info = in.nextString();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new ExceptionReturn(type, info);
+        }
     }
 }
@@ -4,6 +4,8 @@ import java.util.List;
 
 public class FilesReturn {
     public List<String> files;
+    // Continuation token for the next page of a paged /list, null on the last
+    public String next;
 
     public FilesReturn(List<String> files) {
         this.files = files;
@@ -0,0 +1,22 @@
+package common;
+
+public class HeartbeatRequest {
+    public String storage_ip;
+    public int client_port;
+    public int command_port;
+    public long free_bytes;
+    public long file_count;
+    // total size of the files the server holds
+    public long used_bytes;
+    public int reads_in_flight;
+    public int writes_in_flight;
+    // latency of requests served since the previous heartbeat, -1 if none
+    public double latency_p50_ms;
+    public double latency_p99_ms;
+
+    public HeartbeatRequest(String storage_ip, int client_port, int command_port) {
+        this.storage_ip = storage_ip;
+        this.client_port = client_port;
+        this.command_port = command_port;
+    }
+}
@@ -0,0 +1,9 @@
+package common;
+
+public class LeaseRequest {
+    public String lease_id;
+
+    public LeaseRequest(String lease_id) {
+        this.lease_id = lease_id;
+    }
+}
@@ -0,0 +1,22 @@
+package common;
+
+public class ListRequest {
+    public String path;
+    // Optional paging: at most limit names (0 for all), starting after the
+    // continuation token returned as "next" by the previous page
+    public int limit;
+    public String after;
+    // Optional; when set, the names are streamed with chunked transfer
+    // encoding as they are read from the directory
+    public boolean stream;
+
+    public ListRequest(String path) {
+        this.path = path;
+    }
+
+    public ListRequest(String path, int limit, String after) {
+        this.path = path;
+        this.limit = limit;
+        this.after = after;
+    }
+}
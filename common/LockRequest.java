@@ -3,9 +3,17 @@ package common;
 public class LockRequest {
     public String path;
     public boolean exclusive;
+    // optional on /unlock; identifies the lease returned by /lock
+    public String lease_id;
 
     public LockRequest(String path, boolean exclusive) {
         this.path = path;
         this.exclusive = exclusive;
     }
+
+    public LockRequest(String path, boolean exclusive, String lease_id) {
+        this.path = path;
+        this.exclusive = exclusive;
+        this.lease_id = lease_id;
+    }
 }
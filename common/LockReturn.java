@@ -0,0 +1,16 @@
+package common;
+
+/**
+ * Note: a superset of BooleanReturn; lease_expiry is in milliseconds since the epoch
+ */
+public class LockReturn {
+    public boolean success;
+    public String lease_id;
+    public long lease_expiry;
+
+    public LockReturn(boolean success, String lease_id, long lease_expiry) {
+        this.success = success;
+        this.lease_id = lease_id;
+        this.lease_expiry = lease_expiry;
+    }
+}
@@ -23,21 +23,33 @@ import java.util.*;
  */
 public class Path implements Iterable<String>, Comparable<Path>, Serializable {
 
-    /** TODO: complete this class as needed to support file system management
-        by your naming and storage servers.  You may not need all of these methods,
-        but some are used explicitly by the test code, so you will reach the
-        <code>UnsupportedOperationException</code>s as you progress with tests.
-        
-        You can delete any/all of the contents of this file if not needed (e.g., 
-        if you are not using Java to build your naming and storage servers.
-     */
-     
-     
+    private static final long serialVersionUID = 1L;
+
+    /** Number of slots in the intern cache. Must be a power of two. */
+    private static final int INTERN_CACHE_SIZE = 4096;
+
+    /** Direct-mapped cache of recently parsed paths, indexed by the hash of the
+        path string. Collisions simply overwrite the slot, so the cache is
+        bounded and lookups never lock. Racing writes are harmless because
+        <code>Path</code> objects are immutable.
+     */
+    private static final Path[] internCache = new Path[INTERN_CACHE_SIZE];
+
+    private static final String[] NO_COMPONENTS = new String[0];
+    private static final Path ROOT = new Path();
+
+    /** Path components, from the root downwards. Never modified. */
+    private final String[] components;
+    /** Canonical string form, e.g. "/dir/file". */
+    private final String text;
+    /** Cached hash code of the component sequence. */
+    private final int hash;
+
     /** Default Path constructor:
         - Creates a new path which represents the root directory. 
      */
     public Path() {
-        throw new UnsupportedOperationException("Path() constructor not implemented");
+        this(NO_COMPONENTS);
     }
 
     /** Appending Path constructor:
@@ -49,7 +61,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
                or includes any characters that are not permitted.
     */
     public Path(Path path, String component) {
-        throw new UnsupportedOperationException("Path(Path, String) constructor not implemented");
+        this(append(path, component));
     }
 
     /** New Path constructor:
@@ -61,7 +73,118 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
                or includes any characters that are not permitted.
      */
     public Path(String path) {
-        throw new UnsupportedOperationException("Path(String) constructor not implemented");
+        this(parse(path));
+    }
+
+    private Path(String[] components) {
+        this.components = components;
+        int h = 1;
+        StringBuilder builder = new StringBuilder();
+        for (String component : components) {
+            h = 31 * h + component.hashCode();
+            builder.append('/').append(component);
+        }
+        this.hash = h;
+        this.text = components.length == 0 ? "/" : builder.toString();
+    }
+
+    /** Returns a <code>Path</code> for the given string, reusing a previously
+        parsed instance when the same string was seen recently.
+
+        @param path The path string.
+        @return The parsed path.
+        @throws IllegalArgumentException If <code>path</code> is not a valid path.
+     */
+    public static Path of(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path cannot be null");
+        }
+        int slot = path.hashCode() & (INTERN_CACHE_SIZE - 1);
+        Path cached = internCache[slot];
+        if (cached != null && cached.text.equals(path)) {
+            return cached;
+        }
+        Path parsed = new Path(path);
+        internCache[slot] = parsed;
+        return parsed;
+    }
+
+    /** Determines whether a string is a valid path.
+
+        @param path The path string.
+        @return <code>true</code> if <code>path</code> can be parsed.
+     */
+    public static boolean isValid(String path) {
+        try {
+            parse(path);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static String[] parse(String path) {
+        if (path == null || path.isEmpty()) {
+            throw new IllegalArgumentException("path cannot be null or empty");
+        }
+        if (path.charAt(0) != '/') {
+            throw new IllegalArgumentException("path must start with a forward slash: " + path);
+        }
+
+        List<String> parts = new ArrayList<>();
+        int start = 1;
+        for (int i = 1; i <= path.length(); i++) {
+            if (i == path.length() || path.charAt(i) == '/') {
+                if (i > start) {
+                    String component = path.substring(start, i);
+                    checkComponent(component);
+                    parts.add(component);
+                }
+                start = i + 1;
+            }
+        }
+        return parts.toArray(NO_COMPONENTS);
+    }
+
+    private static String[] append(Path path, String component) {
+        if (path == null) {
+            throw new IllegalArgumentException("path cannot be null");
+        }
+        checkComponent(component);
+        if (component.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("component cannot contain a forward slash");
+        }
+        String[] components = Arrays.copyOf(path.components, path.components.length + 1);
+        components[path.components.length] = component;
+        return components;
+    }
+
+    private static void checkComponent(String component) {
+        if (component == null || component.isEmpty()) {
+            throw new IllegalArgumentException("component cannot be null or empty");
+        }
+        for (int i = 0; i < component.length(); i++) {
+            char c = component.charAt(i);
+            if (c == ':' || c == ';' || c == ' ') {
+                throw new IllegalArgumentException("component contains illegal character: " + component);
+            }
+        }
+    }
+
+    /** Returns the number of components in the path; zero for the root. */
+    public int depth() {
+        return components.length;
+    }
+
+    /** Returns the component at the given depth without allocating.
+
+        @param index Component index, where zero is the child of the root.
+        @return The component.
+        @throws IndexOutOfBoundsException If <code>index</code> is not smaller
+                                          than <code>depth()</code>.
+     */
+    public String component(int index) {
+        return components[index];
     }
 
     /** Returns an iterator over the components of the path.
@@ -74,7 +197,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
      */
     @Override
     public Iterator<String> iterator() {
-        throw new UnsupportedOperationException("Path iterator() not implemented");
+        return Collections.unmodifiableList(Arrays.asList(components)).iterator();
     }
 
     /** Lists the paths of all files in a directory tree on the local
@@ -87,7 +210,30 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
                                          does not refer to a directory.
      */
     public static Path[] list(File directory) throws FileNotFoundException {
-        throw new UnsupportedOperationException("Path list(File) not implemented");
+        if (!directory.exists()) {
+            throw new FileNotFoundException(directory + " does not exist");
+        }
+        if (!directory.isDirectory()) {
+            throw new IllegalArgumentException(directory + " is not a directory");
+        }
+        List<Path> result = new ArrayList<>();
+        list(directory, ROOT, result);
+        return result.toArray(new Path[0]);
+    }
+
+    private static void list(File directory, Path prefix, List<Path> result) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            Path path = new Path(prefix, file.getName());
+            if (file.isDirectory()) {
+                list(file, path, result);
+            } else {
+                result.add(path);
+            }
+        }
     }
 
     /** Determines whether the path represents the root directory.
@@ -96,7 +242,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
                 and <code>false</code> if it does not.
      */
     public boolean isRoot() {
-        throw new UnsupportedOperationException("Path isRoot() not implemented");
+        return components.length == 0;
     }
 
     /** Returns the path to the parent of this path.
@@ -105,7 +251,13 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
                                          directory, and therefore has no parent.
      */
     public Path parent() {
-        throw new UnsupportedOperationException("Path parent() not implemented");
+        if (isRoot()) {
+            throw new IllegalArgumentException("the root directory has no parent");
+        }
+        if (components.length == 1) {
+            return ROOT;
+        }
+        return new Path(Arrays.copyOf(components, components.length - 1));
     }
 
     /** Returns the last component in the path.
@@ -115,7 +267,10 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
                                          component.
      */
     public String last() {
-        throw new UnsupportedOperationException("Path last() not implemented");
+        if (isRoot()) {
+            throw new IllegalArgumentException("the root directory has no last component");
+        }
+        return components[components.length - 1];
     }
 
     /** Determines if the given path is a subpath of this path.
@@ -129,7 +284,15 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
                 this path.
      */
     public boolean isSubpath(Path other) {
-        throw new UnsupportedOperationException("Path isSubpath(Path) not implemented");
+        if (other.components.length > components.length) {
+            return false;
+        }
+        for (int i = 0; i < other.components.length; i++) {
+            if (!components[i].equals(other.components[i])) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /** Converts the path to <code>File</code> object.
@@ -139,7 +302,11 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
         @return The <code>File</code> object.
      */
     public File toFile(File root) {
-        throw new UnsupportedOperationException("Path toFile(File) not implemented");
+        File file = root;
+        for (String component : components) {
+            file = new File(file, component);
+        }
+        return file;
     }
 
     /** Compares this path to another.
@@ -173,6 +340,10 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
         need to acquire the lock for <code>/etc</code> to do so. The two
         applications are now deadlocked.
 
+        <p>
+        Paths are therefore compared component by component, so that a
+        directory always precedes everything inside it.
+
         @param other The other path.
         @return Zero if the two paths are equal, a negative number if this path
                 precedes the other path, or a positive number if this path
@@ -180,7 +351,14 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
      */
     @Override
     public int compareTo(Path other) {
-        throw new UnsupportedOperationException("Path compareTo(Path) not implemented");
+        int common = Math.min(components.length, other.components.length);
+        for (int i = 0; i < common; i++) {
+            int result = components[i].compareTo(other.components[i]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(components.length, other.components.length);
     }
 
     /** Compares two paths for equality.
@@ -193,7 +371,20 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
      */
     @Override
     public boolean equals(Object other) {
-        throw new UnsupportedOperationException("Path equals(Object) not implemented");
+        if (other == this) {
+            return true;
+        }
+        if (!(other instanceof Path)) {
+            return false;
+        }
+        Path path = (Path) other;
+        return hash == path.hash && Arrays.equals(components, path.components);
+    }
+
+    /** Returns the hash code of the path, computed once at construction. */
+    @Override
+    public int hashCode() {
+        return hash;
     }
 
     /** Converts the path to a string.
@@ -206,6 +397,6 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
      */
     @Override
     public String toString() {
-        throw new UnsupportedOperationException("Path toString() not implemented");
+        return text;
     }
 }
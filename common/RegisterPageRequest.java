@@ -0,0 +1,21 @@
+package common;
+import java.util.List;
+
+public class RegisterPageRequest {
+    public String session;
+    public List<String> files;
+    public List<String> removed;
+    public boolean more;
+    public boolean prefix_compressed;
+
+    public RegisterPageRequest(String session, List<String> files, List<String> removed, boolean more,
+        boolean prefix_compressed) {
+        this.session = session;
+        this.files = files;
+        this.removed = removed;
+        this.more = more;
+        this.prefix_compressed = prefix_compressed;
+    }
+
+    public RegisterPageRequest(){}
+}
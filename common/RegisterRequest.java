@@ -6,6 +6,19 @@ public class RegisterRequest {
     public int client_port;
     public int command_port;
     public List<String> files;
+    // Optional, for storage servers with many files. The listing may be split
+    // into pages: when more is set, the rest follows with /register_page.
+    public boolean more;
+    // Entries are sorted and each is written as "<n>:<suffix>", sharing its
+    // first n characters with the previous entry
+    public boolean prefix_compressed;
+    // The storage server's generation this registration brings the naming
+    // server up to, and, for a re-registration that only sends the changes
+    // made after a generation the naming server has already seen, that
+    // generation (-1 for a full listing). A diff also lists removed files.
+    public long generation;
+    public long since = -1;
+    public List<String> removed;
     
     public RegisterRequest(String storage_ip, int client_port, int command_port,
         List<String> files) {
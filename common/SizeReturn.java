@@ -2,6 +2,10 @@ package common;
 
 public class SizeReturn {
     public long size;
+    // Last modification time of the file in milliseconds, 0 if unknown. A
+    // replica copy compares it before resuming, and after finishing, to tell
+    // a rewritten source from the one it started copying.
+    public long modified;
 
     public SizeReturn(long size) {
         this.size = size;
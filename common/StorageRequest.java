@@ -0,0 +1,16 @@
+package common;
+
+public class StorageRequest {
+    public String path;
+    // optional; when set, /get_storage also lists every replica in preference order
+    public boolean all_replicas;
+
+    public StorageRequest(String path) {
+        this.path = path;
+    }
+
+    public StorageRequest(String path, boolean all_replicas) {
+        this.path = path;
+        this.all_replicas = all_replicas;
+    }
+}
@@ -0,0 +1,18 @@
+package common;
+
+import java.util.List;
+
+/**
+ * Note: a superset of ServerInfo; replicas is only set when all_replicas was requested
+ */
+public class StorageReturn {
+    public String server_ip;
+    public int server_port;
+    public List<ServerInfo> replicas;
+
+    public StorageReturn(String server_ip, int server_port, List<ServerInfo> replicas) {
+        this.server_ip = server_ip;
+        this.server_port = server_port;
+        this.replicas = replicas;
+    }
+}
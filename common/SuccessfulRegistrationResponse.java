@@ -2,6 +2,15 @@ package common;
 
 public class SuccessfulRegistrationResponse {
     public String[] files;
+    // Set when the request announced more pages; they are sent with this id
+    public String session;
+    // Set when a diff was rejected because the naming server is not at the
+    // diff's starting generation; the full listing must follow as pages
+    public boolean full_required;
+    // Set on the last response of a registration: the generation the naming
+    // server is now synced to, which a later re-registration may send a diff
+    // from. Left at -1 by naming servers that do not support diffs.
+    public long synced_generation = -1;
 
     public SuccessfulRegistrationResponse(String[] files){
         this.files = files;
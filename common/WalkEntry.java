@@ -0,0 +1,20 @@
+package common;
+
+import java.util.List;
+
+/**
+ * Note: replicas is only set for files, and size only when sizes were
+ * requested (-1 if no replica could report it)
+ */
+public class WalkEntry {
+    public String path;
+    public boolean is_dir;
+    public List<Integer> replicas;
+    public Long size;
+
+    public WalkEntry(String path, boolean is_dir, List<Integer> replicas) {
+        this.path = path;
+        this.is_dir = is_dir;
+        this.replicas = replicas;
+    }
+}
@@ -0,0 +1,27 @@
+package common;
+
+public class WalkRequest {
+    public String path;
+    // Optional: how many levels below path to descend (0 for the whole subtree)
+    public int max_depth;
+    // Optional paging: at most limit entries (0 for all), starting after the
+    // continuation token returned as "next" by the previous page
+    public int limit;
+    public String after;
+    // Optional; when set, each file's size is asked of one of its replicas
+    public boolean sizes;
+    // Optional; when set, the entries are streamed with chunked transfer
+    // encoding as the subtree is walked
+    public boolean stream;
+
+    public WalkRequest(String path) {
+        this.path = path;
+    }
+
+    public WalkRequest(String path, int max_depth, int limit, String after) {
+        this.path = path;
+        this.max_depth = max_depth;
+        this.limit = limit;
+        this.after = after;
+    }
+}
@@ -0,0 +1,13 @@
+package common;
+
+import java.util.List;
+
+public class WalkReturn {
+    public List<WalkEntry> entries;
+    // Continuation token for the next page of a paged /walk, null on the last
+    public String next;
+
+    public WalkReturn(List<WalkEntry> entries) {
+        this.entries = entries;
+    }
+}
@@ -3,9 +3,9 @@ package naming;
 import java.util.concurrent.CompletableFuture;
 
 public class AccessRequest {
-    private boolean exclusive;
-    // This is a channel in GO
-    CompletableFuture<Boolean> done = new CompletableFuture<>();
+    private final boolean exclusive;
+    // This is a channel in GO; completed when the request is granted
+    final CompletableFuture<Boolean> done = new CompletableFuture<>();
 
     public AccessRequest(boolean exclusive) {
         this.exclusive = exclusive;       
@@ -0,0 +1,38 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Per-file access history the replication policies decide from. Reads and
+// writes are shared and exclusive lock grants, since the naming server never
+// sees the data path itself.
+public class AccessStats {
+    public final AtomicInteger readCount = new AtomicInteger(0);
+    public final DecayingRate reads = new DecayingRate();
+    public final DecayingRate writes = new DecayingRate();
+    // Bumped under the file's monitor on every write, so a copy that started
+    // before the write knows it is stale when it finishes
+    public int writeEpoch = 0;
+    // Client ports with a copy in flight, guarded by this object
+    private final List<Integer> pendingCopies = new ArrayList<>(0);
+
+    public synchronized boolean isPending(int clientPort) {
+        return this.pendingCopies.contains(clientPort);
+    }
+
+    public synchronized int pendingCount() {
+        return this.pendingCopies.size();
+    }
+
+    synchronized boolean addPending(int clientPort) {
+        if (this.pendingCopies.contains(clientPort)) {
+            return false;
+        }
+        return this.pendingCopies.add(clientPort);
+    }
+
+    synchronized void removePending(int clientPort) {
+        this.pendingCopies.remove(Integer.valueOf(clientPort));
+    }
+}
@@ -0,0 +1,59 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Sizes the replica set from the file's decayed read rate: one copy per
+// <readsPerReplica> reads per second, up to <maxReplicas>. Since every write
+// invalidates all copies but the primary, each extra copy must also be expected
+// to serve <minReadsPerCopy> reads before the next write, judged from the ratio
+// of the decayed read and write rates. New copies go to the least loaded nodes
+// as ranked by ClusterView.
+public class AdaptiveReplicationPolicy implements ReplicationPolicy {
+    private final double readsPerReplica;
+    private final int maxReplicas;
+    private final double minReadsPerCopy;
+
+    public AdaptiveReplicationPolicy(double readsPerReplica, int maxReplicas, double minReadsPerCopy) {
+        this.readsPerReplica = readsPerReplica;
+        this.maxReplicas = maxReplicas;
+        this.minReadsPerCopy = minReadsPerCopy;
+    }
+
+    public int targetReplicas(TreeNode file, int clusterSize, long now) {
+        double reads = file.stats().reads.perSecond(now);
+        double writes = file.stats().writes.perSecond(now);
+        int target = (int) Math.ceil(reads / this.readsPerReplica);
+        if (writes > 0) {
+            target = Math.min(target, 1 + (int) (reads / writes / this.minReadsPerCopy));
+        }
+        return Math.max(1, Math.min(target, Math.min(this.maxReplicas, clusterSize)));
+    }
+
+    @Override
+    public List<Integer> onRead(TreeNode file, ClusterView cluster, long now) {
+        file.stats().reads.record(1, now);
+
+        List<Integer> holders = file.sources();
+        int missing = targetReplicas(file, cluster.size(), now) - holders.size() - file.stats().pendingCount();
+        if (missing <= 0) {
+            return List.of();
+        }
+
+        List<Integer> targets = new ArrayList<>(missing);
+        for (ClusterView.StorageNode node : cluster.rankForCopy(holders, now)) {
+            if (targets.size() == missing) {
+                break;
+            }
+            if (!file.stats().isPending(node.clientPort)) {
+                targets.add(node.clientPort);
+            }
+        }
+        return targets;
+    }
+
+    @Override
+    public void onWrite(TreeNode file, long now) {
+        file.stats().writes.record(1, now);
+    }
+}
@@ -0,0 +1,234 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.HeartbeatRequest;
+
+// The naming server's picture of the storage servers: how to reach each one,
+// how busy it is and whether it is up. Nodes are keyed by client port, the port
+// recorded in TreeNode.sourcePorts, and kept in registration order.
+//
+// Storage servers report their state with /heartbeat. A node that has sent a
+// heartbeat and then stays silent for -Dnaming.heartbeatTimeoutMillis (default
+// 15000) is marked down and skipped for placement, copies and reads until it
+// reports again. Nodes that never send heartbeats are assumed to be up.
+//
+// A node whose full listing is still being reconciled with the namespace is
+// syncing: it is left out of placement and copies until the listing is done,
+// so no file lands on it that the listing could not have reported.
+public class ClusterView {
+    public static final long HEARTBEAT_TIMEOUT_MILLIS = Long.getLong("naming.heartbeatTimeoutMillis", 15000);
+
+    public static class StorageNode {
+        public final int clientPort;
+        public final int commandPort;
+        // Bytes free on the node's storage volume, -1 until the node reports it
+        public volatile long freeBytes = -1;
+        public final AtomicInteger copiesInFlight = new AtomicInteger(0);
+        // Shared lock grants on files the node holds, split between the holders
+        public final DecayingRate load = new DecayingRate();
+        // Readers sent to the node by /get_storage
+        public final DecayingRate assignments = new DecayingRate();
+        // Requests the node is serving and its mean request latency, as last
+        // reported by the node itself; 0 and -1 until it reports
+        public volatile int inFlight = 0;
+        public volatile double latencyMillis = -1;
+        public volatile double latencyP99Millis = -1;
+        public volatile long fileCount = 0;
+        // Bytes of file data the node holds, -1 until the node reports it
+        public volatile long usedBytes = -1;
+        // System.nanoTime() of the last heartbeat, 0 if the node never sent one
+        public volatile long lastHeartbeat = 0;
+        public volatile boolean alive = true;
+        public volatile boolean syncing;
+
+        StorageNode(int clientPort, int commandPort, boolean syncing) {
+            this.clientPort = clientPort;
+            this.commandPort = commandPort;
+            this.syncing = syncing;
+        }
+
+        // Whether new files and copies may be placed on the node
+        public boolean accepting() {
+            return this.alive && !this.syncing;
+        }
+    }
+
+    private final Map<Integer, StorageNode> nodes = new ConcurrentHashMap<>();
+    private final List<StorageNode> ordered = new CopyOnWriteArrayList<>();
+    // Bumped whenever a node joins, goes down, comes back or finishes syncing,
+    // so derived views such as a placement ring know to rebuild
+    private final AtomicLong membershipVersion = new AtomicLong(0);
+
+    public StorageNode add(int clientPort, int commandPort) {
+        return add(clientPort, commandPort, false);
+    }
+
+    // Adds a node, syncing if its full listing is still to be reconciled.
+    public StorageNode add(int clientPort, int commandPort, boolean syncing) {
+        StorageNode node = new StorageNode(clientPort, commandPort, syncing);
+        StorageNode existing = this.nodes.putIfAbsent(clientPort, node);
+        if (existing != null) {
+            // a node recovered from the namespace log registering again
+            if (syncing && !existing.syncing) {
+                existing.syncing = true;
+                this.membershipVersion.incrementAndGet();
+            }
+            return existing;
+        }
+        this.ordered.add(node);
+        this.membershipVersion.incrementAndGet();
+        return node;
+    }
+
+    public StorageNode get(int clientPort) {
+        return this.nodes.get(clientPort);
+    }
+
+    public List<StorageNode> nodes() {
+        return this.ordered;
+    }
+
+    public long membershipVersion() {
+        return this.membershipVersion.get();
+    }
+
+    // Ends a node's sync, making it a placement target again.
+    public void synced(int clientPort) {
+        StorageNode node = this.nodes.get(clientPort);
+        if (node != null && node.syncing) {
+            node.syncing = false;
+            this.membershipVersion.incrementAndGet();
+        }
+    }
+
+    // Nodes new files and copies may be placed on, in registration order
+    public List<StorageNode> liveNodes() {
+        List<StorageNode> live = new ArrayList<>(this.ordered.size());
+        for (StorageNode node : this.ordered) {
+            if (node.accepting()) {
+                live.add(node);
+            }
+        }
+        return live;
+    }
+
+    public int size() {
+        return this.ordered.size();
+    }
+
+    // Applies a heartbeat; returns false if the node is not registered, in
+    // which case it should register again.
+    public boolean heartbeat(HeartbeatRequest report, long now) {
+        StorageNode node = this.nodes.get(report.client_port);
+        if (node == null || node.commandPort != report.command_port) {
+            return false;
+        }
+        node.freeBytes = report.free_bytes;
+        node.fileCount = report.file_count;
+        node.usedBytes = report.used_bytes;
+        node.inFlight = report.reads_in_flight + report.writes_in_flight;
+        if (report.latency_p50_ms >= 0) {
+            node.latencyMillis = report.latency_p50_ms;
+            node.latencyP99Millis = report.latency_p99_ms;
+        }
+        node.lastHeartbeat = now;
+        if (!node.alive) {
+            node.alive = true;
+            this.membershipVersion.incrementAndGet();
+            System.out.println("Storage server " + node.clientPort + " is back up");
+        }
+        return true;
+    }
+
+    // Marks nodes whose heartbeats have stopped as down.
+    public void checkLiveness(long now) {
+        long timeout = HEARTBEAT_TIMEOUT_MILLIS * 1_000_000;
+        for (StorageNode node : this.ordered) {
+            long last = node.lastHeartbeat;
+            if (node.alive && last != 0 && now - last > timeout) {
+                node.alive = false;
+                this.membershipVersion.incrementAndGet();
+                System.out.println("Storage server " + node.clientPort + " missed its heartbeats, marking it down");
+            }
+        }
+    }
+
+    // Runs checkLiveness on a daemon thread a few times per timeout period.
+    public void startMonitor() {
+        ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(10, HEARTBEAT_TIMEOUT_MILLIS / 4);
+        monitor.scheduleWithFixedDelay(() -> checkLiveness(System.nanoTime()), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isAlive(int clientPort) {
+        StorageNode node = this.nodes.get(clientPort);
+        return node != null && node.alive;
+    }
+
+    // Holders that are up, in their original order; all of them if none are.
+    public List<Integer> live(int[] holders) {
+        List<Integer> live = new ArrayList<>(holders.length);
+        for (int port : holders) {
+            if (isAlive(port)) {
+                live.add(port);
+            }
+        }
+        if (live.isEmpty()) {
+            for (int port : holders) {
+                live.add(port);
+            }
+        }
+        return live;
+    }
+
+    public List<Integer> live(List<Integer> holders) {
+        List<Integer> live = new ArrayList<>(holders.size());
+        for (Integer port : holders) {
+            if (isAlive(port)) {
+                live.add(port);
+            }
+        }
+        return live.isEmpty() ? holders : live;
+    }
+
+    public void recordRead(int[] holders, long now) {
+        double share = 1.0 / holders.length;
+        for (int port : holders) {
+            StorageNode node = this.nodes.get(port);
+            if (node != null) {
+                node.load.record(share, now);
+            }
+        }
+    }
+
+    // Nodes not in exclude, best copy destination first: fewest copies already
+    // in flight, then least recent load, then most free space.
+    public List<StorageNode> rankForCopy(Collection<Integer> exclude, long now) {
+        List<StorageNode> candidates = new ArrayList<>();
+        for (StorageNode node : this.ordered) {
+            if (node.accepting() && !exclude.contains(node.clientPort)) {
+                candidates.add(node);
+            }
+        }
+        candidates.sort(Comparator.<StorageNode>comparingInt(node -> node.copiesInFlight.get())
+                .thenComparingDouble(node -> node.load.perSecond(now))
+                .thenComparingLong(node -> -node.freeBytes));
+        return candidates;
+    }
+}
@@ -0,0 +1,40 @@
+package naming;
+
+// Event rate with exponential decay: each event counts fully when recorded and
+// half as much one half-life later, so the rate follows recent load and forgets
+// old bursts. Timestamps are in nanoseconds from whatever clock the caller uses.
+public class DecayingRate {
+    public static final long DEFAULT_HALF_LIFE_MILLIS = Long.getLong("naming.replication.halfLifeMillis", 30000);
+
+    private final double tauNanos;
+    private double value = 0;
+    private long last = Long.MIN_VALUE;
+
+    public DecayingRate() {
+        this(DEFAULT_HALF_LIFE_MILLIS);
+    }
+
+    public DecayingRate(long halfLifeMillis) {
+        this.tauNanos = halfLifeMillis * 1e6 / Math.log(2);
+    }
+
+    public synchronized void record(double amount, long now) {
+        decay(now);
+        this.value += amount;
+    }
+
+    // Events per second over roughly the last half-life
+    public synchronized double perSecond(long now) {
+        decay(now);
+        return this.value / this.tauNanos * 1e9;
+    }
+
+    private void decay(long now) {
+        if (this.last != Long.MIN_VALUE && now > this.last) {
+            this.value *= Math.exp(-(now - this.last) / this.tauNanos);
+        }
+        if (now > this.last) {
+            this.last = now;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package naming;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import common.ExceptionReturn;
+import common.Path;
+
+// Tracks every granted path lock as a lease that must be renewed before it
+// expires. A background reaper releases expired leases through the tree, which
+// grants the next waiters, so a client that dies holding a lock only blocks the
+// path for one lease period.
+public class LeaseManager {
+    public static class Lease {
+        public final String id;
+        public final Path path;
+        public final boolean exclusive;
+        // Nodes the lock was granted on, from the root down; released as they
+        // are, even if the path has been deleted or replaced since
+        final TreeNode[] chain;
+        public volatile long expiresAt;
+
+        Lease(String id, Path path, boolean exclusive, TreeNode[] chain, long expiresAt) {
+            this.id = id;
+            this.path = path;
+            this.exclusive = exclusive;
+            this.chain = chain;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long leaseMillis;
+    private final Replicator replicator;
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private final Map<Path, Queue<Lease>> byPath = new ConcurrentHashMap<>();
+    private ScheduledExecutorService reaper;
+
+    public LeaseManager(long leaseMillis, Replicator replicator) {
+        this.leaseMillis = leaseMillis;
+        this.replicator = replicator;
+    }
+
+    public long getLeaseMillis() {
+        return this.leaseMillis;
+    }
+
+    // Starts the reaper; it runs several times per lease period so an expired
+    // lease is revoked soon after its deadline.
+    public void start() {
+        this.reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(10, this.leaseMillis / 4);
+        this.reaper.scheduleWithFixedDelay(this::reapExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Records a lock granted on chain, as returned by TreeNode.lock or lockAsync
+    public Lease grant(Path path, boolean exclusive, TreeNode[] chain) {
+        Lease lease = new Lease(UUID.randomUUID().toString(), path, exclusive, chain,
+                System.currentTimeMillis() + this.leaseMillis);
+        this.leases.put(lease.id, lease);
+        this.byPath.computeIfAbsent(path, p -> new ConcurrentLinkedQueue<>()).add(lease);
+        return lease;
+    }
+
+    public Lease renew(String id) throws ExceptionReturn {
+        Lease lease = id == null ? null : this.leases.get(id);
+        if (lease == null) {
+            throw new ExceptionReturn("IllegalStateException", "lease " + id + " does not exist or has expired");
+        }
+        lease.expiresAt = System.currentTimeMillis() + this.leaseMillis;
+        return lease;
+    }
+
+    // Finds the lease an unlock refers to: the given id if present, otherwise the
+    // oldest lease on the path with the same mode, for clients that predate leases.
+    public Lease find(String id, Path path, boolean exclusive) throws ExceptionReturn {
+        if (id != null && !id.isEmpty()) {
+            Lease lease = this.leases.get(id);
+            if (lease == null || !lease.path.equals(path) || lease.exclusive != exclusive) {
+                throw new ExceptionReturn("IllegalArgumentException", "lease " + id + " does not hold " + path);
+            }
+            return lease;
+        }
+        Queue<Lease> held = this.byPath.get(path);
+        if (held != null) {
+            for (Lease lease : held) {
+                if (lease.exclusive == exclusive) {
+                    return lease;
+                }
+            }
+        }
+        throw new ExceptionReturn("IllegalArgumentException", path + " is not locked");
+    }
+
+    // Releases the lease and its path lock. Returns false if the lease was already
+    // released, e.g. by the reaper, so a lock is never released twice.
+    public boolean release(Lease lease) {
+        if (!this.leases.remove(lease.id, lease)) {
+            return false;
+        }
+        this.byPath.computeIfPresent(lease.path, (p, held) -> {
+            held.remove(lease);
+            return held.isEmpty() ? null : held;
+        });
+        TreeNode.unlock(lease.chain, lease.exclusive);
+        this.replicator.afterRelease(lease.chain[lease.chain.length - 1], lease.path, lease.exclusive);
+        return true;
+    }
+
+    private void reapExpired() {
+        long now = System.currentTimeMillis();
+        for (Lease lease : this.leases.values()) {
+            if (lease.expiresAt > now) {
+                continue;
+            }
+            try {
+                if (release(lease)) {
+                    System.out.println("Revoked expired " + (lease.exclusive ? "exclusive" : "shared")
+                            + " lease on " + lease.path);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -1,37 +1,63 @@
 package naming;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
+import common.BatchOperation;
+import common.BatchRequest;
+import common.BatchResult;
+import common.BatchReturn;
 import common.BooleanReturn;
 import common.ErrorRegistrationResponse;
 import common.ExceptionReturn;
 import common.FilesReturn;
+import common.HeartbeatRequest;
+import common.LeaseRequest;
+import common.ListRequest;
 import common.LockRequest;
+import common.LockReturn;
+import common.Path;
 import common.PathRequest;
+import common.RegisterPageRequest;
 import common.RegisterRequest;
 import common.ServerInfo;
+import common.SizeReturn;
+import common.StorageRequest;
+import common.StorageReturn;
 import common.SuccessfulRegistrationResponse;
+import common.WalkEntry;
+import common.WalkRequest;
+import common.WalkReturn;
+import util.JsonServer;
+import util.RpcClient;
+import util.ServerExecutors;
 import util.Util;
 
-public class NameServer {
-    static Gson gson = new Gson();
+public class NameServer extends JsonServer {
     public TreeNode fileSystem;
     public int servicePort;
     public String registrationPort;
@@ -40,35 +66,121 @@ public class NameServer {
     public Map<Integer, Integer> portMap;
     public Map<String, List<Integer>> filesDict;
     public final ReentrantLock mu = new ReentrantLock();
+    public NamespaceLog journal = NamespaceLog.NONE;
+    // Runs handler continuations, such as writing a /lock response once granted
+    public Executor executor = ForkJoinPool.commonPool();
+    public LeaseManager leases;
+    public ClusterView cluster = new ClusterView();
+    public Replicator replicator = Replicator.NONE;
+    public Rebalancer rebalancer;
+    // Storage server generation each registered server was last synced to, by
+    // client port, and registrations whose remaining pages are still to come
+    public Map<Integer, Long> syncedGenerations = new ConcurrentHashMap<>();
+    private final Map<String, RegistrationSession> registrations = new ConcurrentHashMap<>();
+    public ReplicaSelector selector = ReplicaSelector.fromProperties();
+    public PlacementPolicy placement = PlacementPolicy.fromProperties();
+    // Number of storage servers each new file is created on
+    public int replicationFactor = Integer.getInteger("naming.replicationFactor", 1);
+    // Entries a streamed /walk writes at a time, and sizes in flight at once
+    private static final int WALK_BATCH = 256;
 
     public NameServer(){}
-    private String getParentDir(String path){
-        return path.substring(0, path.lastIndexOf('/'));
-    }
 
-    private boolean checkIfNodeRegistered(int newNode){
+    // Records the storage server under mu; returns false if it was already
+    // registered. A server whose full listing is still to come is added
+    // syncing, so nothing is placed on it before the listing is reconciled.
+    private boolean registerNode(int newNode, int clientPort, boolean syncing){
         this.mu.lock();
-        for (Integer node: this.registeredNodes){
-            if (node == newNode){
-                this.mu.unlock();
-                return true;
+        try {
+            if (this.registeredNodes.contains(newNode)){
+                return false;
             }
+            this.registeredNodes.add(newNode);
+            this.portMap.put(clientPort, newNode);
+            this.clientPorts.add(clientPort);
+            this.cluster.add(clientPort, newNode, syncing);
+            return true;
+        } finally {
+            this.mu.unlock();
+        }
+    }
+
+    // A registration whose listing arrives in several pages. A full listing
+    // comes in namespace order and is merged against a walk of the tree as it
+    // arrives: a file the walk passes that the namespace has this server
+    // holding, but the listing skipped, is no longer on the server.
+    private static class RegistrationSession {
+        final int clientPort;
+        final int commandPort;
+        final long generation;
+        // Walk over the tree, null for a diff or once the listing is out of order
+        TreeWalk walk;
+        // Entry the walk has reached but the listing has not, and its path
+        TreeNode ahead;
+        String aheadPath;
+        // Last path the listing reported
+        String listed;
+        int dropped;
+
+        RegistrationSession(int clientPort, int commandPort, long generation, boolean full, TreeNode root) {
+            this.clientPort = clientPort;
+            this.commandPort = commandPort;
+            this.generation = generation;
+            this.walk = full ? new TreeWalk(root, Path.of("/"), 0, null) : null;
         }
-        this.mu.unlock();
-        return false;
+    }
+
+    // Advances a full listing's walk up to path, or to the end for null, and
+    // drops the server from every file it holds that the walk passed and the
+    // listing did not report. Files at or before the previously listed path
+    // were already reconciled; any the walk turns up there were added since.
+    private CompletableFuture<Void> reconcile(RegistrationSession session, String path, CompletableFuture<Void> logged){
+        if (session.walk == null){
+            return logged;
+        }
+        String previous = session.listed;
+        if (path != null){
+            if (previous != null && Util.NAMESPACE_ORDER.compare(previous, path) >= 0){
+                System.out.println("Storage server " + session.clientPort + " listed " + path
+                        + " out of order; not checking it for lost files");
+                session.walk = null;
+                session.ahead = null;
+                return logged;
+            }
+            session.listed = path;
+        }
+
+        while (session.ahead != null || session.walk.hasNext()){
+            if (session.ahead == null){
+                session.ahead = session.walk.next();
+                session.aheadPath = session.walk.path;
+            }
+            int order = path == null ? -1 : Util.NAMESPACE_ORDER.compare(session.aheadPath, path);
+            if (order > 0){
+                break;
+            }
+            TreeNode node = session.ahead;
+            String nodePath = session.aheadPath;
+            session.ahead = null;
+            if (order < 0 && !node.isDir && node.hasSource(session.clientPort)
+                    && (previous == null || Util.NAMESPACE_ORDER.compare(nodePath, previous) > 0)){
+                logged = dropHolder(Path.of(nodePath), session.clientPort, logged);
+                session.dropped++;
+            }
+        }
+        return logged;
     }
 
     public void registrationHandler(HttpExchange exchange) throws IOException{
         RegisterRequest data = new RegisterRequest();
-        if (exchange.getRequestMethod() != "POST") {
+        if (!exchange.getRequestMethod().equals("POST")) {
             System.out.println("Method not allowed");
             sendErrorResponse(exchange, "MethodNotAllowedException", "Method not allowed");
             return;
         }
 
-         try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            String requestBody = reader.lines().collect(Collectors.joining("\n"));
-            data = gson.fromJson(requestBody, RegisterRequest.class);
+         try {
+            data = readRequest(exchange, RegisterRequest.class);
         } catch (Exception e) {
             e.printStackTrace();
             throw new IllegalArgumentException();
@@ -77,35 +189,34 @@ public class NameServer {
         
         int node = data.command_port;
         int clientPort = data.client_port;
-        boolean isRegistered = this.checkIfNodeRegistered(node);
-        if (!isRegistered){
-            this.registeredNodes.add(node);
-            this.portMap.put(clientPort, node);
-            this.clientPorts.add(clientPort);
-
-            List<String> deleted = new ArrayList<String>();
-
-            this.fileSystem.printTree(1);
-
-            if (!(data.files.size() == 1 && data.files.get(0).equals("/"))){
-                this.mu.lock();
-                for (String filename: data.files){
-                    TreeNode newNode = this.fileSystem.findNode(filename);
-                    if (newNode !=null){
-                        deleted.add(filename);
-                    }
-                    else{
-                        this.fileSystem.addFile(filename, false, clientPort);
-                        updateDict(filename, node, this.filesDict);
-                    }
-                    
+        // A diff only applies on top of the generation it was taken from
+        Long synced = this.syncedGenerations.get(clientPort);
+        boolean fullRequired = data.since >= 0 && (synced == null || synced != data.since);
+        boolean full = data.since < 0 || fullRequired;
+        if (registerNode(node, clientPort, full)){
+            CompletableFuture<Void> registered = this.journal.register(node, clientPort);
+            RegistrationSession session = new RegistrationSession(clientPort, node, data.generation, full,
+                    this.fileSystem);
+            SuccessfulRegistrationResponse response = new SuccessfulRegistrationResponse(new String[0]);
+
+            if (fullRequired){
+                response.full_required = true;
+            } else if (data.files != null && !(data.files.size() == 1 && data.files.get(0).equals("/"))){
+                try {
+                    response.files = applyRegistrationPage(session, data.files, data.removed, data.prefix_compressed);
+                } catch (IllegalArgumentException e) {
+                    sendErrorResponse(exchange, "IllegalArgumentException", e.getMessage());
+                    return;
                 }
-                this.mu.unlock();
             }
 
-            this.fileSystem.printTree(1);
-
-            SuccessfulRegistrationResponse response = new SuccessfulRegistrationResponse(deleted.toArray(new String[deleted.size()]));
+            if (data.more || response.full_required){
+                response.session = UUID.randomUUID().toString();
+                this.registrations.put(response.session, session);
+            } else {
+                response.synced_generation = finishRegistration(session);
+            }
+            registered.join();
             sendJsonResponse(exchange, 200, response);
         } else{
             ErrorRegistrationResponse response = new ErrorRegistrationResponse("IllegalStateException", "This storage server is already registered.");
@@ -113,31 +224,178 @@ public class NameServer {
         }
     }
 
+    // /register_page endpoint for the remaining pages of a registration
+    public void registerPageHandler(HttpExchange exchange) throws IOException{
+        if (!exchange.getRequestMethod().equals("POST")) {
+            sendErrorResponse(exchange, "MethodNotAllowedException", "Method not allowed");
+            return;
+        }
 
-    private void updateDict(String filename, int node, Map<String, List<Integer>> dict){
-        String[] parts = filename.split("/");
-        for(String part: parts){
-            if (part == ""){
-                continue;
+        RegisterPageRequest page;
+        try {
+            page = readRequest(exchange, RegisterPageRequest.class);
+        } catch (Exception e) {
+            e.printStackTrace();
+            sendErrorResponse(exchange, "BadRequestException", "Bad Request");
+            return;
+        }
+
+        RegistrationSession session = page == null || page.session == null ? null : this.registrations.get(page.session);
+        if (session == null){
+            sendErrorResponse(exchange, "IllegalStateException", "Unknown registration session.");
+            return;
+        }
+
+        SuccessfulRegistrationResponse response;
+        try {
+            response = new SuccessfulRegistrationResponse(
+                    applyRegistrationPage(session, page.files, page.removed, page.prefix_compressed));
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(exchange, "IllegalArgumentException", e.getMessage());
+            return;
+        }
+        if (page.more){
+            response.session = page.session;
+        } else if (this.registrations.remove(page.session) != null){
+            response.synced_generation = finishRegistration(session);
+        }
+        sendJsonResponse(exchange, 200, response);
+    }
+
+    // Adds one page of a storage server's files to the tree and drops the ones
+    // listed as removed. Pages are applied without the global lock: addFile only
+    // locks the directory receiving each entry, and while consecutive entries
+    // share a parent (as they do in a sorted listing) that directory is reused
+    // without walking the tree again. Returns the files the storage server
+    // should delete because another server already holds them.
+    private String[] applyRegistrationPage(RegistrationSession session, List<String> files, List<String> removed,
+            boolean prefixCompressed){
+        List<String> deleted = new ArrayList<String>();
+        int clientPort = session.clientPort;
+        CompletableFuture<Void> logged = CompletableFuture.completedFuture(null);
+        Path cachedPath = null;
+        TreeNode cachedParent = null;
+
+        if (files != null){
+            for (String filename: prefixCompressed ? Util.expandPrefixes(files) : files){
+                if (!Path.isValid(filename) || Path.of(filename).isRoot()){
+                    System.out.println("Ignoring invalid path from storage server: " + filename);
+                    continue;
+                }
+                Path path = Path.of(filename);
+                logged = reconcile(session, path.toString(), logged);
+                CompletableFuture<Void> added;
+                if (cachedParent != null && !cachedParent.removed && sameParent(cachedPath, path)){
+                    added = cachedParent.addChild(path, false, clientPort, this.journal);
+                } else {
+                    added = this.fileSystem.addFile(path, false, clientPort, this.journal);
+                    TreeNode parent = this.fileSystem.findNode(path.parent());
+                    cachedParent = parent != null && parent.isDir ? parent : null;
+                    cachedPath = path;
+                }
+                if (added != null){
+                    updateDict(path, session.commandPort, this.filesDict);
+                    logged = added;
+                }
+                else if (this.fileSystem.findNode(path) == null
+                        || !this.fileSystem.findNode(path).hasSource(clientPort)){
+                    // Files this server already hosts (e.g. known from the namespace
+                    // log after a naming server restart) are kept
+                    deleted.add(filename);
+                }
             }
-            if (!dict.containsKey(part)){
-                dict.put(part, new ArrayList<Integer>());
+        }
+
+        if (removed != null){
+            for (String filename: prefixCompressed ? Util.expandPrefixes(removed) : removed){
+                if (Path.isValid(filename)){
+                    logged = dropHolder(Path.of(filename), clientPort, logged);
+                }
             }
-            dict.get(part).add(node);
         }
+
+        // Records are committed in order, so the last one covers the page
+        logged.join();
+        return deleted.toArray(new String[deleted.size()]);
+    }
+
+    // Forgets that the storage server holds a file it no longer has. A file no
+    // server holds any more is removed from the namespace.
+    private CompletableFuture<Void> dropHolder(Path path, int clientPort, CompletableFuture<Void> logged){
+        TreeNode file = this.fileSystem.findNode(path);
+        if (file == null || file.isDir){
+            return logged;
+        }
+        boolean orphaned;
+        synchronized (file) {
+            // a file deleted since it was looked up has no record left to change
+            if (file.removed || !file.removeSource(clientPort)){
+                return logged;
+            }
+            orphaned = file.sourcePorts.length == 0;
+            logged = this.journal.removeReplica(path.toString(), clientPort);
+        }
+        if (orphaned){
+            try {
+                logged = this.fileSystem.deleteFile(path, this.portMap, this.journal);
+            } catch (ExceptionReturn e) {
+                System.out.println("Could not remove " + path + ": " + e.exception_info);
+            }
+        }
+        return logged;
+    }
+
+    // The naming server now knows every file the storage server had at the
+    // registration's generation; a later re-registration may send a diff. A
+    // full listing also drops the server from the files it did not report,
+    // after which new files may be placed on it.
+    private long finishRegistration(RegistrationSession session){
+        reconcile(session, null, CompletableFuture.completedFuture(null)).join();
+        if (session.dropped > 0){
+            System.out.println("Storage server " + session.clientPort + " no longer holds "
+                    + session.dropped + " files");
+        }
+        this.cluster.synced(session.clientPort);
+        this.syncedGenerations.put(session.clientPort, session.generation);
+        this.journal.synced(session.clientPort, session.generation).join();
+        return session.generation;
+    }
+
+    private void updateDict(Path filename, int node, Map<String, List<Integer>> dict){
+        for(String part: filename){
+            dict.computeIfAbsent(part, k -> new CopyOnWriteArrayList<Integer>()).add(node);
+        }
+    }
+
+    // /is_valid_path endpoint for checking path syntax
+    public void isValidPathHandler(HttpExchange exchange) throws IOException{
+        if (!exchange.getRequestMethod().equals("POST")) {
+            sendErrorResponse(exchange, "MethodNotAllowedException", "Method not allowed");
+            return;
+        }
+
+        PathRequest pathReq = null;
+        try {
+            pathReq = readRequest(exchange, PathRequest.class);
+        } catch (Exception e) {
+            e.printStackTrace();
+            sendErrorResponse(exchange, "BadRequestException", "Bad Request");
+            return;
+        }
+
+        sendJsonResponse(exchange, 200, new BooleanReturn(pathReq != null && Path.isValid(pathReq.path)));
     }
 
     public void isDirectoryHandler(HttpExchange exchange) throws IOException{
-        if (exchange.getRequestMethod() != "POST"){
+        if (!exchange.getRequestMethod().equals("POST")){
             System.out.println("Method not allowed");
             sendErrorResponse(exchange, "MethodNotAllowedException", "Method not allowed");
             return;
         }
         boolean isDir = true;
 
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            String requestBody = reader.lines().collect(Collectors.joining("\n"));
-            PathRequest pathReq = gson.fromJson(requestBody, PathRequest.class);
+        try {
+            PathRequest pathReq = readRequest(exchange, PathRequest.class);
 
             
             // Validate path
@@ -147,39 +405,32 @@ public class NameServer {
             }
 
             // Process the request
-            pathReq.path = Util.sanitizePath(pathReq.path);
-
-           
-            if (pathReq.path == "") {
-                sendErrorResponse(exchange,"IllegalArgumentException", 
+            Path path = Path.of(Util.sanitizePath(pathReq.path));
+            TreeNode node = this.fileSystem.findNode(path);
+            if (node == null) {
+                sendErrorResponse(exchange,"FileNotFoundException", 
                         "An error occurred while processing the request");
                 return;
-            } else {
-                if (pathReq.path == "/") {
-                    isDir = true;
-                } else {
-                    TreeNode node = this.fileSystem.findNode(pathReq.path);
-                    if (node == null) {
-                        isDir = false;
-                        sendErrorResponse(exchange,"FileNotFoundException", 
-                                "An error occurred while processing the request");
-                        return;
-                    } else {
-                        isDir = node.isDir();
-                    }
-                }
             }
+            isDir = node.isDir();
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(exchange, "IllegalArgumentException", e.getMessage());
+            return;
         } catch (Exception e) {
             // Handle unexpected exceptions
             e.printStackTrace();
             sendErrorResponse(exchange, "InternalServerError", "An error occurred while processing the request");
+            return;
         }
 
         BooleanReturn response = new BooleanReturn(isDir);
         sendJsonResponse(exchange, 200, response);
     }
 
-    private List<String> findFiles(String path) throws ExceptionReturn{
+    // Entries of a directory in name order, starting after the given name.
+    // The iterator is weakly consistent: it never fails on concurrent changes
+    // and never returns a name twice.
+    private Iterator<TreeNode> findFiles(Path path, String after) throws ExceptionReturn{
         TreeNode node = this.fileSystem.findNode(path);
         if(node == null){
             throw new ExceptionReturn("FileNotFoundException", "the file/directory or parent directory does not exist.");
@@ -187,7 +438,7 @@ public class NameServer {
         if(!node.isDir){
             throw new ExceptionReturn("IllegalArgumentException", "the file/directory or parent directory does not exist.");
         }
-        return node.children.keySet().stream().collect(Collectors.toList());
+        return node.childrenAfter(after);
     }
 
     // /list endpoint for lsiting directory contents
@@ -197,27 +448,40 @@ public class NameServer {
             return;
         }
 
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            String requestBody = reader.lines().collect(Collectors.joining("\n"));
-            PathRequest pathReq = gson.fromJson(requestBody, PathRequest.class);
+        try {
+            ListRequest listReq = readRequest(exchange, ListRequest.class);
             
             // Validate path
-            if (pathReq.path == null || pathReq.path.isEmpty()) {
+            if (listReq.path == null || listReq.path.isEmpty()) {
                 sendErrorResponse(exchange, "IllegalArgumentException", "Path cannot be empty");
                 return;
             }
             
             // Process the request
-            pathReq.path = Util.sanitizePath(pathReq.path);
-            List<String> files = findFiles(pathReq.path);
-            
+            Iterator<TreeNode> names = findFiles(Path.of(Util.sanitizePath(listReq.path)), listReq.after);
+            int limit = listReq.limit > 0 ? listReq.limit : Integer.MAX_VALUE;
+            if (listReq.stream) {
+                streamFiles(exchange, names, limit);
+                return;
+            }
+
+            List<String> files = new ArrayList<>();
+            while (files.size() < limit && names.hasNext()) {
+                files.add(names.next().key);
+            }
+
             // Create and send response
             FilesReturn response = new FilesReturn(files);
+            if (files.size() == limit && names.hasNext()) {
+                response.next = files.get(files.size() - 1);
+            }
             sendJsonResponse(exchange, 200, response);
             
         } catch (ExceptionReturn e) {
             // Handle known exceptions from findFiles
             sendErrorResponse(exchange, e.exception_type, e.exception_info);
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(exchange, "IllegalArgumentException", e.getMessage());
         } catch (Exception e) {
             // Handle unexpected exceptions
             e.printStackTrace();
@@ -225,69 +489,298 @@ public class NameServer {
         }
     }
 
+    // Writes a FilesReturn one name at a time as the directory is read
+    private void streamFiles(HttpExchange exchange, Iterator<TreeNode> names, int limit) throws IOException {
+        try (JsonWriter writer = startStreamingResponse(exchange, 200)) {
+            writer.beginObject().name("files").beginArray();
+            String last = null;
+            int sent = 0;
+            while (sent < limit && names.hasNext()) {
+                last = names.next().key;
+                writer.value(last);
+                sent++;
+            }
+            writer.endArray();
+            if (sent == limit && names.hasNext()) {
+                writer.name("next").value(last);
+            }
+            writer.endObject();
+        }
+    }
 
-    private  void createDirectoryHelper(String path) throws FileNotFoundException{
-        if(path.isEmpty()){
-            throw new IllegalArgumentException();
+    // /walk endpoint for listing a whole subtree, with each entry's type and
+    // replicas, in one request. Like a client locking a directory around
+    // /list, the walk takes a shared lock on every node from the root down to
+    // the walked path, so no client holding an exclusive lock on any of them
+    // can change the subtree mid-walk. The response is written from the
+    // executor once that lock is granted; the node walked is the one locked,
+    // and the lock is released on exactly the nodes it was granted on.
+    public void walkHandler(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            sendErrorResponse(exchange, "MethodNotAllowedException", "Method not allowed");
+            return;
         }
 
-        TreeNode node = this.fileSystem.findNode(path);
-        if(node == null){
-            throw new FileNotFoundException();
+        WalkRequest walkReq;
+        Path path;
+        Path after;
+        CompletableFuture<TreeNode[]> granted;
+        try {
+            walkReq = readRequest(exchange, WalkRequest.class);
+
+            // Validate path
+            if (walkReq.path == null || walkReq.path.isEmpty()) {
+                sendErrorResponse(exchange, "IllegalArgumentException", "Path cannot be empty");
+                return;
+            }
+
+            path = Path.of(Util.sanitizePath(walkReq.path));
+            after = walkReq.after == null ? null : Path.of(walkReq.after);
+            if (after != null && !after.isSubpath(path)) {
+                sendErrorResponse(exchange, "IllegalArgumentException", after + " is not under " + path);
+                return;
+            }
+            granted = this.fileSystem.lockAsync(path, false, Replicator.NONE, this.executor);
+        } catch (ExceptionReturn e) {
+            sendErrorResponse(exchange, e.exception_type, e.exception_info);
+            return;
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(exchange, "IllegalArgumentException", e.getMessage());
+            return;
+        } catch (Exception e) {
+            e.printStackTrace();
+            sendErrorResponse(exchange, "InternalServerError", "An error occurred while processing the request");
+            return;
         }
 
-        if(!node.isDir){
-            throw new FileNotFoundException();
+        granted.whenCompleteAsync((chain, error) -> {
+            try {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (cause instanceof ExceptionReturn) {
+                    // the path was deleted while the walk waited for it
+                    ExceptionReturn e = (ExceptionReturn) cause;
+                    sendErrorResponse(exchange, e.exception_type, e.exception_info);
+                    return;
+                }
+                if (error != null) {
+                    error.printStackTrace();
+                    sendErrorResponse(exchange, "InternalServerError", "An error occurred while processing the request");
+                    return;
+                }
+                try {
+                    walk(exchange, walkReq, chain[chain.length - 1], path, after);
+                } finally {
+                    TreeNode.unlock(chain, false);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, this.executor);
+    }
+
+    private void walk(HttpExchange exchange, WalkRequest walkReq, TreeNode root, Path path, Path after)
+            throws IOException {
+        if (root.removed) {
+            sendErrorResponse(exchange, "FileNotFoundException", path + " does not exist");
+            return;
+        }
+        TreeWalk walk = new TreeWalk(root, path, walkReq.max_depth, after);
+        int limit = walkReq.limit > 0 ? walkReq.limit : Integer.MAX_VALUE;
+        if (walkReq.stream) {
+            streamWalk(exchange, walk, limit, walkReq.sizes);
+            return;
+        }
+
+        List<WalkEntry> entries = new ArrayList<>();
+        TreeNode node;
+        while (entries.size() < limit && (node = walk.next()) != null) {
+            entries.add(walkEntry(walk.path, node));
+        }
+        if (walkReq.sizes) {
+            fetchSizes(entries);
         }
 
-        this.fileSystem.addFile(path, true, 0);
+        WalkReturn response = new WalkReturn(entries);
+        if (entries.size() == limit && walk.hasNext()) {
+            response.next = walk.path;
+        }
+        sendJsonResponse(exchange, 200, response);
+    }
+
+    // Writes a WalkReturn in batches of WALK_BATCH entries as the subtree is
+    // walked; a batch's sizes are fetched before it is written
+    private void streamWalk(HttpExchange exchange, TreeWalk walk, int limit, boolean sizes) throws IOException {
+        try (JsonWriter writer = startStreamingResponse(exchange, 200)) {
+            writer.beginObject().name("entries").beginArray();
+            List<WalkEntry> batch = new ArrayList<>(WALK_BATCH);
+            int sent = 0;
+            TreeNode node;
+            while (sent < limit && (node = walk.next()) != null) {
+                batch.add(walkEntry(walk.path, node));
+                sent++;
+                if (batch.size() == WALK_BATCH) {
+                    writeEntries(writer, batch, sizes);
+                }
+            }
+            writeEntries(writer, batch, sizes);
+            writer.endArray();
+            if (sent == limit && walk.hasNext()) {
+                writer.name("next").value(walk.path);
+            }
+            writer.endObject();
+        }
     }
 
-    private void createFileHelper(String path) throws ExceptionReturn, FileNotFoundException{
-        if(path.isEmpty()){
+    private void writeEntries(JsonWriter writer, List<WalkEntry> batch, boolean sizes) {
+        if (sizes) {
+            fetchSizes(batch);
+        }
+        for (WalkEntry entry : batch) {
+            this.gson.toJson(entry, WalkEntry.class, writer);
+        }
+        batch.clear();
+    }
+
+    private static WalkEntry walkEntry(String path, TreeNode node) {
+        if (node.isDir) {
+            return new WalkEntry(path, true, null);
+        }
+        return new WalkEntry(path, false, node.sources());
+    }
+
+    // Asks one live replica of every file in entries for its size, all at once
+    private void fetchSizes(List<WalkEntry> entries) {
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (WalkEntry entry : entries) {
+            if (entry.is_dir) {
+                continue;
+            }
+            entry.size = -1L;
+            List<Integer> holders = this.cluster.live(entry.replicas);
+            Integer port = holders.isEmpty() ? null : this.portMap.get(holders.get(0));
+            if (port == null) {
+                continue;
+            }
+            String url = String.format("http://127.0.0.1:%d/storage_size", port);
+            calls.add(RpcClient.postAsync(url, new PathRequest(entry.path)).handle((response, failure) -> {
+                try {
+                    if (failure != null) {
+                        System.err.println("Could not size " + entry.path + ": " + failure);
+                    } else if (response.statusCode() == 200) {
+                        entry.size = RpcClient.decode(response, SizeReturn.class).size;
+                    }
+                } catch (IOException e) {
+                    System.err.println("Could not size " + entry.path + ": " + e.getMessage());
+                }
+                return null;
+            }));
+        }
+        CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+
+    // Returns the directory that would contain path, or throws if it is missing.
+    private TreeNode findParentDir(Path path) throws FileNotFoundException{
+        if(path.isRoot()){
             throw new IllegalArgumentException();
         }
 
-        TreeNode node = this.fileSystem.findNode(path);
-        if(node == null){
+        TreeNode parentNode = this.fileSystem.findNode(path.parent());
+        if(parentNode == null || !parentNode.isDir){
             throw new FileNotFoundException();
         }
+        return parentNode;
+    }
 
-        String parent = getParentDir(path);
-        
-        TreeNode parentNode = this.fileSystem.findNode(parent);
-        if(parentNode == null){
-            throw new FileNotFoundException();
+    private boolean createDirectoryHelper(Path path) throws FileNotFoundException{
+        findParentDir(path);
+        CompletableFuture<Void> logged = this.fileSystem.addFile(path, true, 0, this.journal);
+        if(logged == null){
+            return false;
         }
+        logged.join();
+        return true;
+    }
 
-        if(!parentNode.isDir){
-            throw new FileNotFoundException();
+    private boolean createFileHelper(Path path) throws ExceptionReturn, FileNotFoundException{
+        findParentDir(path);
+
+        List<ClusterView.StorageNode> targets = placeFile(path);
+        CompletableFuture<Void> logged = this.fileSystem.addFile(path, false, targets.get(0).clientPort, this.journal);
+        if(logged == null){
+            return false;
         }
+        if(targets.size() > 1){
+            logged = addPlacedReplicas(this.fileSystem.findNode(path), path, targets, logged);
+        }
+        logged.join();
+        createOnStorage(path, targets).join();
+        return true;
+    }
 
-        this.fileSystem.addFile(path, false, 0);
-        // TS: By default, the data is stored in the first storage server and replicated as the file gets read over the threshold?
-        Util.callStorageServer(String.format("http://127.0.0.1:%d/storage_create", this.registeredNodes.get(0)), path);
+    // Picks the storage servers a new file is created on from the live cluster
+    // view, primary first.
+    private List<ClusterView.StorageNode> placeFile(Path path){
+        List<ClusterView.StorageNode> targets = this.placement.place(path, this.replicationFactor, this.cluster);
+        if(targets.isEmpty()){
+            throw new IllegalStateException("No live storage servers are registered with the naming server.");
+        }
+        return targets;
+    }
 
+    // Records every placed server but the primary as a holder of the newly
+    // created file. Returns the journal write of the last record, or logged if
+    // the file is already gone and nothing was recorded.
+    private CompletableFuture<Void> addPlacedReplicas(TreeNode file, Path path, List<ClusterView.StorageNode> targets,
+            CompletableFuture<Void> logged){
+        if(file == null){
+            return logged;
+        }
+        synchronized (file) {
+            if(file.removed){
+                return logged;
+            }
+            int[] ports = new int[targets.size()];
+            for(int i = 0; i < ports.length; i++){
+                ports[i] = targets.get(i).clientPort;
+            }
+            file.setSources(ports);
+            for(int i = 1; i < targets.size(); i++){
+                logged = this.journal.addReplica(path.toString(), targets.get(i).clientPort);
+            }
+        }
+        return logged;
+    }
+
+    // Creates the empty file on every placed server in parallel.
+    private static CompletableFuture<Void> createOnStorage(Path path, List<ClusterView.StorageNode> targets){
+        List<Integer> commandPorts = new ArrayList<>(targets.size());
+        for(ClusterView.StorageNode target: targets){
+            commandPorts.add(target.commandPort);
+        }
+        return Util.fanOut("storage_create", commandPorts, new PathRequest(path.toString()));
     }
 
     // /create_directory endpoint for creating a directory
     public void createDirectoryHandler(HttpExchange exchange) throws IOException{
         
         PathRequest pathReq = null;
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            String requestBody = reader.lines().collect(Collectors.joining("\n"));
-            pathReq = gson.fromJson(requestBody, PathRequest.class);
+        try {
+            pathReq = readRequest(exchange, PathRequest.class);
         } catch (Exception e) {
             e.printStackTrace();
         }
 
 
+        boolean created;
         try{
-            createDirectoryHelper(pathReq.path);
+            created = createDirectoryHelper(Path.of(Util.sanitizePath(pathReq.path)));
         } catch (Exception e) {
             sendErrorResponse(exchange, e.getClass().getSimpleName(), e.getMessage());
             return;
         }
+
+        sendJsonResponse(exchange, 200, new BooleanReturn(created));
     }
 
     // /create_file endpoint for creating a new file
@@ -298,9 +791,8 @@ public class NameServer {
         }
 
         PathRequest pathReq = null;
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            String requestBody = reader.lines().collect(Collectors.joining("\n"));
-            pathReq = gson.fromJson(requestBody, PathRequest.class);
+        try {
+            pathReq = readRequest(exchange, PathRequest.class);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -310,53 +802,297 @@ public class NameServer {
             return;
         }
 
+        boolean created;
         try{
-            createFileHelper(pathReq.path);
+            created = createFileHelper(Path.of(Util.sanitizePath(pathReq.path)));
         } catch (Exception e) {
             sendErrorResponse(exchange, e.getClass().getSimpleName(), e.getMessage());
             return;
         }
 
-        BooleanReturn response = new BooleanReturn(true);
+        BooleanReturn response = new BooleanReturn(created);
         sendJsonResponse(exchange, 200, response);
 
     }
 
-    public void getStorage(HttpExchange exchange) throws IOException{
-        PathRequest pathReq = null;
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            String requestBody = reader.lines().collect(Collectors.joining("\n"));
-            pathReq = gson.fromJson(requestBody, PathRequest.class);
+    // Returns true if both paths have the same parent directory, without allocating.
+    private static boolean sameParent(Path a, Path b){
+        if(a.depth() != b.depth()){
+            return false;
+        }
+        for(int i = 0; i < a.depth() - 1; i++){
+            if(!a.component(i).equals(b.component(i))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // State of a batch carried across the lock operations it waits on
+    private static class Batch {
+        final List<BatchOperation> operations;
+        final List<BatchResult> results;
+        final Map<Path, List<ClusterView.StorageNode>> createdFiles = new LinkedHashMap<>();
+        final List<CompletableFuture<Void>> deletions = new ArrayList<>();
+        // Leases granted to the batch, given back if its results are never sent
+        final List<LeaseManager.Lease> leases = new ArrayList<>();
+        CompletableFuture<Void> logged = CompletableFuture.completedFuture(null);
+        Path cachedPath = null;
+        TreeNode cachedParent = null;
+
+        Batch(List<BatchOperation> operations) {
+            this.operations = operations;
+            this.results = new ArrayList<>(operations.size());
+        }
+    }
+
+    // Applies the operations in order. The parent directory of the previous
+    // create is reused while consecutive creates share it, so a run of creates in
+    // one directory walks the tree once, and all log records are committed with a
+    // single group commit at the end. A lock is acquired like /lock does: the
+    // rest of the batch continues on the executor once it is granted, so no
+    // handler thread is held while the batch waits for it.
+
+    private CompletableFuture<List<BatchResult>> applyFrom(Batch batch, int start){
+        List<BatchResult> results = batch.results;
+
+        for(int i = start; i < batch.operations.size(); i++){
+            BatchOperation operation = batch.operations.get(i);
+            try{
+                if(operation == null || operation.op == null || operation.path == null){
+                    throw new IllegalArgumentException("operation and path are required");
+                }
+                Path path = Path.of(Util.sanitizePath(operation.path));
+
+                switch(operation.op){
+                    case "create_file":
+                    case "create_directory": {
+                        boolean isDir = operation.op.equals("create_directory");
+                        if(path.isRoot()){
+                            throw new IllegalArgumentException("the root directory already exists");
+                        }
+                        if(!isDir && this.registeredNodes.isEmpty()){
+                            results.add(new BatchResult("IllegalStateException", "No storage servers are registered with the naming server."));
+                            continue;
+                        }
+                        if(batch.cachedParent == null || batch.cachedParent.removed || !sameParent(batch.cachedPath, path)){
+                            batch.cachedParent = findParentDir(path);
+                            batch.cachedPath = path;
+                        }
+                        TreeNode cachedParent = batch.cachedParent;
+                        List<ClusterView.StorageNode> targets = isDir ? null : placeFile(path);
+                        CompletableFuture<Void> created = cachedParent.addChild(path, isDir,
+                                isDir ? 0 : targets.get(0).clientPort, this.journal);
+                        if(created == null && cachedParent.removed){
+                            // deleted by another request since it was resolved
+                            throw new FileNotFoundException(path.parent() + " does not exist");
+                        }
+                        if(created != null){
+                            batch.logged = created;
+                            if(!isDir){
+                                if(targets.size() > 1){
+                                    batch.logged = addPlacedReplicas(cachedParent.getChild(path.last()), path, targets, batch.logged);
+                                }
+                                batch.createdFiles.put(path, targets);
+                            }
+                        }
+                        results.add(new BatchResult(created != null));
+                        break;
+                    }
+                    case "delete":
+                        batch.deletions.add(this.fileSystem.deleteFile(path, this.portMap, this.journal));
+                        results.add(new BatchResult(true));
+                        break;
+                    case "lock": {
+                        boolean exclusive = operation.exclusive;
+                        CompletableFuture<TreeNode[]> granted = this.fileSystem.lockAsync(path, exclusive,
+                                this.replicator, this.executor);
+                        int next = i + 1;
+                        return granted.handleAsync((chain, error) -> {
+                            if(error != null){
+                                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                                if(cause instanceof ExceptionReturn){
+                                    ExceptionReturn e = (ExceptionReturn) cause;
+                                    results.add(new BatchResult(e.exception_type, e.exception_info));
+                                } else {
+                                    results.add(new BatchResult(cause.getClass().getSimpleName(), cause.getMessage()));
+                                }
+                            } else {
+                                try {
+                                    LeaseManager.Lease lease = this.leases.grant(path, exclusive, chain);
+                                    batch.leases.add(lease);
+                                    BatchResult result = new BatchResult(true);
+                                    result.lease_id = lease.id;
+                                    results.add(result);
+                                } catch (RuntimeException e) {
+                                    // no lease was recorded to release the lock
+                                    TreeNode.unlock(chain, exclusive);
+                                    results.add(new BatchResult(e.getClass().getSimpleName(), e.getMessage()));
+                                }
+                            }
+                            return applyFrom(batch, next);
+                        }, this.executor).thenCompose(rest -> rest);
+                    }
+                    case "unlock":
+                        results.add(new BatchResult(this.leases.release(this.leases.find(operation.lease_id, path, operation.exclusive))));
+                        break;
+                    case "is_directory": {
+                        TreeNode node = this.fileSystem.findNode(path);
+                        if(node == null){
+                            throw new FileNotFoundException(path + " does not exist");
+                        }
+                        results.add(new BatchResult(node.isDir()));
+                        break;
+                    }
+                    default:
+                        throw new IllegalArgumentException("unknown operation " + operation.op);
+                }
+            } catch (ExceptionReturn e) {
+                results.add(new BatchResult(e.exception_type, e.exception_info));
+            } catch (Exception e) {
+                results.add(new BatchResult(e.getClass().getSimpleName(), e.getMessage()));
+            }
+        }
+
+        return batch.logged.thenCompose(v -> {
+            List<CompletableFuture<Void>> calls = new ArrayList<>(batch.createdFiles.size() + batch.deletions.size());
+            batch.createdFiles.forEach((path, targets) -> calls.add(createOnStorage(path, targets)));
+            calls.addAll(batch.deletions);
+            return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0]));
+        }).thenApply(v -> results);
+    }
+
+    // Releases leases whose ids never reached the client. Those it released
+    // itself, e.g. with an unlock later in the same batch, are already gone.
+    private void releaseAll(List<LeaseManager.Lease> leases){
+        for (LeaseManager.Lease lease : leases){
+            this.leases.release(lease);
+        }
+    }
+
+    // /batch endpoint for applying a list of namespace operations in one request
+    public void batchHandler(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            sendErrorResponse(exchange, "MethodNotAllowedException", "Method not allowed");
+            return;
+        }
+
+        BatchRequest batchRequest = null;
+        try {
+            batchRequest = readRequest(exchange, BatchRequest.class);
         } catch (Exception e) {
             e.printStackTrace();
-            throw new IllegalArgumentException();
+            sendErrorResponse(exchange, "BadRequestException", "Bad Request");
+            return;
         }
 
-        String error = "";
-        TreeNode node = null;
-
-        if (pathReq.path.isEmpty()){
-            error="IllegalArgumentException";
-        } else{
-            pathReq.path = Util.sanitizePath(pathReq.path);
-            node = this.fileSystem.findNode(pathReq.path);
+        if (batchRequest == null || batchRequest.operations == null) {
+            sendErrorResponse(exchange, "IllegalArgumentException", "operations cannot be empty");
+            return;
+        }
 
-            if(node == null || node.isDir){
-                error = "FileNotFoundException";
+        // The results carry the lease ids of the locks the batch took; if they
+        // are never sent, the client cannot release those locks, so they are
+        // given back here rather than left held until their leases expire
+        Batch batch = new Batch(batchRequest.operations);
+        applyFrom(batch, 0).whenComplete((results, error) -> {
+            try {
+                if (error != null) {
+                    error.printStackTrace();
+                    releaseAll(batch.leases);
+                    sendErrorResponse(exchange, "InternalServerError", "An error occurred while processing the request");
+                } else {
+                    sendJsonResponse(exchange, 200, new BatchReturn(results));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                releaseAll(batch.leases);
             }
+        });
+    }
+
+    // /heartbeat endpoint for storage servers reporting their load; success is
+    // false if the server is unknown and should register again
+    public void heartbeatHandler(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            sendErrorResponse(exchange, "MethodNotAllowedException", "Method not allowed");
+            return;
         }
 
-        if(error.isEmpty()){
-            sendErrorResponse(exchange, error, error);
+        HeartbeatRequest heartbeat = null;
+        try {
+            heartbeat = readRequest(exchange, HeartbeatRequest.class);
+        } catch (Exception e) {
+            e.printStackTrace();
+            sendErrorResponse(exchange, "BadRequestException", "Bad Request");
             return;
         }
 
-        ServerInfo serverInfo = new ServerInfo("127.0.0.1", node.sourcePorts.get(0));
-        sendJsonResponse(exchange, 200, serverInfo);
+        // A server known only from the namespace log is asked to register again,
+        // which reconciles its files with the recovered namespace
+        boolean known = this.cluster.heartbeat(heartbeat, System.nanoTime());
+        sendJsonResponse(exchange, 200, new BooleanReturn(known && this.registeredNodes.contains(heartbeat.command_port)));
+    }
 
+    // /get_storage endpoint for finding a storage server that holds a file; the
+    // replica is picked by the configured ReplicaSelector
+    public void getStorage(HttpExchange exchange) throws IOException{
+        if (!exchange.getRequestMethod().equals("POST")) {
+            sendErrorResponse(exchange, "MethodNotAllowedException", "Method not allowed");
+            return;
+        }
+
+        StorageRequest storageRequest = null;
+        try {
+            storageRequest = readRequest(exchange, StorageRequest.class);
+        } catch (Exception e) {
+            e.printStackTrace();
+            sendErrorResponse(exchange, "BadRequestException", "Bad Request");
+            return;
+        }
+
+        if (storageRequest.path == null || storageRequest.path.isEmpty()){
+            sendErrorResponse(exchange, "IllegalArgumentException", "Path cannot be empty");
+            return;
+        }
+        storageRequest.path = Util.sanitizePath(storageRequest.path);
+        if (!Path.isValid(storageRequest.path)) {
+            sendErrorResponse(exchange, "IllegalArgumentException", "Invalid path");
+            return;
+        }
+
+        TreeNode node = this.fileSystem.findNode(Path.of(storageRequest.path));
+        if(node == null || node.isDir){
+            sendErrorResponse(exchange, "FileNotFoundException", storageRequest.path + " is not a file");
+            return;
+        }
+
+        long now = System.nanoTime();
+        List<Integer> holders = this.cluster.live(node.sourcePorts);
+        if (holders.isEmpty()) {
+            // every holder has dropped the file, e.g. after re-registering without it
+            sendErrorResponse(exchange, "IllegalStateException", "No storage server holds " + storageRequest.path);
+            return;
+        }
+        List<Integer> ordered = this.selector.order(holders, this.cluster, now);
+        ClusterView.StorageNode chosen = this.cluster.get(ordered.get(0));
+        if (chosen != null) {
+            chosen.assignments.record(1, now);
+        }
+
+        List<ServerInfo> replicas = null;
+        if (storageRequest.all_replicas) {
+            replicas = new ArrayList<>(ordered.size());
+            for (Integer port : ordered) {
+                replicas.add(new ServerInfo("127.0.0.1", port));
+            }
+        }
+        sendJsonResponse(exchange, 200, new StorageReturn("127.0.0.1", ordered.get(0), replicas));
     }
 
-    // /lock endpoint for locking a file
+    // /lock endpoint for locking a file. The handler only queues the request; the
+    // response is written from the executor when the lock is granted, so waiting
+    // clients do not hold server threads.
     public void lockHandler(HttpExchange exchange) throws IOException {
         if (!exchange.getRequestMethod().equals("POST")) {
             sendErrorResponse(exchange, "MethodNotAllowedException", "Method not allowed");
@@ -364,9 +1100,8 @@ public class NameServer {
         }
 
         LockRequest lockRequest = null;
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            String requestBody = reader.lines().collect(Collectors.joining("\n"));
-            lockRequest = gson.fromJson(requestBody, LockRequest.class);
+        try {
+            lockRequest = readRequest(exchange, LockRequest.class);
         } catch (Exception e) {
             e.printStackTrace();
             throw new IllegalArgumentException();
@@ -378,12 +1113,61 @@ public class NameServer {
         }
 
         lockRequest.path = Util.sanitizePath(lockRequest.path);
+        if(!Path.isValid(lockRequest.path)){
+            sendErrorResponse(exchange, "IllegalArgumentException", "Invalid path");
+            return;
+        }
         
+        CompletableFuture<TreeNode[]> granted;
         try{
-            this.fileSystem.lock(lockRequest.path, lockRequest.exclusive, this.registeredNodes, this.clientPorts, this.portMap);
+            granted = this.fileSystem.lockAsync(Path.of(lockRequest.path), lockRequest.exclusive, this.replicator,
+                    this.executor);
         } catch (ExceptionReturn e) {
             sendErrorResponse(exchange, e.exception_type, e.exception_info);
+            return;
         }
+
+        Path path = Path.of(lockRequest.path);
+        boolean exclusive = lockRequest.exclusive;
+        granted.whenCompleteAsync((chain, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                try {
+                    if (cause instanceof ExceptionReturn) {
+                        // the path was deleted while the request waited
+                        ExceptionReturn e = (ExceptionReturn) cause;
+                        sendErrorResponse(exchange, e.exception_type, e.exception_info);
+                    } else {
+                        error.printStackTrace();
+                        sendErrorResponse(exchange, "InternalServerError", "An error occurred while processing the request");
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+
+            // The lock is recorded as a lease before anything that can fail, and
+            // given back if the client never learns the lease id, so no lock is
+            // left held with nothing to release or reap it
+            LeaseManager.Lease lease = null;
+            try {
+                lease = this.leases.grant(path, exclusive, chain);
+                sendJsonResponse(exchange, 200, new LockReturn(true, lease.id, lease.expiresAt));
+            } catch (Exception e) {
+                e.printStackTrace();
+                if (lease != null) {
+                    this.leases.release(lease);
+                    return;
+                }
+                TreeNode.unlock(chain, exclusive);
+                try {
+                    sendErrorResponse(exchange, "InternalServerError", "An error occurred while processing the request");
+                } catch (IOException sendFailure) {
+                    sendFailure.printStackTrace();
+                }
+            }
+        }, this.executor);
     }
 
     // /unlock endpoint for unlocking a file
@@ -393,9 +1177,8 @@ public class NameServer {
             return;
         }
 
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            String requestBody = reader.lines().collect(Collectors.joining("\n"));
-            LockRequest lockRequest = gson.fromJson(requestBody, LockRequest.class);
+        try {
+            LockRequest lockRequest = readRequest(exchange, LockRequest.class);
 
             if (lockRequest.path == null || lockRequest.path.isEmpty()) {
                 sendErrorResponse(exchange, "IllegalArgumentException", "Path cannot be empty");
@@ -403,11 +1186,37 @@ public class NameServer {
             }
 
             lockRequest.path = Util.sanitizePath(lockRequest.path);
-            this.fileSystem.unlock(lockRequest.path, lockRequest.exclusive);
+            LeaseManager.Lease lease = this.leases.find(lockRequest.lease_id, Path.of(lockRequest.path), lockRequest.exclusive);
+            if (!this.leases.release(lease)) {
+                sendErrorResponse(exchange, "IllegalStateException", "the lease expired before the unlock");
+                return;
+            }
             
             // Send success response
             sendJsonResponse(exchange, 200, new BooleanReturn(true));
             
+        } catch (ExceptionReturn e) {
+            sendErrorResponse(exchange, e.exception_type, e.exception_info);
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(exchange, "IllegalArgumentException", e.getMessage());
+        } catch (Exception e) {
+            e.printStackTrace();
+            sendErrorResponse(exchange, "InternalServerError", "An error occurred while processing the request");
+        }
+    }
+
+    // /renew_lock endpoint for extending a lock lease
+    public void renewLockHandler(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            sendErrorResponse(exchange, "MethodNotAllowedException", "Method not allowed");
+            return;
+        }
+
+        try {
+            LeaseRequest leaseRequest = readRequest(exchange, LeaseRequest.class);
+
+            LeaseManager.Lease lease = this.leases.renew(leaseRequest.lease_id);
+            sendJsonResponse(exchange, 200, new LockReturn(true, lease.id, lease.expiresAt));
         } catch (ExceptionReturn e) {
             sendErrorResponse(exchange, e.exception_type, e.exception_info);
         } catch (Exception e) {
@@ -422,9 +1231,8 @@ public class NameServer {
             return;
         }
 
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            String requestBody = reader.lines().collect(Collectors.joining("\n"));
-            LockRequest lockRequest = gson.fromJson(requestBody, LockRequest.class);
+        try {
+            LockRequest lockRequest = readRequest(exchange, LockRequest.class);
 
             if (lockRequest.path == null || lockRequest.path.isEmpty()) {
                 sendErrorResponse(exchange, "IllegalArgumentException", "Path cannot be empty");
@@ -432,40 +1240,22 @@ public class NameServer {
             }
 
             lockRequest.path = Util.sanitizePath(lockRequest.path);
-            this.fileSystem.deleteFile(lockRequest.path, this.portMap, this.registeredNodes);
+            Path path = Path.of(lockRequest.path);
+            this.fileSystem.deleteFile(path, this.portMap, this.journal).join();
 
             // Send success response
             sendJsonResponse(exchange, 200, new BooleanReturn(true));
 
         } catch (ExceptionReturn e) {
             sendErrorResponse(exchange, e.exception_type, e.exception_info);
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(exchange, "IllegalArgumentException", e.getMessage());
         } catch (Exception e) {
             e.printStackTrace();
             sendErrorResponse(exchange, "InternalServerError", "An error occurred while processing the request");
         }
     }
     
-    // Helper method to send JSON responses
-    private void sendJsonResponse(HttpExchange exchange, int statusCode, Object response) throws IOException {
-        String responseBody = gson.toJson(response);
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(statusCode, responseBody.getBytes().length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(responseBody.getBytes());
-        }
-    }
-
-    // Helper method to send error responses
-    private void sendErrorResponse(HttpExchange exchange, String errorType, String errorMessage) throws IOException {
-        ExceptionReturn errorResponse = new ExceptionReturn(errorType, errorMessage);
-        byte[] responseBytes = gson.toJson(errorResponse).getBytes();
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(400, responseBytes.length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(responseBytes);
-        }
-    }
-
     public static void main(String[] args) throws IOException {
         if (args.length != 1) {
             throw new IllegalArgumentException("expected one argument: port");
@@ -476,14 +1266,60 @@ public class NameServer {
         
         // Initialize the file system
         nameServer.fileSystem = new TreeNode("", true, -1);
-        nameServer.registeredNodes = new ArrayList<>();
-        nameServer.clientPorts = new ArrayList<>();
-        nameServer.portMap = new HashMap<>();
+        nameServer.registeredNodes = new CopyOnWriteArrayList<>();
+        nameServer.clientPorts = new CopyOnWriteArrayList<>();
+        nameServer.portMap = new ConcurrentHashMap<>();
+        nameServer.filesDict = new ConcurrentHashMap<>();
+        // Namespace persistence is enabled with -Dnaming.dataDir=<dir>; the tree is
+        // rebuilt from the latest snapshot plus the log tail before serving.
+        String dataDir = System.getProperty("naming.dataDir");
+        if (dataDir != null) {
+            nameServer.journal = new NamespaceLog(new File(dataDir));
+            long start = System.nanoTime();
+            long replayed = nameServer.journal.recover(nameServer.fileSystem, nameServer.portMap,
+                    nameServer.syncedGenerations);
+            System.out.printf("Recovered namespace from %s in %d ms (%d log records replayed)%n",
+                    dataDir, (System.nanoTime() - start) / 1_000_000, replayed);
+            nameServer.portMap.forEach(nameServer.cluster::add);
+
+            long interval = Long.getLong("naming.snapshotIntervalSec", 300);
+            ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor();
+            snapshots.scheduleWithFixedDelay(() -> {
+                // An exception escaping the task would cancel every later snapshot,
+                // leaving the log to grow without bound
+                try {
+                    nameServer.journal.snapshot(nameServer.fileSystem, nameServer.portMap, nameServer.syncedGenerations);
+                } catch (Exception e) {
+                    System.err.println("Snapshot failed, retrying in " + interval + " s: " + e);
+                    e.printStackTrace();
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
         
+        nameServer.cluster.startMonitor();
+
+        // Replication policy is chosen with -Dnaming.replicationPolicy (see ReplicationPolicy)
+        nameServer.replicator = new Replicator(ReplicationPolicy.fromProperties(), nameServer.cluster, nameServer.journal,
+                nameServer.replicationFactor);
+        nameServer.leases = new LeaseManager(Long.getLong("naming.leaseMillis", 30000), nameServer.replicator);
+        nameServer.leases.start();
+
+        // Background migration off overloaded storage servers (see Rebalancer)
+        nameServer.rebalancer = new Rebalancer(nameServer.fileSystem, nameServer.cluster, nameServer.journal,
+                nameServer.leases.getLeaseMillis());
+        nameServer.rebalancer.start();
+
         // Create HTTP server
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
         
         // Set up context handlers
+        server.createContext("/is_valid_path", new HttpHandler(){
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                nameServer.isValidPathHandler(exchange);
+            }
+        });
+
         server.createContext("/is_directory", new HttpHandler(){
             @Override
             public void handle(HttpExchange exchange) throws IOException {
@@ -491,12 +1327,31 @@ public class NameServer {
             }
         });
 
+        server.createContext("/list", new HttpHandler(){
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                nameServer.listHandler(exchange);
+            }
+        });
+        server.createContext("/walk", new HttpHandler(){
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                nameServer.walkHandler(exchange);
+            }
+        });
         server.createContext("/register", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
                 nameServer.registrationHandler(exchange);
             }
         });
+
+        server.createContext("/register_page", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                nameServer.registerPageHandler(exchange);
+            }
+        });
         
         // Set up other endpoints
         server.createContext("/lock", new HttpHandler() {
@@ -513,6 +1368,13 @@ public class NameServer {
             }
         });
         
+        server.createContext("/renew_lock", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                nameServer.renewLockHandler(exchange);
+            }
+        });
+        
         server.createContext("/create_file", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
@@ -527,6 +1389,27 @@ public class NameServer {
             }
         });
         
+        server.createContext("/batch", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                nameServer.batchHandler(exchange);
+            }
+        });
+        
+        server.createContext("/heartbeat", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                nameServer.heartbeatHandler(exchange);
+            }
+        });
+
+        server.createContext("/get_storage", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                nameServer.getStorage(exchange);
+            }
+        });
+
         server.createContext("/delete", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
@@ -535,7 +1418,9 @@ public class NameServer {
         });
         
         // Start the server
-        server.setExecutor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = ServerExecutors.fromProperties("naming", Runtime.getRuntime().availableProcessors());
+        nameServer.executor = executor;
+        server.setExecutor(executor);
         server.start();
         System.out.println("NameServer started on port " + port);
     }
@@ -0,0 +1,456 @@
+package naming;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import common.Path;
+
+// Durable record of namespace mutations. Mutations are appended to a write-ahead
+// log whose segments are named wal-<seq>.log; a single writer thread drains
+// every pending record, writes them together and forces the segment once, so
+// concurrent mutators share one fsync (group commit). A snapshot-<seq>.bin holds
+// the tree as of the moment segment <seq> was opened; recovery loads the newest
+// snapshot and replays segments >= seq. Snapshots are taken while mutations
+// continue, so replay is idempotent: creates skip existing entries, deletes
+// skip missing ones, and replica changes are set operations.
+public class NamespaceLog {
+    public static final byte CREATE_FILE = 1;
+    public static final byte CREATE_DIR = 2;
+    public static final byte DELETE = 3;
+    public static final byte REPLICA_ADD = 4;
+    public static final byte REPLICA_REMOVE = 5;
+    public static final byte REGISTER = 6;
+    public static final byte SYNCED = 7;
+
+    private static final int SNAPSHOT_MAGIC_V1 = 0x44465331; // "DFS1"
+    // Adds the storage servers' synced generations after the port map
+    private static final int SNAPSHOT_MAGIC = 0x44465332; // "DFS2"
+
+    // Journal used when persistence is disabled; appends complete immediately.
+    public static final NamespaceLog NONE = new NamespaceLog();
+
+    private final File dir;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Object segmentLock = new Object();
+    private FileChannel segment;
+    private long segmentSeq;
+    private Thread writer;
+
+    private static class Pending {
+        final byte[] record;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        // non-null for a request to switch to a new segment
+        final Long rollTo;
+
+        Pending(byte[] record, Long rollTo) {
+            this.record = record;
+            this.rollTo = rollTo;
+        }
+    }
+
+    private NamespaceLog() {
+        this.dir = null;
+    }
+
+    public NamespaceLog(File dir) {
+        this.dir = dir;
+    }
+
+    public boolean isEnabled() {
+        return this.dir != null;
+    }
+
+    public CompletableFuture<Void> createFile(Path path, int port) {
+        return append(CREATE_FILE, path.toString(), port);
+    }
+
+    public CompletableFuture<Void> createDirectory(Path path) {
+        return append(CREATE_DIR, path.toString(), 0);
+    }
+
+    public CompletableFuture<Void> delete(Path path) {
+        return append(DELETE, path.toString(), 0);
+    }
+
+    public CompletableFuture<Void> addReplica(String path, int port) {
+        return append(REPLICA_ADD, path, port);
+    }
+
+    public CompletableFuture<Void> removeReplica(String path, int port) {
+        return append(REPLICA_REMOVE, path, port);
+    }
+
+    public CompletableFuture<Void> register(int commandPort, int clientPort) {
+        return append(REGISTER, Integer.toString(commandPort), clientPort);
+    }
+
+    // The naming server's view of a storage server's files matches the storage
+    // server's own as of the given generation.
+    public CompletableFuture<Void> synced(int clientPort, long generation) {
+        return append(SYNCED, Long.toString(generation), clientPort);
+    }
+
+    private CompletableFuture<Void> append(byte type, String path, int port) {
+        if (!isEnabled()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + path.length());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            out.writeUTF(path);
+            out.writeInt(port);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Pending pending = new Pending(bytes.toByteArray(), null);
+        this.queue.add(pending);
+        return pending.done;
+    }
+
+    // Opens a fresh segment after whatever recovery found and starts the writer.
+    public void start(long firstSeq) throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        openSegment(firstSeq);
+        this.writer = new Thread(this::writeLoop, "namespace-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    private void openSegment(long seq) throws IOException {
+        synchronized (this.segmentLock) {
+            if (this.segment != null) {
+                this.segment.force(true);
+                this.segment.close();
+            }
+            this.segment = FileChannel.open(segmentFile(seq).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            this.segmentSeq = seq;
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(this.queue.take());
+                this.queue.drainTo(batch);
+
+                int size = 0;
+                for (Pending pending : batch) {
+                    if (pending.record != null) {
+                        size += 8 + pending.record.length;
+                    }
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(size);
+                List<Pending> written = new ArrayList<>();
+                for (Pending pending : batch) {
+                    if (pending.rollTo != null) {
+                        flush(buffer, written);
+                        openSegment(pending.rollTo);
+                        pending.done.complete(null);
+                        continue;
+                    }
+                    CRC32 crc = new CRC32();
+                    crc.update(pending.record);
+                    buffer.putInt(pending.record.length);
+                    buffer.putInt((int) crc.getValue());
+                    buffer.put(pending.record);
+                    written.add(pending);
+                }
+                flush(buffer, written);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+                for (Pending pending : batch) {
+                    pending.done.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void flush(ByteBuffer buffer, List<Pending> written) throws IOException {
+        if (written.isEmpty()) {
+            return;
+        }
+        buffer.flip();
+        synchronized (this.segmentLock) {
+            while (buffer.hasRemaining()) {
+                this.segment.write(buffer);
+            }
+            this.segment.force(false);
+        }
+        buffer.clear();
+        for (Pending pending : written) {
+            pending.done.complete(null);
+        }
+        written.clear();
+    }
+
+    private File segmentFile(long seq) {
+        return new File(this.dir, String.format("wal-%020d.log", seq));
+    }
+
+    private File snapshotFile(long seq) {
+        return new File(this.dir, String.format("snapshot-%020d.bin", seq));
+    }
+
+    private static long seqOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(name.indexOf('-') + 1, name.indexOf('.')));
+    }
+
+    private List<File> listFiles(String prefix) {
+        List<File> files = new ArrayList<>();
+        File[] all = this.dir.listFiles();
+        if (all != null) {
+            for (File file : all) {
+                if (file.getName().startsWith(prefix) && !file.getName().endsWith(".tmp")) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort((a, b) -> Long.compare(seqOf(a), seqOf(b)));
+        return files;
+    }
+
+    // Writes a snapshot of the tree. Rolling to a new segment first means every
+    // record in older segments was applied to the tree before the walk started.
+    public void snapshot(TreeNode root, Map<Integer, Integer> portMap) throws IOException {
+        snapshot(root, portMap, Map.of());
+    }
+
+    public void snapshot(TreeNode root, Map<Integer, Integer> portMap, Map<Integer, Long> generations)
+            throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        long seq;
+        synchronized (this.segmentLock) {
+            seq = this.segmentSeq + 1;
+        }
+        Pending roll = new Pending(null, seq);
+        this.queue.add(roll);
+        roll.done.join();
+
+        File tmp = new File(this.dir, snapshotFile(seq).getName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(seq);
+            List<Map.Entry<Integer, Integer>> ports = new ArrayList<>(portMap.entrySet());
+            out.writeInt(ports.size());
+            for (Map.Entry<Integer, Integer> entry : ports) {
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+            List<Map.Entry<Integer, Long>> synced = new ArrayList<>(generations.entrySet());
+            out.writeInt(synced.size());
+            for (Map.Entry<Integer, Long> entry : synced) {
+                out.writeInt(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            writeNode(out, root);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), snapshotFile(seq).toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        for (File old : listFiles("snapshot-")) {
+            if (seqOf(old) < seq) {
+                old.delete();
+            }
+        }
+        for (File old : listFiles("wal-")) {
+            if (seqOf(old) < seq) {
+                old.delete();
+            }
+        }
+    }
+
+    // Children are written as a flagged sequence rather than a counted one
+    // because the directory may change while it is being walked.
+    private void writeNode(DataOutputStream out, TreeNode node) throws IOException {
+        out.writeBoolean(node.isDir);
+        int[] ports = node.sourcePorts;
+        out.writeInt(ports.length);
+        for (int port : ports) {
+            out.writeInt(port);
+        }
+        for (TreeNode child : node.children()) {
+            out.writeBoolean(true);
+            out.writeUTF(child.key);
+            writeNode(out, child);
+        }
+        out.writeBoolean(false);
+    }
+
+    private void readNode(DataInputStream in, TreeNode node) throws IOException {
+        node.isDir = in.readBoolean();
+        int count = in.readInt();
+        int[] ports = new int[count];
+        for (int i = 0; i < count; i++) {
+            ports[i] = in.readInt();
+        }
+        node.setSources(ports);
+        while (in.readBoolean()) {
+            String name = in.readUTF();
+            TreeNode child = new TreeNode(name, false, 0);
+            node.putChild(child);
+            readNode(in, child);
+        }
+    }
+
+    // Rebuilds the namespace from the newest snapshot and the log tail, then
+    // starts appending to a fresh segment. Returns the number of replayed records.
+    public long recover(TreeNode root, Map<Integer, Integer> portMap) throws IOException {
+        return recover(root, portMap, new HashMap<>());
+    }
+
+    // Also restores the generation each storage server was last synced to.
+    public long recover(TreeNode root, Map<Integer, Integer> portMap, Map<Integer, Long> generations)
+            throws IOException {
+        if (!isEnabled()) {
+            return 0;
+        }
+        if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+            throw new IOException("cannot create namespace log directory " + this.dir);
+        }
+
+        long fromSeq = 0;
+        List<File> snapshots = listFiles("snapshot-");
+        if (!snapshots.isEmpty()) {
+            File latest = snapshots.get(snapshots.size() - 1);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(latest), 1 << 16))) {
+                int magic = in.readInt();
+                if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V1) {
+                    throw new IOException("bad snapshot header in " + latest);
+                }
+                fromSeq = in.readLong();
+                int ports = in.readInt();
+                for (int i = 0; i < ports; i++) {
+                    portMap.put(in.readInt(), in.readInt());
+                }
+                if (magic == SNAPSHOT_MAGIC) {
+                    int synced = in.readInt();
+                    for (int i = 0; i < synced; i++) {
+                        generations.put(in.readInt(), in.readLong());
+                    }
+                }
+                readNode(in, root);
+            }
+        }
+
+        long replayed = 0;
+        long lastSeq = fromSeq;
+        for (File segmentFile : listFiles("wal-")) {
+            long seq = seqOf(segmentFile);
+            if (seq < fromSeq) {
+                continue;
+            }
+            lastSeq = Math.max(lastSeq, seq);
+            replayed += replay(segmentFile, root, portMap, generations);
+        }
+
+        start(lastSeq + 1);
+        return replayed;
+    }
+
+    private long replay(File segmentFile, TreeNode root, Map<Integer, Integer> portMap,
+            Map<Integer, Long> generations) throws IOException {
+        long count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile), 1 << 16))) {
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    record = new byte[length];
+                    in.readFully(record);
+                    CRC32 crc = new CRC32();
+                    crc.update(record);
+                    if ((int) crc.getValue() != checksum) {
+                        System.err.println("Ignoring torn record at end of " + segmentFile);
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+
+                DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+                byte type = fields.readByte();
+                String path = fields.readUTF();
+                int port = fields.readInt();
+                apply(root, portMap, generations, type, path, port);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void apply(TreeNode root, Map<Integer, Integer> portMap, Map<Integer, Long> generations,
+            byte type, String path, int port) {
+        if (type == REGISTER) {
+            portMap.put(port, Integer.parseInt(path));
+            return;
+        }
+        if (type == SYNCED) {
+            generations.put(port, Long.parseLong(path));
+            return;
+        }
+
+        Path parsed = Path.of(path);
+        TreeNode node = root.findNode(parsed);
+        switch (type) {
+            case CREATE_FILE:
+                root.addFile(parsed, false, port);
+                break;
+            case CREATE_DIR:
+                root.addFile(parsed, true, 0);
+                break;
+            case DELETE:
+                if (node != null && !parsed.isRoot()) {
+                    root.findNode(parsed.parent()).removeChild(parsed.last());
+                }
+                break;
+            case REPLICA_ADD:
+                if (node != null) {
+                    node.addSource(port);
+                }
+                break;
+            case REPLICA_REMOVE:
+                if (node != null) {
+                    node.removeSource(port);
+                }
+                break;
+            default:
+                throw new IllegalStateException("unknown namespace log record type " + type);
+        }
+    }
+}
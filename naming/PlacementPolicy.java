@@ -0,0 +1,194 @@
+package naming;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import common.Path;
+
+// Chooses the storage servers a new file is created on. Only live nodes are
+// considered; the first node returned holds the primary copy.
+//
+// The policy is chosen with -Dnaming.placement: free-space (the default), hash,
+// most-free or first. -Dnaming.replicationFactor (default 1) sets how many
+// servers each new file is created on.
+public interface PlacementPolicy {
+    // Up to <replicas> distinct live nodes for the file, primary first; fewer if
+    // fewer are up.
+    List<ClusterView.StorageNode> place(Path path, int replicas, ClusterView cluster);
+
+    static PlacementPolicy fromProperties() {
+        String name = System.getProperty("naming.placement", "free-space");
+        switch (name) {
+            case "first":
+                return new First();
+            case "most-free":
+                return new MostFree();
+            case "free-space":
+                return new WeightedFreeSpace();
+            case "hash":
+                return new ConsistentHash(Integer.getInteger("naming.placement.vnodes", 128));
+            default:
+                throw new IllegalArgumentException("unknown placement policy " + name
+                        + ", expected free-space, hash, most-free or first");
+        }
+    }
+
+    // The earliest registered live nodes, as the naming server used to do.
+    class First implements PlacementPolicy {
+        @Override
+        public List<ClusterView.StorageNode> place(Path path, int replicas, ClusterView cluster) {
+            List<ClusterView.StorageNode> live = cluster.liveNodes();
+            return live.subList(0, Math.min(replicas, live.size()));
+        }
+    }
+
+    // The nodes with the most free space as last reported, then the fewest
+    // files. Every create between two heartbeats lands on the same node.
+    class MostFree implements PlacementPolicy {
+        @Override
+        public List<ClusterView.StorageNode> place(Path path, int replicas, ClusterView cluster) {
+            List<ClusterView.StorageNode> live = cluster.liveNodes();
+            live.sort((a, b) -> a.freeBytes != b.freeBytes ? Long.compare(b.freeBytes, a.freeBytes)
+                    : Long.compare(a.fileCount, b.fileCount));
+            return live.subList(0, Math.min(replicas, live.size()));
+        }
+    }
+
+    // Random nodes, each drawn with probability proportional to its free
+    // space. Spreads creates between heartbeats instead of herding onto the
+    // emptiest node, and fills larger volumes proportionally faster. Nodes
+    // that have not reported yet weigh as much as the average reporting node.
+    class WeightedFreeSpace implements PlacementPolicy {
+        @Override
+        public List<ClusterView.StorageNode> place(Path path, int replicas, ClusterView cluster) {
+            List<ClusterView.StorageNode> candidates = cluster.liveNodes();
+            double[] weights = new double[candidates.size()];
+            double known = 0;
+            int reporting = 0;
+            for (ClusterView.StorageNode node : candidates) {
+                if (node.freeBytes >= 0) {
+                    known += node.freeBytes;
+                    reporting++;
+                }
+            }
+            double fallback = reporting == 0 ? 1 : Math.max(1, known / reporting);
+            double total = 0;
+            for (int i = 0; i < weights.length; i++) {
+                long free = candidates.get(i).freeBytes;
+                weights[i] = free >= 0 ? Math.max(1, free) : fallback;
+                total += weights[i];
+            }
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int wanted = Math.min(replicas, candidates.size());
+            List<ClusterView.StorageNode> chosen = new ArrayList<>(wanted);
+            while (chosen.size() < wanted) {
+                int i = draw(weights, random.nextDouble() * total);
+                chosen.add(candidates.get(i));
+                total -= weights[i];
+                weights[i] = 0;
+            }
+            return chosen;
+        }
+
+        // Index of the weight pick falls on. Chosen nodes have weight 0 and
+        // are never returned; if rounding carries pick past the last positive
+        // weight, that weight is the one drawn.
+        private static int draw(double[] weights, double pick) {
+            int last = -1;
+            for (int i = 0; i < weights.length; i++) {
+                if (weights[i] == 0) {
+                    continue;
+                }
+                if (pick < weights[i]) {
+                    return i;
+                }
+                pick -= weights[i];
+                last = i;
+            }
+            return last;
+        }
+    }
+
+    // Consistent hashing with <vnodes> points per live node: a path always maps
+    // to the same nodes while membership is stable, and a node joining or
+    // leaving only moves the paths on its own arcs of the ring.
+    class ConsistentHash implements PlacementPolicy {
+        private static class Ring {
+            final long version;
+            final TreeMap<Long, ClusterView.StorageNode> points;
+            final int nodes;
+
+            Ring(long version, TreeMap<Long, ClusterView.StorageNode> points, int nodes) {
+                this.version = version;
+                this.points = points;
+                this.nodes = nodes;
+            }
+        }
+
+        private final int vnodes;
+        private volatile Ring ring = new Ring(-1, new TreeMap<>(), 0);
+
+        public ConsistentHash(int vnodes) {
+            this.vnodes = vnodes;
+        }
+
+        private Ring ring(ClusterView cluster) {
+            Ring current = this.ring;
+            long version = cluster.membershipVersion();
+            if (current.version == version) {
+                return current;
+            }
+            TreeMap<Long, ClusterView.StorageNode> points = new TreeMap<>();
+            List<ClusterView.StorageNode> live = cluster.liveNodes();
+            for (ClusterView.StorageNode node : live) {
+                for (int i = 0; i < this.vnodes; i++) {
+                    points.put(hash(node.clientPort + "#" + i), node);
+                }
+            }
+            current = new Ring(version, points, live.size());
+            this.ring = current;
+            return current;
+        }
+
+        @Override
+        public List<ClusterView.StorageNode> place(Path path, int replicas, ClusterView cluster) {
+            Ring ring = ring(cluster);
+            int wanted = Math.min(replicas, ring.nodes);
+            List<ClusterView.StorageNode> chosen = new ArrayList<>(wanted);
+            if (wanted == 0) {
+                return chosen;
+            }
+            long start = hash(path.toString());
+            for (Map<Long, ClusterView.StorageNode> arc : List.of(ring.points.tailMap(start), ring.points.headMap(start))) {
+                for (ClusterView.StorageNode node : arc.values()) {
+                    if (!chosen.contains(node)) {
+                        chosen.add(node);
+                        if (chosen.size() == wanted) {
+                            return chosen;
+                        }
+                    }
+                }
+            }
+            return chosen;
+        }
+
+        // 64-bit FNV-1a with a final avalanche step, so nearby keys such as
+        // "7001#1" and "7001#2" land far apart on the ring.
+        static long hash(String key) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+                h ^= b;
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.CopyRequest;
+import common.Path;
+import common.PathRequest;
+import common.SizeReturn;
+import util.RpcClient;
+import util.Util;
+
+// Moves files off storage servers that hold more than their share of data.
+// Each round compares the used bytes servers report in heartbeats with a
+// target proportional to their capacity (used plus free bytes) and migrates
+// files from the servers furthest above it to those below it. The receiver
+// copies the file with /storage_copy, the file's holder list is switched from
+// the donor to the receiver in one step, and the donor's copy is deleted once
+// every lease granted before the switch has expired. A file that is written
+// while it is being copied stays where it was.
+//
+// Migrations are throttled so clients keep their latency: at most
+// -Dnaming.rebalance.maxConcurrent (default 2) copies run at once, copies are
+// started no faster than -Dnaming.rebalance.maxBytesPerSec (default 20 MB/s)
+// allows, and a copy waits while either server reports more than
+// -Dnaming.rebalance.maxForegroundInFlight (default 8) client requests.
+//
+// Rounds run every -Dnaming.rebalance.intervalMillis (default 60000, 0
+// disables). A server is rebalanced once it is more than
+// -Dnaming.rebalance.threshold (default 0.1) above its target, and at most
+// -Dnaming.rebalance.maxMovesPerRound (default 64) files move per round.
+public class Rebalancer {
+    public static final long INTERVAL_MILLIS = Long.getLong("naming.rebalance.intervalMillis", 60000);
+
+    private static final long QUIET_POLL_MILLIS = 200;
+    private static final int QUIET_POLLS = 25;
+
+    // Files sized at once while a round is planned
+    private static final int SIZE_BATCH = 32;
+
+    // A file a donor could give to a receiver, once its size is known
+    private static class Candidate {
+        final TreeNode file;
+        final Path path;
+        final ClusterView.StorageNode donor;
+        final ClusterView.StorageNode receiver;
+        final CompletableFuture<Long> size;
+
+        Candidate(TreeNode file, Path path, ClusterView.StorageNode donor, ClusterView.StorageNode receiver,
+                CompletableFuture<Long> size) {
+            this.file = file;
+            this.path = path;
+            this.donor = donor;
+            this.receiver = receiver;
+            this.size = size;
+        }
+    }
+
+    static class Move {
+        final TreeNode file;
+        final Path path;
+        final ClusterView.StorageNode donor;
+        final ClusterView.StorageNode receiver;
+        final long bytes;
+
+        Move(TreeNode file, Path path, ClusterView.StorageNode donor, ClusterView.StorageNode receiver, long bytes) {
+            this.file = file;
+            this.path = path;
+            this.donor = donor;
+            this.receiver = receiver;
+            this.bytes = bytes;
+        }
+    }
+
+    private final TreeNode root;
+    private final ClusterView cluster;
+    private final NamespaceLog journal;
+    // How long a donor keeps its copy after the switch, so readers that were
+    // sent there before it can finish
+    private final long dropDelayMillis;
+
+    private final double threshold = Double.parseDouble(System.getProperty("naming.rebalance.threshold", "0.1"));
+    private final long maxBytesPerSec = Long.getLong("naming.rebalance.maxBytesPerSec", 20L << 20);
+    private final int maxForegroundInFlight = Integer.getInteger("naming.rebalance.maxForegroundInFlight", 8);
+    private final int maxMovesPerRound = Integer.getInteger("naming.rebalance.maxMovesPerRound", 64);
+    private final Semaphore slots = new Semaphore(Integer.getInteger("naming.rebalance.maxConcurrent", 2));
+    // System.nanoTime() before which the next copy may not start; only the
+    // round thread touches it
+    private long nextStart = 0;
+    // Bytes moved off each donor whose old copy has not been deleted yet, and
+    // so still counts in the donor's reported usage
+    private final Map<Integer, Long> draining = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rebalancer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public final AtomicLong movedFiles = new AtomicLong(0);
+    public final AtomicLong movedBytes = new AtomicLong(0);
+    public final AtomicLong abandoned = new AtomicLong(0);
+
+    public Rebalancer(TreeNode root, ClusterView cluster, NamespaceLog journal, long dropDelayMillis) {
+        this.root = root;
+        this.cluster = cluster;
+        this.journal = journal;
+        this.dropDelayMillis = dropDelayMillis;
+    }
+
+    public void start() {
+        if (INTERVAL_MILLIS <= 0) {
+            return;
+        }
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                runRound();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Plans and runs one round of migrations; returns the number of files moved.
+    public int runRound() {
+        List<Move> moves = plan();
+        if (moves.isEmpty()) {
+            return 0;
+        }
+        long bytes = 0;
+        for (Move move : moves) {
+            bytes += move.bytes;
+        }
+        System.out.printf("Rebalancing: moving %d files (%.1f MB)%n", moves.size(), bytes / 1e6);
+
+        List<CompletableFuture<Boolean>> running = new ArrayList<>(moves.size());
+        for (Move move : moves) {
+            if (!waitForQuiet(move)) {
+                this.abandoned.incrementAndGet();
+                continue;
+            }
+            pace(move.bytes);
+            this.slots.acquireUninterruptibly();
+            running.add(migrate(move).whenComplete((moved, failure) -> this.slots.release()));
+        }
+
+        int moved = 0;
+        for (CompletableFuture<Boolean> migration : running) {
+            if (migration.exceptionally(failure -> false).join()) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    // Picks files to move so that no server ends up below its target and no
+    // server above it gains data.
+    List<Move> plan() {
+        List<ClusterView.StorageNode> nodes = new ArrayList<>();
+        for (ClusterView.StorageNode node : this.cluster.liveNodes()) {
+            if (node.usedBytes >= 0) {
+                nodes.add(node);
+            }
+        }
+        if (nodes.size() < 2) {
+            return List.of();
+        }
+
+        Map<Integer, Long> used = new HashMap<>();
+        long totalUsed = 0;
+        double totalCapacity = 0;
+        for (ClusterView.StorageNode node : nodes) {
+            long bytes = Math.max(0, node.usedBytes - this.draining.getOrDefault(node.clientPort, 0L));
+            used.put(node.clientPort, bytes);
+            totalUsed += bytes;
+            totalCapacity += node.usedBytes + Math.max(0, node.freeBytes);
+        }
+        if (totalUsed == 0) {
+            return List.of();
+        }
+
+        // Bytes above (positive) or below (negative) each server's target
+        Map<Integer, Double> excess = new HashMap<>();
+        Map<Integer, Double> slack = new HashMap<>();
+        List<ClusterView.StorageNode> donors = new ArrayList<>();
+        List<ClusterView.StorageNode> receivers = new ArrayList<>();
+        for (ClusterView.StorageNode node : nodes) {
+            double share = totalCapacity > 0 ? (node.usedBytes + Math.max(0, node.freeBytes)) / totalCapacity
+                    : 1.0 / nodes.size();
+            double target = totalUsed * share;
+            double over = used.get(node.clientPort) - target;
+            excess.put(node.clientPort, over);
+            slack.put(node.clientPort, this.threshold * target);
+            if (over > this.threshold * target) {
+                donors.add(node);
+            } else if (over < 0) {
+                receivers.add(node);
+            }
+        }
+        if (donors.isEmpty() || receivers.isEmpty()) {
+            return List.of();
+        }
+
+        // The namespace is walked lazily, and only until every donor has
+        // found enough files to give. Files are sized SIZE_BATCH at a time,
+        // and a batch is settled before the walk goes on.
+        List<Move> moves = new ArrayList<>();
+        List<Candidate> batch = new ArrayList<>(SIZE_BATCH);
+        int sized = 0;
+        TreeWalk walk = new TreeWalk(this.root, new Path(), 0, null);
+        TreeNode file;
+        while (moves.size() < this.maxMovesPerRound && sized < 4 * this.maxMovesPerRound
+                && (file = walk.next()) != null) {
+            if (file.isDir) {
+                continue;
+            }
+            ClusterView.StorageNode donor = donorOf(file, donors, excess, slack);
+            if (donor == null) {
+                continue;
+            }
+            ClusterView.StorageNode receiver = null;
+            for (ClusterView.StorageNode node : receivers) {
+                if (!file.hasSource(node.clientPort) && !file.isPending(node.clientPort)
+                        && (receiver == null || excess.get(node.clientPort) < excess.get(receiver.clientPort))) {
+                    receiver = node;
+                }
+            }
+            if (receiver == null) {
+                continue;
+            }
+
+            Path path = Path.of(walk.path);
+            batch.add(new Candidate(file, path, donor, receiver, sizeOf(donor, path)));
+            sized++;
+            if (batch.size() == SIZE_BATCH) {
+                settle(batch, moves, excess);
+                if (donorOf(null, donors, excess, slack) == null) {
+                    break;
+                }
+            }
+        }
+        settle(batch, moves, excess);
+        return moves;
+    }
+
+    // The donor with the most excess left that holds file, of those still
+    // above their slack; with a null file, any such donor.
+    private static ClusterView.StorageNode donorOf(TreeNode file, List<ClusterView.StorageNode> donors,
+            Map<Integer, Double> excess, Map<Integer, Double> slack) {
+        ClusterView.StorageNode donor = null;
+        for (ClusterView.StorageNode node : donors) {
+            if (excess.get(node.clientPort) > slack.get(node.clientPort) && (file == null || file.hasSource(node.clientPort))
+                    && (donor == null || excess.get(node.clientPort) > excess.get(donor.clientPort))) {
+                donor = node;
+            }
+        }
+        return donor;
+    }
+
+    // Turns the sized candidates into moves, in the order they were found, as
+    // long as each still fits what its donor has to give and its receiver can
+    // take. Sizes no longer needed are cancelled.
+    private void settle(List<Candidate> batch, List<Move> moves, Map<Integer, Double> excess) {
+        for (Candidate candidate : batch) {
+            if (moves.size() >= this.maxMovesPerRound) {
+                candidate.size.cancel(true);
+                continue;
+            }
+            long bytes = candidate.size.join();
+            int donor = candidate.donor.clientPort;
+            int receiver = candidate.receiver.clientPort;
+            // -1 if the donor could not size the file; an empty one would move
+            // no bytes
+            if (bytes <= 0 || bytes > excess.get(donor) || bytes > -excess.get(receiver)) {
+                continue;
+            }
+            excess.merge(donor, (double) -bytes, Double::sum);
+            excess.merge(receiver, (double) bytes, Double::sum);
+            moves.add(new Move(candidate.file, candidate.path, candidate.donor, candidate.receiver, bytes));
+        }
+        batch.clear();
+    }
+
+    // Waits while either server is busy with clients; false if it stays busy.
+    private boolean waitForQuiet(Move move) {
+        for (int i = 0; i < QUIET_POLLS; i++) {
+            if (!move.donor.alive || !move.receiver.alive) {
+                return false;
+            }
+            if (move.donor.inFlight <= this.maxForegroundInFlight
+                    && move.receiver.inFlight <= this.maxForegroundInFlight) {
+                return true;
+            }
+            try {
+                Thread.sleep(QUIET_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Spaces copy starts so that, on average, no more than maxBytesPerSec are
+    // moved. A single file larger than a second's budget still copies at full
+    // speed, but delays the copies after it accordingly.
+    private void pace(long bytes) {
+        long now = System.nanoTime();
+        long wait = this.nextStart - now;
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.nextStart = Math.max(now, this.nextStart) + (long) (bytes * 1e9 / this.maxBytesPerSec);
+    }
+
+    private CompletableFuture<Boolean> migrate(Move move) {
+        TreeNode file = move.file;
+        int donor = move.donor.clientPort;
+        int receiver = move.receiver.clientPort;
+        // A move that is already ruled out does not allocate the file's stats
+        if (file.removed || !file.hasSource(donor) || file.hasSource(receiver)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        AccessStats stats = file.stats();
+        if (!stats.addPending(receiver)) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        int epoch;
+        synchronized (file) {
+            if (file.isWriteLocked() || file.removed || !file.hasSource(donor) || file.hasSource(receiver)) {
+                stats.removePending(receiver);
+                return CompletableFuture.completedFuture(false);
+            }
+            epoch = stats.writeEpoch;
+        }
+
+        move.receiver.copiesInFlight.incrementAndGet();
+        return copy(move).handle((copied, failure) -> {
+            move.receiver.copiesInFlight.decrementAndGet();
+            if (failure != null || !copied) {
+                stats.removePending(receiver);
+                System.err.println("Moving " + move.path + " to " + receiver + " failed: " + failure);
+                return false;
+            }
+
+            // A writer that was granted during the copy has bumped the epoch or
+            // still holds the file
+            boolean switched;
+            synchronized (file) {
+                switched = !file.removed && !file.isWriteLocked() && stats.writeEpoch == epoch
+                        && file.hasSource(donor) && !file.hasSource(receiver);
+                if (switched) {
+                    file.replaceSource(donor, receiver);
+                    this.journal.addReplica(move.path.toString(), receiver);
+                    this.journal.removeReplica(move.path.toString(), donor);
+                }
+            }
+            stats.removePending(receiver);
+
+            if (!switched) {
+                drop(move.receiver, move.path);
+                return false;
+            }
+            this.movedFiles.incrementAndGet();
+            this.movedBytes.addAndGet(move.bytes);
+            this.draining.merge(donor, move.bytes, Long::sum);
+            this.scheduler.schedule(() -> dropMoved(move), this.dropDelayMillis, TimeUnit.MILLISECONDS);
+            return true;
+        });
+    }
+
+    // Deletes the donor's copy unless the path has meanwhile been created or
+    // copied there again.
+    private void dropMoved(Move move) {
+        TreeNode current = this.root.findNode(move.path);
+        if (current == null || current.isDir || !current.hasSource(move.donor.clientPort)) {
+            drop(move.donor, move.path).join();
+        }
+        this.draining.merge(move.donor.clientPort, -move.bytes, Long::sum);
+    }
+
+    // Answers once the whole file has been copied, so exempt from the RPC timeout
+    protected CompletableFuture<Boolean> copy(Move move) {
+        String url = String.format("http://127.0.0.1:%d/storage_copy", move.receiver.commandPort);
+        return RpcClient.postAsync(url, new CopyRequest(move.path.toString(), "127.0.0.1", move.donor.clientPort),
+                null)
+                .thenApply(response -> response.statusCode() == 200);
+    }
+
+    protected CompletableFuture<Void> drop(ClusterView.StorageNode node, Path path) {
+        return Util.fanOut("storage_delete", List.of(node.commandPort), new PathRequest(path.toString()));
+    }
+
+    // Size of the donor's copy, -1 if it cannot be read.
+    protected CompletableFuture<Long> sizeOf(ClusterView.StorageNode donor, Path path) {
+        String url = String.format("http://127.0.0.1:%d/storage_size", donor.commandPort);
+        return RpcClient.postAsync(url, new PathRequest(path.toString())).handle((response, failure) -> {
+            try {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (response.statusCode() != 200) {
+                    return -1L;
+                }
+                return RpcClient.decode(response, SizeReturn.class).size;
+            } catch (Throwable e) {
+                System.err.println("Could not size " + path + " on " + donor.clientPort + ": " + e.getMessage());
+                return -1L;
+            }
+        });
+    }
+}
@@ -0,0 +1,104 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Orders the storage servers holding a file for a reader, best first. The first
+// entry is what /get_storage returns; the rest are failover candidates. No
+// holders gives an empty order.
+//
+// The selector is chosen with -Dnaming.replicaSelector: first, round-robin (the
+// default), p2c or least-latency.
+public interface ReplicaSelector {
+    List<Integer> order(List<Integer> holders, ClusterView cluster, long now);
+
+    static ReplicaSelector fromProperties() {
+        String name = System.getProperty("naming.replicaSelector", "round-robin");
+        switch (name) {
+            case "first":
+                return (holders, cluster, now) -> holders;
+            case "round-robin":
+                return new RoundRobin();
+            case "p2c":
+                return new PowerOfTwoChoices();
+            case "least-latency":
+                return new LeastLatency();
+            default:
+                throw new IllegalArgumentException("unknown replica selector " + name
+                        + ", expected first, round-robin, p2c or least-latency");
+        }
+    }
+
+    // Estimated outstanding work on a node: what it last reported serving plus
+    // the readers recently sent its way.
+    static double pressure(ClusterView cluster, int port, long now) {
+        ClusterView.StorageNode node = cluster.get(port);
+        if (node == null) {
+            return Double.MAX_VALUE;
+        }
+        return node.inFlight + node.assignments.perSecond(now);
+    }
+
+    class RoundRobin implements ReplicaSelector {
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public List<Integer> order(List<Integer> holders, ClusterView cluster, long now) {
+            int n = holders.size();
+            if (n == 0) {
+                return new ArrayList<>();
+            }
+            int start = Math.floorMod(this.next.getAndIncrement(), n);
+            List<Integer> ordered = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                ordered.add(holders.get((start + i) % n));
+            }
+            return ordered;
+        }
+    }
+
+    // Samples two holders and prefers the one under less pressure, which avoids
+    // herding onto a single least-loaded node when load reports are stale.
+    class PowerOfTwoChoices implements ReplicaSelector {
+        @Override
+        public List<Integer> order(List<Integer> holders, ClusterView cluster, long now) {
+            List<Integer> ordered = new ArrayList<>(holders);
+            int n = ordered.size();
+            if (n < 2) {
+                return ordered;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int a = random.nextInt(n);
+            int b = random.nextInt(n - 1);
+            if (b >= a) {
+                b++;
+            }
+            int best = pressure(cluster, ordered.get(a), now) <= pressure(cluster, ordered.get(b), now) ? a : b;
+            int other = best == a ? b : a;
+            Integer first = ordered.get(best);
+            Integer second = ordered.get(other);
+            ordered.remove(first);
+            ordered.remove(second);
+            ordered.add(0, second);
+            ordered.add(0, first);
+            return ordered;
+        }
+    }
+
+    // Prefers the lowest reported latency. Nodes that have not reported yet go
+    // first so they get measured; ties go to the node under less pressure.
+    class LeastLatency implements ReplicaSelector {
+        @Override
+        public List<Integer> order(List<Integer> holders, ClusterView cluster, long now) {
+            List<Integer> ordered = new ArrayList<>(holders);
+            ordered.sort(Comparator.<Integer>comparingDouble(port -> {
+                ClusterView.StorageNode node = cluster.get(port);
+                return node == null ? Double.MAX_VALUE : node.latencyMillis;
+            }).thenComparingDouble(port -> pressure(cluster, port, now)));
+            return ordered;
+        }
+    }
+}
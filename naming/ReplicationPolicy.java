@@ -0,0 +1,45 @@
+package naming;
+
+import java.util.List;
+
+// Decides when a file gets more copies. The Replicator calls it after every
+// lock grant on a file and carries out the copies; invalidating stale copies
+// after a write is not up to the policy, since it is needed for consistency.
+//
+// The policy is chosen with -Dnaming.replicationPolicy: threshold (the default)
+// or adaptive.
+public interface ReplicationPolicy {
+    ReplicationPolicy NEVER = new ReplicationPolicy() {
+        @Override
+        public List<Integer> onRead(TreeNode file, ClusterView cluster, long now) {
+            return List.of();
+        }
+
+        @Override
+        public void onWrite(TreeNode file, long now) {
+        }
+    };
+
+    // Records a shared lock on the file and returns the client ports of the
+    // storage servers that should receive a new copy.
+    List<Integer> onRead(TreeNode file, ClusterView cluster, long now);
+
+    // Records an exclusive lock on the file.
+    void onWrite(TreeNode file, long now);
+
+    static ReplicationPolicy fromProperties() {
+        String name = System.getProperty("naming.replicationPolicy", "threshold");
+        switch (name) {
+            case "threshold":
+                return new ThresholdReplicationPolicy(Integer.getInteger("naming.replication.threshold", 20));
+            case "adaptive":
+                return new AdaptiveReplicationPolicy(
+                        Double.parseDouble(System.getProperty("naming.replication.readsPerReplica", "20")),
+                        Integer.getInteger("naming.replication.maxReplicas", 3),
+                        Double.parseDouble(System.getProperty("naming.replication.minReadsPerCopy", "20")));
+            default:
+                throw new IllegalArgumentException("unknown replication policy " + name
+                        + ", expected threshold or adaptive");
+        }
+    }
+}
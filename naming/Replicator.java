@@ -0,0 +1,169 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import common.CopyRequest;
+import common.Path;
+import common.PathRequest;
+import util.RpcClient;
+import util.Util;
+
+// Applies a ReplicationPolicy to lock grants. Copies run asynchronously: the
+// lock response does not wait for them, and a copy only joins sourcePorts once
+// the storage server has confirmed it. A write invalidates every copy but the
+// primary before the writer is answered; a copy that was still in flight when
+// the write happened is dropped instead of being added. Once the writer
+// releases its lock, the file is copied again until it is back to the
+// replication factor it was created with.
+public class Replicator {
+    public static final Replicator NONE = new Replicator(ReplicationPolicy.NEVER, new ClusterView(), NamespaceLog.NONE);
+
+    private final ReplicationPolicy policy;
+    public final ClusterView cluster;
+    private final NamespaceLog journal;
+    // Holders every file is kept at after a write (-Dnaming.replicationFactor)
+    private final int replicationFactor;
+
+    public Replicator(ReplicationPolicy policy, ClusterView cluster, NamespaceLog journal) {
+        this(policy, cluster, journal, 1);
+    }
+
+    public Replicator(ReplicationPolicy policy, ClusterView cluster, NamespaceLog journal, int replicationFactor) {
+        this.policy = policy;
+        this.cluster = cluster;
+        this.journal = journal;
+        this.replicationFactor = replicationFactor;
+    }
+
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    // Called once a lock on path is granted, before the client is answered.
+    public void afterGrant(TreeNode file, Path path, boolean exclusive) {
+        if (path.isRoot() || file.isDir) {
+            return;
+        }
+
+        long now = now();
+        if (exclusive) {
+            this.policy.onWrite(file, now);
+            invalidate(file, path);
+        } else {
+            this.cluster.recordRead(file.sourcePorts, now);
+            for (int target : this.policy.onRead(file, this.cluster, now)) {
+                startCopy(file, path, target);
+            }
+        }
+    }
+
+    // Called once a lock on path is released. After a write, the copies that
+    // invalidate dropped are made again from the primary, on the best copy
+    // targets, up to the replication factor.
+    public void afterRelease(TreeNode file, Path path, boolean exclusive) {
+        if (!exclusive || this.replicationFactor <= 1 || path.isRoot() || file.isDir || file.removed) {
+            return;
+        }
+
+        List<Integer> holders = file.sources();
+        AccessStats stats = file.peekStats();
+        int missing = this.replicationFactor - holders.size() - (stats == null ? 0 : stats.pendingCount());
+        for (ClusterView.StorageNode node : this.cluster.rankForCopy(holders, now())) {
+            if (missing <= 0) {
+                break;
+            }
+            if (startCopy(file, path, node.clientPort)) {
+                missing--;
+            }
+        }
+    }
+
+    private void invalidate(TreeNode file, Path path) {
+        List<Integer> stale;
+        synchronized (file) {
+            file.stats().writeEpoch++;
+            List<Integer> holders = file.sources();
+            if (holders.size() <= 1) {
+                return;
+            }
+            // Readers are routed to the primary only from here on
+            stale = new ArrayList<>(holders.subList(1, holders.size()));
+            file.setSources(TreeNode.ports(holders.get(0)));
+            for (Integer port : stale) {
+                this.journal.removeReplica(path.toString(), port);
+            }
+        }
+
+        System.out.println("Deleting copies on: " + stale);
+        List<Integer> commandPorts = new ArrayList<>();
+        for (Integer port : stale) {
+            ClusterView.StorageNode node = this.cluster.get(port);
+            if (node != null) {
+                commandPorts.add(node.commandPort);
+            }
+        }
+        drop(commandPorts, path.toString()).join();
+    }
+
+    // Starts copying the file to target unless a copy there is already in
+    // flight; returns whether one was started.
+    private boolean startCopy(TreeNode file, Path path, int target) {
+        ClusterView.StorageNode node = this.cluster.get(target);
+        if (node == null || !file.stats().addPending(target)) {
+            return false;
+        }
+
+        int epoch;
+        List<Integer> sources;
+        synchronized (file) {
+            epoch = file.stats().writeEpoch;
+            sources = this.cluster.live(file.sourcePorts);
+        }
+        if (sources.isEmpty()) {
+            // no holder left to copy from
+            file.stats().removePending(target);
+            return false;
+        }
+        int source = sources.get(0);
+
+        node.copiesInFlight.incrementAndGet();
+        copy(node, path.toString(), source).whenComplete((copied, failure) -> {
+            node.copiesInFlight.decrementAndGet();
+            if (failure != null || !copied) {
+                file.stats().removePending(target);
+                System.err.println("Copy of " + path + " to " + target + " failed: " + failure);
+                return;
+            }
+
+            boolean stale;
+            synchronized (file) {
+                stale = file.removed || file.stats().writeEpoch != epoch;
+                if (!stale && file.addSource(target)) {
+                    this.journal.addReplica(path.toString(), target);
+                }
+            }
+            file.stats().removePending(target);
+            if (stale) {
+                // written or deleted while copying
+                drop(List.of(node.commandPort), path.toString());
+            }
+        });
+        return true;
+    }
+
+    // Asks the target to copy path from the storage server at sourcePort. The
+    // call answers only once the whole file has been copied, so it is exempt
+    // from the RPC timeout.
+    protected CompletableFuture<Boolean> copy(ClusterView.StorageNode target, String path, int sourcePort) {
+        String url = String.format("http://127.0.0.1:%d/storage_copy", target.commandPort);
+        return RpcClient.postAsync(url, new CopyRequest(path, "127.0.0.1", sourcePort), null)
+                .thenApply(response -> response.statusCode() == 200);
+    }
+
+    protected CompletableFuture<Void> drop(Collection<Integer> commandPorts, String path) {
+        return Util.fanOut("storage_delete", commandPorts, new PathRequest(path));
+    }
+}
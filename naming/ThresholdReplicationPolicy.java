@@ -0,0 +1,33 @@
+package naming;
+
+import java.util.List;
+
+// The original rule: every <threshold> shared locks the file gets one more
+// copy, on the first registered storage server that does not hold it yet.
+public class ThresholdReplicationPolicy implements ReplicationPolicy {
+    private final int threshold;
+
+    public ThresholdReplicationPolicy(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public List<Integer> onRead(TreeNode file, ClusterView cluster, long now) {
+        if (file.stats().readCount.incrementAndGet() < this.threshold) {
+            return List.of();
+        }
+        file.stats().readCount.set(0);
+
+        for (ClusterView.StorageNode node : cluster.nodes()) {
+            if (node.accepting() && !file.hasSource(node.clientPort) && !file.stats().isPending(node.clientPort)) {
+                return List.of(node.clientPort);
+            }
+        }
+        return List.of();
+    }
+
+    @Override
+    public void onWrite(TreeNode file, long now) {
+        file.stats().readCount.set(0);
+    }
+}
@@ -1,32 +1,63 @@
 package naming;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
 
 import com.google.gson.Gson;
 import common.ExceptionReturn;
+import common.Path;
+import common.PathRequest;
 import util.Util;
 
 
 public class TreeNode {
     public static final Gson gson = new Gson();
-    public final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
-    public final ReentrantLock queueLock = new ReentrantLock();
+    // Directories with up to SMALL_DIRECTORY children keep them in a sorted
+    // array; a larger one moves them to a sorted map once and for all.
+    private static final int SMALL_DIRECTORY = 32;
+    private static final TreeNode[] NO_CHILDREN = new TreeNode[0];
+    // One shared array per port, since most files have a single holder
+    private static final Map<Integer, int[]> SINGLE_PORTS = new ConcurrentHashMap<>();
+
+    // A node's reader/writer lock, allocated when the node is first locked and
+    // dropped again once it is free, so only nodes in use pay for it. Guarded
+    // by the node's monitor; waiters park on their AccessRequest future.
+    private static class LockState {
+        int readCount = 0;
+        boolean writeAccess = false;
+        final Queue<AccessRequest> accessQueue = new ArrayDeque<>(4);
+    }
+
     public final String key;
     public boolean isDir;
-    public List<Integer> sourcePorts;
-    public final AtomicInteger replicationReadCount = new AtomicInteger(0);
-    public final Map<String, TreeNode> children = new ConcurrentHashMap<>();
-    public final AtomicInteger readCount = new AtomicInteger(0);
-    public final Queue<AccessRequest> accessQueue = new LinkedList<>();
-    public boolean writeAccess = false;
+    // Client ports of the storage servers holding the file, primary first.
+    // Arrays are shared between nodes and never changed in place: holders are
+    // changed by replacing the array, under the node's monitor.
+    public volatile int[] sourcePorts;
+    // Set under this node's monitor once it has been unlinked from its parent, so
+    // a concurrent create cannot attach children to a deleted directory.
+    public volatile boolean removed = false;
+    private LockState lockState;
+    private volatile AccessStats stats;
+    // TreeNode[] sorted by key, replaced as a whole on every change, or a
+    // ConcurrentSkipListMap<String, TreeNode> for a large directory. Both keep
+    // children sorted by name, so /list and /walk can return them in pages.
+    // Lookups never lock; changes are made under this node's monitor.
+    private volatile Object children = NO_CHILDREN;
 
     public boolean isDir(){
         return this.isDir;
@@ -35,215 +66,547 @@ public class TreeNode {
     public TreeNode(String key, boolean isDir, int source) {
         this.key = key;
         this.isDir = isDir;
-        this.sourcePorts = new ArrayList<>();
-        this.sourcePorts.add(source);
+        this.sourcePorts = ports(source);
+    }
+
+    // Shared single-port array for port
+    public static int[] ports(int port) {
+        return SINGLE_PORTS.computeIfAbsent(port, p -> new int[] { p });
     }
 
-    public TreeNode findNode(String path) {
-        if (path == "/") {
-            return this;
+    // Per-file access history, created by the first policy that records any
+    public AccessStats stats() {
+        AccessStats current = this.stats;
+        if (current == null) {
+            synchronized (this) {
+                current = this.stats;
+                if (current == null) {
+                    current = new AccessStats();
+                    this.stats = current;
+                }
+            }
         }
+        return current;
+    }
 
-        String[] parts = path.split("/");
-        TreeNode current = this;
+    // Access history if any was recorded, or null; for checks that only read
+    // it, so they do not allocate stats for every file they visit
+    public AccessStats peekStats() {
+        return this.stats;
+    }
 
-        for (String part : parts) {
-            if (part == "") {
-                continue;
-            }
-            TreeNode child = current.children.get(part);
-            if (child == null) {
-                return null;
+    // Whether a copy of this file to clientPort is in flight
+    public boolean isPending(int clientPort) {
+        AccessStats current = this.stats;
+        return current != null && current.isPending(clientPort);
+    }
+
+    public boolean hasSource(int port) {
+        for (int source : this.sourcePorts) {
+            if (source == port) {
+                return true;
             }
-            current = child;
         }
+        return false;
+    }
 
-        return current;
+    // The holders as a list, for the cluster view and placement APIs
+    public List<Integer> sources() {
+        int[] ports = this.sourcePorts;
+        List<Integer> list = new ArrayList<>(ports.length);
+        for (int port : ports) {
+            list.add(port);
+        }
+        return list;
+    }
+
+    public synchronized void setSources(int[] ports) {
+        this.sourcePorts = ports.length == 1 ? ports(ports[0]) : ports;
     }
 
-    public void lock(String path, Boolean exclusive, List<Integer> storageNodes, List<Integer> client_ports,
-            Map<Integer, Integer> port_map) throws ExceptionReturn {
-        TreeNode node = this.findNode(path);
-        if (node == null) {
-            throw new ExceptionReturn("FILE_NOT_FOUND_EXCEPTION", path + " does not exist");
+    // Appends a holder; false if it already was one
+    public synchronized boolean addSource(int port) {
+        if (hasSource(port)) {
+            return false;
         }
-        String[] parts = path.split("/");
-        TreeNode current = this;
+        int[] ports = Arrays.copyOf(this.sourcePorts, this.sourcePorts.length + 1);
+        ports[ports.length - 1] = port;
+        this.sourcePorts = ports;
+        return true;
+    }
 
-        if (path == "/") {
-            current.queueLock.lock();
-            AccessRequest request = new AccessRequest(exclusive);
-            current.accessQueue.add(request);
-            current.queueLock.unlock();
+    // Removes a holder; false if it was not one
+    public synchronized boolean removeSource(int port) {
+        int[] ports = this.sourcePorts;
+        for (int i = 0; i < ports.length; i++) {
+            if (ports[i] == port) {
+                int[] remaining = new int[ports.length - 1];
+                System.arraycopy(ports, 0, remaining, 0, i);
+                System.arraycopy(ports, i + 1, remaining, i, remaining.length - i);
+                setSources(remaining);
+                return true;
+            }
+        }
+        return false;
+    }
 
-            processQueue(current);
-            request.done.complete(true);
-            return;
+    // Puts to in from's place among the holders; false if from was not one
+    public synchronized boolean replaceSource(int from, int to) {
+        int[] ports = this.sourcePorts.clone();
+        for (int i = 0; i < ports.length; i++) {
+            if (ports[i] == from) {
+                ports[i] = to;
+                setSources(ports);
+                return true;
+            }
         }
+        return false;
+    }
 
-        String lastElement = parts[parts.length - 1];
-
-        for(String part:parts){
-            current = current.children.get(part);
-            
-            //Start from the last element
-            if (current.key == lastElement){
-                //Release queue lock to append into the queue
-                current.queueLock.lock();
-                AccessRequest request = new AccessRequest(exclusive);
-                current.accessQueue.add(request);
-                current.queueLock.unlock();
-
-                processQueue(current);
-                request.done.complete(true);
-
-                if(!exclusive) {
-                    current.replicationReadCount.incrementAndGet();
-                    int readCount = current.replicationReadCount.get();
-                    // Replicate in other servers if the file is accessed frequently
-                    if(readCount >= 20){
-                        current.replicationReadCount.set(0);
-                        Util.handleReplication(current, storageNodes, path, client_ports, port_map);
-                    }
-                } else {
-                    current.replicationReadCount.set(0);
-                    Util.handleReplicaDeletion(current, path, port_map);
-                }
-            } else {
-                current.queueLock.lock();
-                AccessRequest request = new AccessRequest(false);
-                current.accessQueue.add(request);
-                current.queueLock.unlock();
+    public TreeNode getChild(String name) {
+        Object current = this.children;
+        if (current instanceof TreeNode[]) {
+            TreeNode[] array = (TreeNode[]) current;
+            int index = search(array, name);
+            return index >= 0 ? array[index] : null;
+        }
+        return childMap(current).get(name);
+    }
 
-                processQueue(current);
-                request.done.complete(true);
+    @SuppressWarnings("unchecked")
+    private static ConcurrentSkipListMap<String, TreeNode> childMap(Object children) {
+        return (ConcurrentSkipListMap<String, TreeNode>) children;
+    }
+
+    // Index of name in the sorted array, or -(insertion point) - 1
+    private static int search(TreeNode[] array, String name) {
+        int low = 0;
+        int high = array.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = array[mid].key.compareTo(name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
             }
         }
-        return;
+        return -(low + 1);
     }
 
+    // Note: counts a large directory one child at a time
+    public int childCount() {
+        Object current = this.children;
+        if (current instanceof TreeNode[]) {
+            return ((TreeNode[]) current).length;
+        }
+        return childMap(current).size();
+    }
 
+    // The children in name order. Iteration is weakly consistent: it never
+    // fails on concurrent changes and never returns a child twice.
+    public Collection<TreeNode> children() {
+        Object current = this.children;
+        if (current instanceof TreeNode[]) {
+            return Collections.unmodifiableList(Arrays.asList((TreeNode[]) current));
+        }
+        return childMap(current).values();
+    }
 
-    private void processQueue(TreeNode current) {
-        current.queueLock.lock();
-        try {
-            while(!current.accessQueue.isEmpty()) {
-                AccessRequest request = current.accessQueue.poll();
-                //if request is exclusive and no other process has access
-                if(request.isExclusive() && current.readCount.get() == 0 && !current.writeAccess) {
-                    current.rwLock.writeLock().lock();
-                   
-                    current.writeAccess = true;
-                    request.done.complete(true);
-                    
-                }
-                //if request is shared and no other process has exclusive access
-                else if(!request.isExclusive() && !current.writeAccess) {
-                    current.rwLock.readLock().lock();
-                    try {
-                        current.readCount.incrementAndGet();
-                        request.done.complete(true);
-                    } finally {
-                        current.rwLock.readLock().unlock();
-                    }
-                } else {
-                    // Requeue the request if we can't process it now
-                    current.accessQueue.add(request);
-                    break;
-                }
+    // The children named after the given name, in name order; all of them if
+    // it is null
+    public Iterator<TreeNode> childrenAfter(String after) {
+        Object current = this.children;
+        if (current instanceof TreeNode[]) {
+            TreeNode[] array = (TreeNode[]) current;
+            int from = 0;
+            if (after != null) {
+                int index = search(array, after);
+                from = index >= 0 ? index + 1 : -index - 1;
             }
-        } finally {
-            current.queueLock.unlock();
+            return Collections.unmodifiableList(Arrays.asList(array).subList(from, array.length)).iterator();
         }
+        ConcurrentSkipListMap<String, TreeNode> map = childMap(current);
+        return (after == null ? map : map.tailMap(after, false)).values().iterator();
     }
 
+    // Adds or replaces the child with the same name
+    public synchronized void putChild(TreeNode child) {
+        Object current = this.children;
+        if (!(current instanceof TreeNode[])) {
+            childMap(current).put(child.key, child);
+            return;
+        }
+        TreeNode[] array = (TreeNode[]) current;
+        int index = search(array, child.key);
+        if (index >= 0) {
+            TreeNode[] replaced = array.clone();
+            replaced[index] = child;
+            this.children = replaced;
+        } else if (array.length < SMALL_DIRECTORY) {
+            int at = -index - 1;
+            TreeNode[] grown = new TreeNode[array.length + 1];
+            System.arraycopy(array, 0, grown, 0, at);
+            grown[at] = child;
+            System.arraycopy(array, at, grown, at + 1, array.length - at);
+            this.children = grown;
+        } else {
+            ConcurrentSkipListMap<String, TreeNode> map = new ConcurrentSkipListMap<>();
+            for (TreeNode node : array) {
+                map.put(node.key, node);
+            }
+            map.put(child.key, child);
+            this.children = map;
+        }
+    }
 
-    public void unlock(String path, Boolean exclusive) throws ExceptionReturn{
-        TreeNode node = this.findNode(path);
-        if(node == null){
-            throw new ExceptionReturn("IllegalArgumentException", "IllegalArgumentException");
+    // Unlinks the named child and returns it, null if there was none. A large
+    // directory keeps its map when it shrinks again.
+    public synchronized TreeNode removeChild(String name) {
+        Object current = this.children;
+        if (!(current instanceof TreeNode[])) {
+            return childMap(current).remove(name);
         }
+        TreeNode[] array = (TreeNode[]) current;
+        int index = search(array, name);
+        if (index < 0) {
+            return null;
+        }
+        TreeNode[] shrunk = array.length == 1 ? NO_CHILDREN : new TreeNode[array.length - 1];
+        System.arraycopy(array, 0, shrunk, 0, index);
+        System.arraycopy(array, index + 1, shrunk, index, shrunk.length - index);
+        this.children = shrunk;
+        return array[index];
+    }
 
+    // Walks the pre-split path components from this node without allocating.
+    public TreeNode findNode(Path path) {
         TreeNode current = this;
+        for (int i = 0; i < path.depth() && current != null; i++) {
+            current = current.getChild(path.component(i));
+        }
+        return current;
+    }
 
-        if(path == "/"){
-            if(exclusive){
-                // Release the exclusive lock
-                current.writeAccess = false;
-                current.rwLock.writeLock().unlock();
-                processQueue(current);
+    // Resolves every node from this one down to path in a single walk, so the
+    // caller can lock ancestors in order without looking the path up again.
+    private TreeNode[] resolveChain(Path path) {
+        TreeNode[] chain = new TreeNode[path.depth() + 1];
+        chain[0] = this;
+        for (int i = 0; i < path.depth(); i++) {
+            chain[i + 1] = chain[i].getChild(path.component(i));
+            if (chain[i + 1] == null) {
+                return null;
+            }
+        }
+        return chain;
+    }
+
+    // Queues a request on the node and returns it; the request's future completes
+    // when it is granted. A request is granted on arrival only if nobody is
+    // waiting ahead of it, so writers are not starved by a stream of readers.
+    // A node that has been deleted fails the request instead.
+    private AccessRequest acquire(TreeNode current, boolean exclusive) {
+        AccessRequest request = new AccessRequest(exclusive);
+        synchronized (current) {
+            if (current.removed) {
+                request.done.completeExceptionally(notFound(current));
+                return request;
+            }
+            if (current.lockState == null) {
+                current.lockState = new LockState();
+            }
+            LockState state = current.lockState;
+            if(state.accessQueue.isEmpty() && canGrant(state, exclusive)) {
+                grant(state, request);
             } else {
-                // Release the shared lock
-                current.readCount.decrementAndGet();
-                current.rwLock.readLock().unlock();
-                processQueue(current);
+                state.accessQueue.add(request);
+                return request;
             }
-            return;
+        }
+        request.done.complete(true);
+        return request;
+    }
+
+    private static boolean canGrant(LockState state, boolean exclusive) {
+        return exclusive ? state.readCount == 0 && !state.writeAccess : !state.writeAccess;
+    }
+
+    private static void grant(LockState state, AccessRequest request) {
+        if(request.isExclusive()) {
+            state.writeAccess = true;
+        } else {
+            state.readCount++;
+        }
+    }
+
+    private static ExceptionReturn notFound(TreeNode node) {
+        return new ExceptionReturn("FileNotFoundException", node.key + " was deleted");
+    }
+
+    // Requests shared access on every ancestor, from the root downwards, and then
+    // the requested access on the node itself. Each request is only queued once
+    // the previous one is granted, and no thread waits in between: the chain
+    // advances in whichever thread grants the previous request. If a node was
+    // deleted on the way, the ancestors already granted are released again.
+    private CompletableFuture<Boolean> acquireChain(TreeNode[] chain, int from, boolean exclusive) {
+        TreeNode node = chain[from];
+        boolean exclusiveHere = exclusive && from == chain.length - 1;
+        CompletableFuture<Boolean> granted = acquire(node, exclusiveHere).done;
+        if (from == chain.length - 1) {
+            return granted;
+        }
+        return granted.thenCompose(v -> acquireChain(chain, from + 1, exclusive).whenComplete((rest, error) -> {
+            if (error != null) {
+                release(node, false);
+            }
+        }));
+    }
+
+    // Locks path for shared or exclusive access; every ancestor is locked for
+    // shared access first, from the root downwards. Blocks until granted, and
+    // returns the locked nodes from the root down, which unlock releases.
+    public TreeNode[] lock(Path path, Boolean exclusive, Replicator replicator) throws ExceptionReturn {
+        TreeNode[] chain = resolveChain(path);
+        if (chain == null) {
+            throw new ExceptionReturn("FileNotFoundException", path + " does not exist");
+        }
+
+        try {
+            acquireChain(chain, 0, exclusive).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof ExceptionReturn) {
+                throw (ExceptionReturn) e.getCause();
+            }
+            throw e;
+        }
+        try {
+            replicator.afterGrant(chain[chain.length - 1], path, exclusive);
+        } catch (RuntimeException e) {
+            unlock(chain, exclusive);
+            throw e;
+        }
+        return chain;
+    }
+
+    // Non-blocking variant of lock. The returned future completes with the locked
+    // nodes once the lock is granted and the replication bookkeeping, which may
+    // call storage servers, has run on the given executor. It fails with a
+    // FileNotFoundException if the path is deleted while the request waits.
+    public CompletableFuture<TreeNode[]> lockAsync(Path path, boolean exclusive, Replicator replicator,
+            Executor executor) throws ExceptionReturn {
+        TreeNode[] chain = resolveChain(path);
+        if (chain == null) {
+            throw new ExceptionReturn("FileNotFoundException", path + " does not exist");
         }
 
-        String[] parts = path.split("/");
-        String lastElement = parts[parts.length - 1];
-        for(String part: parts){
-            current = current.children.get(part);
-            if(current.key == lastElement && exclusive){
-                // Release the exclusive lock
-                current.writeAccess = false;
-                current.rwLock.writeLock().unlock();
-                processQueue(current);
+        TreeNode current = chain[chain.length - 1];
+        return acquireChain(chain, 0, exclusive).thenApplyAsync(v -> {
+            try {
+                replicator.afterGrant(current, path, exclusive);
+            } catch (RuntimeException e) {
+                unlock(chain, exclusive);
+                throw e;
+            }
+            return chain;
+        }, executor);
+    }
+
+    // Releases one hold on the node and grants waiters in FIFO order: either the
+    // writer at the head of the queue, or the whole run of readers at the head.
+    // Futures are completed after the monitor is dropped so woken threads do not
+    // contend on it.
+    private static void release(TreeNode current, boolean exclusive) {
+        List<AccessRequest> granted = new ArrayList<>();
+        synchronized (current) {
+            LockState state = current.lockState;
+            if(state == null){
+                return;
+            }
+            if(exclusive){
+                state.writeAccess = false;
             } else {
-                // Release the shared lock
-                current.readCount.decrementAndGet();
-                current.rwLock.readLock().unlock();
-                processQueue(current);
+                state.readCount--;
+            }
+
+            while(!state.accessQueue.isEmpty() && canGrant(state, state.accessQueue.peek().isExclusive())) {
+                AccessRequest request = state.accessQueue.poll();
+                grant(state, request);
+                granted.add(request);
+                if(request.isExclusive()) {
+                    break;
+                }
             }
-        }        
+            if(state.readCount == 0 && !state.writeAccess && state.accessQueue.isEmpty()) {
+                current.lockState = null;
+            }
+        }
+
+        for(AccessRequest request: granted) {
+            request.done.complete(true);
+        }
+    }
+
+    private static boolean isHeld(TreeNode current, boolean exclusive) {
+        synchronized (current) {
+            LockState state = current.lockState;
+            return state != null && (exclusive ? state.writeAccess : state.readCount > 0);
+        }
+    }
+
+    // Whether a writer currently holds this node
+    public boolean isWriteLocked() {
+        return isHeld(this, true);
+    }
+
+    // Releases a lock taken by lock or lockAsync on exactly the nodes it locked,
+    // so a lock on a path that has since been deleted or replaced still frees
+    // its ancestors.
+    public static void unlock(TreeNode[] chain, boolean exclusive){
+        release(chain[chain.length - 1], exclusive);
+        for(int i = chain.length - 2; i >= 0; i--){
+            release(chain[i], false);
+        }
     }
     
-    // Adds a file to the tree based on the path
-    public void addFile(String path, boolean isDir, int source){
-        String[] parts= path.split("/");
+    // Adds a file to the tree based on the path. Only the directory receiving a new
+    // child is locked, so creates in unrelated subtrees proceed in parallel.
+    // Returns false if the path already exists or a component is not a directory.
+    public boolean addFile(Path path, boolean isDir, int source){
+        return addFile(path, isDir, source, NamespaceLog.NONE) != null;
+    }
+
+    // Like addFile, and appends the create to the journal before the receiving
+    // directory's monitor is released, so the log orders it against a delete
+    // of the same path as the tree does. Returns the journal write, or null if
+    // nothing was added.
+    public CompletableFuture<Void> addFile(Path path, boolean isDir, int source, NamespaceLog journal){
+        if(path.isRoot()){
+            return null;
+        }
+
         TreeNode current = this;
+        for(int i = 0; i < path.depth() - 1; i++){
+            String part = path.component(i);
+            TreeNode child = current.getChild(part);
+            if(child == null){
+                synchronized (current) {
+                    if(current.removed){
+                        return null;
+                    }
+                    child = current.getChild(part);
+                    if(child == null){
+                        child = new TreeNode(part, true, source);
+                        current.putChild(child);
+                    }
+                }
+            }
+            if(!child.isDir){
+                return null;
+            }
+            current = child;
+        }
+
+        return current.addChild(path, isDir, source, journal);
+    }
 
-        this.rwLock.writeLock().lock();
-        this.writeAccess = true;
-        
-        for(String part: parts){
-            if(part == ""){
-                continue;
+    // Adds a direct child under this directory's monitor. Callers that already
+    // hold the directory node (e.g. a batch of creates in one directory) use this
+    // to skip the walk from the root.
+    public boolean addChild(String name, boolean isDir, int source){
+        synchronized (this) {
+            if(this.removed || !this.isDir || getChild(name) != null){
+                return false;
             }
-            
-            boolean isCurrentDir = part.length() < parts.length - 1;
-            
-            if(current.children.get(part) == null){
-                current.children.put(part, new TreeNode(part, isCurrentDir, source));
+            putChild(new TreeNode(name, isDir, source));
+        }
+        return true;
+    }
+
+    // Adds path's last component as a direct child and journals the create
+    // under this directory's monitor. Returns the journal write, or null if
+    // nothing was added.
+    public CompletableFuture<Void> addChild(Path path, boolean isDir, int source, NamespaceLog journal){
+        synchronized (this) {
+            if(!addChild(path.last(), isDir, source)){
+                return null;
             }
-            current = current.children.get(part);
+            return isDir ? journal.createDirectory(path) : journal.createFile(path, source);
         }
-        
-        current.isDir = isDir;
-        this.writeAccess = false;
-        this.rwLock.writeLock().unlock();
     }
+
     public void printTree(int level){
         throw new UnsupportedOperationException();
     }
 
-    public void deleteFile(String path, Map<Integer, Integer> portMap, List<Integer> nodes) throws ExceptionReturn{
-        TreeNode node = this.findNode(path);
-        if(node == null){
+    // Unlinks the node from its parent while holding only the parent's monitor, then
+    // asks the storage servers holding anything under it to drop their copies.
+    // No tree lock is held while those calls are in flight; the returned future
+    // completes when they have answered or timed out.
+    public CompletableFuture<Void> deleteFile(Path path, Map<Integer, Integer> portMap) throws ExceptionReturn{
+        return deleteFile(path, portMap, NamespaceLog.NONE);
+    }
+
+    // Like deleteFile, and appends the delete to the journal while the parent's
+    // monitor is still held. The returned future also covers the journal write.
+    public CompletableFuture<Void> deleteFile(Path path, Map<Integer, Integer> portMap, NamespaceLog journal)
+            throws ExceptionReturn{
+        TreeNode parent = path.isRoot() ? null : this.findNode(path.parent());
+        if(parent == null){
             throw new ExceptionReturn("FileNotFoundException", "The file/directory or parent directory does not exist.");
         }
+        String name = path.last();
+        TreeNode node;
+        Set<Integer> holders = new HashSet<>();
+        List<AccessRequest> waiters = new ArrayList<>();
+        CompletableFuture<Void> logged;
 
-        this.rwLock.writeLock().lock();
-        this.writeAccess = true;
-        
-        try{
-            for (int source: nodes){
-                Util.callStorageServer(String.format("http://127.0.0.1:%d/storage_delete", source), path);
+        synchronized (parent) {
+            node = parent.getChild(name);
+            if(node == null){
+                throw new ExceptionReturn("FileNotFoundException", "The file/directory or parent directory does not exist.");
             }
-        } finally {
-            this.writeAccess = false;
-            this.rwLock.writeLock().unlock();
+            markRemoved(node, holders, waiters);
+            parent.removeChild(name);
+            logged = journal.delete(path);
+        }
+        // failed once no monitor is held, as the waiters release their ancestors
+        for (AccessRequest waiter : waiters) {
+            waiter.done.completeExceptionally(new ExceptionReturn("FileNotFoundException", path + " was deleted"));
+        }
+
+        Set<Integer> ports = Util.commandPorts(holders, portMap);
+        if(ports.isEmpty()){
+            return logged;
+        }
+        return CompletableFuture.allOf(logged, Util.fanOut("storage_delete", ports, new PathRequest(path.toString())));
+    }
+
+    // Marks the node and everything under it removed, top down, collecting the
+    // ports of every server holding a file in it and the lock requests still
+    // queued on it. A caller still holding one of these nodes (e.g. a batch
+    // reusing a parent directory) sees it is gone, addChild refuses to link
+    // anything new into the subtree, and acquire refuses new lock requests.
+    // Locks already granted stay held until their owners unlock them.
+    private static void markRemoved(TreeNode node, Set<Integer> ports, List<AccessRequest> waiters) {
+        synchronized (node) {
+            node.removed = true;
+            LockState state = node.lockState;
+            if (state != null) {
+                waiters.addAll(state.accessQueue);
+                state.accessQueue.clear();
+                if (state.readCount == 0 && !state.writeAccess) {
+                    node.lockState = null;
+                }
+            }
+        }
+        for (int port : node.sourcePorts) {
+            ports.add(port);
+        }
+        for (TreeNode child : node.children()) {
+            markRemoved(child, ports, waiters);
         }
     }
     
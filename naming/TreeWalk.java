@@ -0,0 +1,114 @@
+package naming;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import common.Path;
+
+// Depth-first walk of a subtree in name order, starting with its root. Entries
+// are produced one at a time, so /walk can stream them or stop after a page,
+// and a walk resumes after any path it returned without revisiting what came
+// before: every directory on the way down to that path is continued from the
+// name after it. Like /list, the walk is weakly consistent: entries added or
+// removed while it runs may or may not be seen, but none is seen twice.
+public class TreeWalk {
+    private static class Frame {
+        final String prefix;
+        final int depth;
+        final Iterator<TreeNode> children;
+
+        Frame(String prefix, int depth, Iterator<TreeNode> children) {
+            this.prefix = prefix;
+            this.depth = depth;
+            this.children = children;
+        }
+    }
+
+    private final ArrayDeque<Frame> stack = new ArrayDeque<>();
+    private final int maxDepth;
+    private TreeNode root;
+    private final Path rootPath;
+    // Path and depth below the root of the entry last returned by next()
+    public String path;
+    public int depth;
+
+    // Walks the subtree of root, found at rootPath, down to maxDepth levels
+    // below it (0 for no limit), resuming after the entry at after if given.
+    public TreeWalk(TreeNode root, Path rootPath, int maxDepth, Path after) {
+        this.maxDepth = maxDepth > 0 ? maxDepth : Integer.MAX_VALUE;
+        this.rootPath = rootPath;
+        if (after == null) {
+            this.root = root;
+            return;
+        }
+        if (!after.isSubpath(rootPath)) {
+            throw new IllegalArgumentException(after + " is not under " + rootPath);
+        }
+
+        TreeNode current = root;
+        String prefix = prefix(rootPath.toString());
+        for (int i = rootPath.depth(); i < after.depth(); i++) {
+            int level = i - rootPath.depth();
+            if (!current.isDir || level >= this.maxDepth) {
+                return;
+            }
+            String name = after.component(i);
+            this.stack.push(new Frame(prefix, level, current.childrenAfter(name)));
+            current = current.getChild(name);
+            if (current == null) {
+                return;
+            }
+            prefix = prefix + "/" + name;
+        }
+        descend(current, prefix, after.depth() - rootPath.depth());
+    }
+
+    private static String prefix(String path) {
+        return path.equals("/") ? "" : path;
+    }
+
+    private void descend(TreeNode node, String prefix, int depth) {
+        if (node.isDir && depth < this.maxDepth) {
+            this.stack.push(new Frame(prefix, depth, node.childrenAfter(null)));
+        }
+    }
+
+    // The next entry, or null once the walk is done
+    public TreeNode next() {
+        if (this.root != null) {
+            TreeNode node = this.root;
+            this.root = null;
+            this.path = this.rootPath.toString();
+            this.depth = 0;
+            descend(node, prefix(this.path), 0);
+            return node;
+        }
+        while (!this.stack.isEmpty()) {
+            Frame top = this.stack.peek();
+            if (!top.children.hasNext()) {
+                this.stack.pop();
+                continue;
+            }
+            TreeNode child = top.children.next();
+            this.path = top.prefix + "/" + child.key;
+            this.depth = top.depth + 1;
+            descend(child, this.path, this.depth);
+            return child;
+        }
+        return null;
+    }
+
+    public boolean hasNext() {
+        if (this.root != null) {
+            return true;
+        }
+        while (!this.stack.isEmpty()) {
+            // An exhausted directory cannot be refilled, so dropping it is safe
+            if (this.stack.peek().children.hasNext()) {
+                return true;
+            }
+            this.stack.pop();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,83 @@
+package storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Files added to or removed from this storage server, numbered by a
+// generation counter, so that a re-registration can send the naming server
+// only what changed since the generation it last synced to. Each path keeps
+// only its latest change. Up to <capacity> paths are remembered; once older
+// changes have been evicted a diff from before them cannot be produced and the
+// storage server sends its full listing instead.
+public class ChangeLog {
+    public static class Diff {
+        public final List<String> added;
+        public final List<String> removed;
+        public final long generation;
+
+        Diff(List<String> added, List<String> removed, long generation) {
+            this.added = added;
+            this.removed = removed;
+            this.generation = generation;
+        }
+    }
+
+    private static class Change {
+        final long generation;
+        final boolean present;
+
+        Change(long generation, boolean present) {
+            this.generation = generation;
+            this.present = present;
+        }
+    }
+
+    private final int capacity;
+    // Kept in generation order: a path is moved to the end when it changes
+    private final LinkedHashMap<String, Change> changes = new LinkedHashMap<>();
+    private long generation = 0;
+    // Changes up to this generation may have been forgotten
+    private long evictedThrough = 0;
+
+    public ChangeLog(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public synchronized long generation() {
+        return this.generation;
+    }
+
+    public synchronized long record(String path, boolean present) {
+        this.generation++;
+        this.changes.remove(path);
+        this.changes.put(path, new Change(this.generation, present));
+        if (this.changes.size() > this.capacity) {
+            Iterator<Map.Entry<String, Change>> eldest = this.changes.entrySet().iterator();
+            this.evictedThrough = eldest.next().getValue().generation;
+            eldest.remove();
+        }
+        return this.generation;
+    }
+
+    // Sorted paths added and removed after generation from, or null if some of
+    // those changes have been forgotten.
+    public synchronized Diff since(long from) {
+        if (from < this.evictedThrough || from > this.generation) {
+            return null;
+        }
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, Change> entry : this.changes.entrySet()) {
+            if (entry.getValue().generation > from) {
+                (entry.getValue().present ? added : removed).add(entry.getKey());
+            }
+        }
+        Collections.sort(added);
+        Collections.sort(removed);
+        return new Diff(added, removed, this.generation);
+    }
+}
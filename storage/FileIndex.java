@@ -0,0 +1,334 @@
+package storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The storage server's view of the files under its root: size and
+// modification time per path, and the set of directories, kept current by the
+// server's own creates, writes, copies and deletes, so size queries and
+// existence checks are answered from memory. Paths are relative to the root
+// with a leading slash, as in the registration listing. Until the index has
+// been built from a scan or loaded, lookups fall back to the disk.
+//
+// Open channels are cached per file, up to a fixed number, and shared by
+// concurrent requests with positional reads and writes.
+//
+// The index is saved when the server shuts down cleanly and loaded at the
+// next start instead of scanning the root. Loading deletes the saved copy, so
+// after a crash the index is rebuilt from a scan rather than trusted.
+public class FileIndex {
+    private static final int MAGIC = 0x44465332; // "DFS2", files then directories
+
+    public static class Entry {
+        public volatile long size;
+        public volatile long modifiedMillis;
+
+        Entry(long size, long modifiedMillis) {
+            this.size = size;
+            this.modifiedMillis = modifiedMillis;
+        }
+
+        // Records a write ending at the given offset and returns how many
+        // bytes the file grew by
+        public synchronized long written(long end) {
+            this.modifiedMillis = System.currentTimeMillis();
+            if (end <= this.size) {
+                return 0;
+            }
+            long grown = end - this.size;
+            this.size = end;
+            return grown;
+        }
+    }
+
+    // An open channel shared by the requests on one file. It is closed once it
+    // has been evicted, or its file deleted or replaced, and the last request
+    // using it has released it.
+    public class Handle implements AutoCloseable {
+        public final FileChannel channel;
+        private int users;
+        private boolean retired;
+
+        Handle(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void close() throws IOException {
+            boolean last;
+            synchronized (FileIndex.this.open) {
+                this.users--;
+                last = this.retired && this.users == 0;
+            }
+            if (last) {
+                this.channel.close();
+            }
+        }
+    }
+
+    private final Path root;
+    private final int maxOpenHandles;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<String> directories = ConcurrentHashMap.newKeySet();
+    // Set once rebuilt or loaded; lookups only go to disk before that
+    private volatile boolean warm;
+    // Least recently used first
+    private final LinkedHashMap<String, Handle> open = new LinkedHashMap<>(16, 0.75f, true);
+
+    public FileIndex(Path root, int maxOpenHandles) {
+        this.root = root;
+        this.maxOpenHandles = maxOpenHandles;
+    }
+
+    private Path resolve(String path) {
+        return this.root.resolve(path.substring(1));
+    }
+
+    // The entry for a regular file, or null
+    public Entry lookup(String path) {
+        Entry entry = this.entries.get(path);
+        if (entry != null || this.warm) {
+            return entry;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(resolve(path), BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            Entry found = new Entry(attributes.size(), attributes.lastModifiedTime().toMillis());
+            entry = this.entries.putIfAbsent(path, found);
+            return entry == null ? found : entry;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public boolean isDirectory(String path) {
+        if (this.warm) {
+            return path.equals("/") || this.directories.contains(path);
+        }
+        return Files.isDirectory(resolve(path));
+    }
+
+    // Records the directories above a file, which creating it made on disk
+    private void addParents(String path) {
+        for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+            if (!this.directories.add(path.substring(0, slash))) {
+                return;
+            }
+        }
+    }
+
+    public void created(String path) {
+        this.entries.put(path, new Entry(0, System.currentTimeMillis()));
+        addParents(path);
+    }
+
+    // A file moved into place over whatever was there before
+    public void replaced(String path, long size) {
+        this.entries.put(path, new Entry(size, System.currentTimeMillis()));
+        addParents(path);
+        retire(path);
+    }
+
+    // A directory deleted from disk, which is only possible once it is empty
+    public void directoryRemoved(String path) {
+        this.directories.remove(path);
+    }
+
+    public Entry removed(String path) {
+        Entry entry = this.entries.remove(path);
+        retire(path);
+        return entry;
+    }
+
+    // Acquires the shared channel for a file; close the handle to release it.
+    // NoSuchFileException if the file is not indexed or has gone from disk;
+    // the caller drops it from the index along with the totals it keeps.
+    public Handle open(String path) throws IOException {
+        while (true) {
+            synchronized (this.open) {
+                Handle handle = this.open.get(path);
+                if (handle != null) {
+                    handle.users++;
+                    return handle;
+                }
+            }
+
+            // Creating, replacing or removing the file swaps its entry before
+            // retiring its handle, so an entry still in place once the lock is
+            // held again means the channel is of the current file, and a later
+            // change will retire it
+            Entry entry = lookup(path);
+            if (entry == null) {
+                throw new NoSuchFileException(resolve(path).toString());
+            }
+            FileChannel channel = FileChannel.open(resolve(path), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            List<FileChannel> unused = new ArrayList<>();
+            Handle handle;
+            synchronized (this.open) {
+                handle = this.open.get(path);
+                if (handle == null && this.entries.get(path) == entry) {
+                    handle = new Handle(channel);
+                    this.open.put(path, handle);
+                    Iterator<Handle> oldest = this.open.values().iterator();
+                    while (this.open.size() > this.maxOpenHandles) {
+                        Handle old = oldest.next();
+                        oldest.remove();
+                        old.retired = true;
+                        if (old.users == 0) {
+                            unused.add(old.channel);
+                        }
+                    }
+                } else {
+                    // opened concurrently by another request, or the file
+                    // changed while it was being opened
+                    unused.add(channel);
+                }
+                if (handle != null) {
+                    handle.users++;
+                }
+            }
+            for (FileChannel old : unused) {
+                old.close();
+            }
+            if (handle != null) {
+                return handle;
+            }
+        }
+    }
+
+    private void retire(String path) {
+        Handle handle;
+        synchronized (this.open) {
+            handle = this.open.remove(path);
+            if (handle == null) {
+                return;
+            }
+            handle.retired = true;
+            if (handle.users > 0) {
+                return;
+            }
+        }
+        try {
+            handle.channel.close();
+        } catch (IOException e) {
+            System.err.println("Could not close " + path + ": " + e);
+        }
+    }
+
+    public void rebuild(Inventory inventory) {
+        this.entries.clear();
+        this.directories.clear();
+        for (Inventory.Entry file : inventory.files) {
+            this.entries.put(file.path, new Entry(file.size, file.modifiedMillis));
+            addParents(file.path);
+        }
+        for (String directory : inventory.emptyDirectories) {
+            this.directories.add(directory);
+            addParents(directory);
+        }
+        this.warm = true;
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public List<String> paths() {
+        List<String> paths = new ArrayList<>(this.entries.keySet());
+        Collections.sort(paths);
+        return paths;
+    }
+
+    public long totalBytes() {
+        long total = 0;
+        for (Entry entry : this.entries.values()) {
+            total += entry.size;
+        }
+        return total;
+    }
+
+    public void save(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(this.root.toString());
+            List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(this.entries.entrySet());
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> entry : snapshot) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().size);
+                out.writeLong(entry.getValue().modifiedMillis);
+            }
+            List<String> directories = new ArrayList<>(this.directories);
+            out.writeInt(directories.size());
+            for (String directory : directories) {
+                out.writeUTF(directory);
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Loads the index saved by a clean shutdown and deletes the saved copy.
+    // Returns false, leaving the index unchanged, if there is none or it was
+    // saved for another root.
+    public boolean load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        Map<String, Entry> loaded = new ConcurrentHashMap<>();
+        List<String> directories = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("bad index header in " + file);
+            }
+            if (!in.readUTF().equals(this.root.toString())) {
+                System.out.println("Ignoring " + file + ", it indexes another root");
+                return false;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                loaded.put(path, new Entry(in.readLong(), in.readLong()));
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                directories.add(in.readUTF());
+            }
+        } finally {
+            Files.delete(file);
+        }
+        this.entries.clear();
+        this.entries.putAll(loaded);
+        this.directories.clear();
+        this.directories.addAll(directories);
+        this.warm = true;
+        return true;
+    }
+}
@@ -0,0 +1,134 @@
+package storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Everything a storage server needs to know about its root directory at
+// startup, gathered in one recursive pass: every file with its size and
+// modification time, and the directories that hold no files at all. Each
+// directory is listed by its own fork-join task, so wide and deep trees are
+// scanned by all cores, and every entry is stat'ed once.
+public class Inventory {
+    public static class Entry {
+        // relative to the root, with a leading slash: "/dir/file"
+        public final String path;
+        public final long size;
+        public final long modifiedMillis;
+
+        Entry(String path, long size, long modifiedMillis) {
+            this.path = path;
+            this.size = size;
+            this.modifiedMillis = modifiedMillis;
+        }
+    }
+
+    // Files sorted by path
+    public final List<Entry> files;
+    // Directories, children before their parents, whose subtree holds no files
+    public final List<String> emptyDirectories;
+
+    private Inventory(List<Entry> files, List<String> emptyDirectories) {
+        this.files = files;
+        this.emptyDirectories = emptyDirectories;
+    }
+
+    public List<String> paths() {
+        List<String> paths = new ArrayList<>(this.files.size());
+        for (Entry entry : this.files) {
+            paths.add(entry.path);
+        }
+        return paths;
+    }
+
+    public long totalBytes() {
+        long total = 0;
+        for (Entry entry : this.files) {
+            total += entry.size;
+        }
+        return total;
+    }
+
+    public static Inventory empty() {
+        return new Inventory(new ArrayList<>(), new ArrayList<>());
+    }
+
+    public static Inventory scan(Path root) throws IOException {
+        return scan(root, ForkJoinPool.commonPool());
+    }
+
+    public static Inventory scan(Path root, ForkJoinPool pool) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return empty();
+        }
+        Listing listing;
+        try {
+            listing = pool.invoke(new DirectoryScan(root, ""));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        listing.files.sort(Comparator.comparing(entry -> entry.path));
+        // the root itself is never pruned
+        listing.emptyDirectories.remove("");
+        return new Inventory(listing.files, listing.emptyDirectories);
+    }
+
+    private static class Listing {
+        final List<Entry> files = new ArrayList<>();
+        final List<String> emptyDirectories = new ArrayList<>();
+        boolean hasContent;
+    }
+
+    private static class DirectoryScan extends RecursiveTask<Listing> {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+        private final String relative;
+
+        DirectoryScan(Path dir, String relative) {
+            this.dir = dir;
+            this.relative = relative;
+        }
+
+        @Override
+        protected Listing compute() {
+            Listing listing = new Listing();
+            List<DirectoryScan> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(this.dir)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        subdirectories.add(new DirectoryScan(entry, this.relative + "/" + name));
+                        continue;
+                    }
+                    listing.hasContent = true;
+                    listing.files.add(new Entry(this.relative + "/" + name, attributes.size(),
+                            attributes.lastModifiedTime().toMillis()));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            for (DirectoryScan subdirectory : invokeAll(subdirectories)) {
+                Listing child = subdirectory.join();
+                listing.files.addAll(child.files);
+                listing.emptyDirectories.addAll(child.emptyDirectories);
+                listing.hasContent |= child.hasContent;
+            }
+            if (!listing.hasContent) {
+                listing.emptyDirectories.add(this.relative);
+            }
+            return listing;
+        }
+    }
+}
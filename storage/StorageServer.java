@@ -1,41 +1,65 @@
 package storage;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
-import java.util.stream.Collectors;
-
-import com.google.gson.Gson;
 
 import common.BooleanReturn;
 import common.CopyRequest;
 import common.DataReturn;
 import common.ExceptionReturn;
+import common.HeartbeatRequest;
 import common.PathRequest;
 import common.ReadRequest;
+import common.RegisterPageRequest;
 import common.RegisterRequest;
 import common.SizeReturn;
 import common.SuccessfulRegistrationResponse;
 import common.WriteRequest;
+import util.JsonServer;
+import util.LatencyWindow;
+import util.RpcClient;
+import util.ServerExecutors;
 import util.Util;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
+import java.io.InputStream;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 import java.net.InetSocketAddress;
 import java.io.OutputStream;
-import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.HexFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class StorageServer {
+public class StorageServer extends JsonServer {
 
     public int naminServerPort;
     public int clientPort;
@@ -43,7 +67,42 @@ public class StorageServer {
     public String rootPath;
     public List<String> files;
 
-    public Gson gson = new Gson();
+
+    // Load accounting reported to the naming server in heartbeats
+    public final AtomicInteger readsInFlight = new AtomicInteger(0);
+    public final AtomicInteger writesInFlight = new AtomicInteger(0);
+    public final AtomicLong fileCount = new AtomicLong(0);
+    public final AtomicLong usedBytes = new AtomicLong(0);
+
+    // Files added and removed since startup, so a re-registration can send a
+    // diff, and the generation the naming server last confirmed it synced to
+    // (-1 if it has not, or does not support diffs)
+    private static final int REGISTRATION_PAGE_SIZE = Integer.getInteger("storage.registration.pageSize", 10000);
+    public final ChangeLog changes = new ChangeLog(Integer.getInteger("storage.registration.maxChanges", 100000));
+    private volatile long syncedGeneration = -1;
+    private final LatencyWindow latencies = new LatencyWindow(4096);
+
+    // Sizes and open channels of the files under the root (see FileIndex),
+    // saved at shutdown to -Dstorage.indexFile so the next start can skip the
+    // inventory scan
+    public FileIndex index;
+    private Path indexFile;
+    private boolean indexLoaded;
+    // Copies in progress are staged in -Dstorage.stagingDir, by default next
+    // to the root, so they never share a name with a file the server hosts.
+    // It must be on the root's file system for finished copies to be moved
+    // into place atomically.
+    private Path stagingDir;
+
+    // Path as the naming server knows it: relative to the storage root, with a
+    // single leading slash
+    private static String registryPath(String path) {
+        int start = 0;
+        while (start < path.length() && path.charAt(start) == '/') {
+            start++;
+        }
+        return "/" + path.substring(start);
+    }
 
     private String getParentDir(String path) {
         return path.substring(0, path.lastIndexOf('/'));
@@ -65,7 +124,7 @@ public class StorageServer {
         String dirPath = getParentDir(path);
 
         File dir = new File(dirPath);
-        if (!dir.mkdirs()) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
             throw new RuntimeException("failed to create directories: " + dirPath);
         }
 
@@ -94,8 +153,8 @@ public class StorageServer {
         String totalPath = String.format("%s/%s", this.rootPath, path);
         totalPath = Util.sanitizePath(totalPath);
 
-        File file = new File(totalPath);
-        if (file.exists()) {
+        String key = registryPath(path);
+        if (this.index.lookup(key) != null || this.index.isDirectory(key)) {
             System.out.println("file exist error during create dir");
             System.out.println("current state of files " + this.files);
             return false;
@@ -103,6 +162,9 @@ public class StorageServer {
 
         try {
             createFile(totalPath);
+            this.index.created(key);
+            this.fileCount.incrementAndGet();
+            this.changes.record(key, true);
             return true;
         } catch (Exception e) {
             System.out.println("error in creating dir due to " + e.getMessage());
@@ -119,9 +181,8 @@ public class StorageServer {
         }
 
         PathRequest pathRequest = null;
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            String requestBody = reader.lines().collect(Collectors.joining("\n"));
-            pathRequest = gson.fromJson(requestBody, PathRequest.class);
+        try {
+            pathRequest = readRequest(exchange, PathRequest.class);
         } catch (Exception e) {
             e.printStackTrace();
             sendErrorResponse(exchange, "BadRequestException", "Bad Request");
@@ -156,15 +217,23 @@ public class StorageServer {
         String totalPath = String.format("%s/%s", this.rootPath, path);
         totalPath = Util.sanitizePath(totalPath);
 
-        File file = new File(totalPath);
-        if (!file.exists()) {
+        String key = registryPath(path);
+        FileIndex.Entry entry = this.index.lookup(key);
+        if (entry == null && !this.index.isDirectory(key)) {
             System.out.println("file does not exist error during delete dir");
             System.out.println("current state of files " + this.files);
             return false;
         }
 
         try {
-            file.delete();
+            File file = new File(totalPath);
+            if (file.delete()) {
+                if (entry != null) {
+                    forget(key);
+                } else {
+                    this.index.directoryRemoved(key);
+                }
+            }
             return true;
         } catch (Exception e) {
             System.out.println("error in deleting dir due to " + e.getMessage());
@@ -181,9 +250,8 @@ public class StorageServer {
         }
 
         PathRequest pathRequest = null;
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            String requestBody = reader.lines().collect(Collectors.joining("\n"));
-            pathRequest = gson.fromJson(requestBody, PathRequest.class);
+        try {
+            pathRequest = readRequest(exchange, PathRequest.class);
         } catch (Exception e) {
             e.printStackTrace();
             sendErrorResponse(exchange, "BadRequestException", "Bad Request");
@@ -204,31 +272,41 @@ public class StorageServer {
         sendJsonResponse(exchange, 200, new BooleanReturn(success));
     }
 
-    // listFilesRelativePaths takes a directory path and returns a slice of relative
-    // file paths
-    private List<String> listFilesRelativePaths(String rootDir) {
-        List<String> files = new ArrayList<>();
-
+    // Lists every file under the storage root, with sizes, in one parallel
+    // pass (see Inventory). An unreadable root is reported and treated as empty.
+    private Inventory scanInventory() {
+        long start = System.nanoTime();
         try {
-            File dir = new File(rootDir);
-            File[] filesInDir = dir.listFiles();
-            if (filesInDir == null) {
-                return files;
-            }
-            for (File file : filesInDir) {
-                if (file.isDirectory()) {
-                    continue;
-                }
-                String relativePath = file.getPath().replace(rootDir, "");
-                files.add("/" + relativePath);
-            }
+            Inventory inventory = Inventory.scan(Paths.get(this.rootPath));
+            System.out.printf("Found %d files (%d bytes) in %s in %d ms%n", inventory.files.size(),
+                    inventory.totalBytes(), this.rootPath, (System.nanoTime() - start) / 1_000_000);
+            return inventory;
+        } catch (IOException e) {
+            System.err.println("Could not list " + this.rootPath + ": " + e);
+            return Inventory.empty();
+        }
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    // Drops a file that is no longer on disk from the index and the totals
+    private void forget(String key) {
+        FileIndex.Entry entry = this.index.removed(key);
+        if (entry != null) {
+            this.fileCount.decrementAndGet();
+            this.usedBytes.addAndGet(-entry.size);
+            this.changes.record(key, false);
         }
+    }
 
-        System.out.println("Files in dir " + files);
-        return files;
+    // Acquires the shared channel of an indexed file. A file that has gone
+    // from disk behind the server's back is forgotten, as if deleted.
+    private FileIndex.Handle openHandle(String path) throws IOException {
+        String key = registryPath(path);
+        try {
+            return this.index.open(key);
+        } catch (NoSuchFileException e) {
+            forget(key);
+            throw new FileNotFoundException("File not found on storage server");
+        }
     }
 
     // deleteFiles takes a directory path and a slice of relative file paths to
@@ -244,71 +322,235 @@ public class StorageServer {
         return true;
     }
 
-    private void deleteEmptyDirFiles(String rootDir) {
-        // Delete files from directories that are empty or become empty after file
-        // deletion.
-        File rootDirFile = new File(rootDir);
-        File[] filesInDir = rootDirFile.listFiles();
-        if (filesInDir == null) {
-            return;
+    // Removes directories that hold no files: those the inventory found empty,
+    // and those emptied by deleting the given files. Only the deleted files'
+    // ancestors are checked, so no second pass over the tree is needed.
+    private void pruneEmptyDirectories(List<String> emptyDirectories, List<String> deletedFiles) {
+        File root = new File(this.rootPath);
+        for (String dir : emptyDirectories) {
+            if (new File(root, dir).delete()) {
+                this.index.directoryRemoved(dir);
+            } else {
+                System.out.println("Failed to delete empty directory " + dir);
+            }
         }
-        for (File fileInDir : filesInDir) {
-            if (fileInDir.isDirectory()) {
-                File[] filesInSubDir = fileInDir.listFiles();
-                if (filesInSubDir == null || filesInSubDir.length == 0) {
-                    if (!fileInDir.delete()) {
-                        System.out.println("Failed to delete empty directory " + fileInDir);
-                    }
+        for (String file : deletedFiles) {
+            String dir = registryPath(file);
+            // File.delete only removes a directory once it is empty
+            for (int slash = dir.lastIndexOf('/'); slash > 0; slash = dir.lastIndexOf('/')) {
+                dir = dir.substring(0, slash);
+                if (!new File(root, dir).delete()) {
+                    break;
                 }
+                this.index.directoryRemoved(dir);
             }
         }
     }
 
-    public SuccessfulRegistrationResponse makeCallToNamingServer() {
+    // Registers with the naming server and returns the files it asks this
+    // server to delete. If the naming server has synced to an earlier
+    // generation of this server, only the changes since then are sent.
+    // Otherwise the listing is sent in namespace order, in pages of REGISTRATION_PAGE_SIZE
+    // files: the first with /register, the rest with /register_page.
+    public SuccessfulRegistrationResponse makeCallToNamingServer(long generation) {
         String url = String.format("http://127.0.0.1:%d/register", this.naminServerPort);
-        RegisterRequest body = new RegisterRequest("127.0.0.1", this.clientPort, this.commandPort,
-                files);
-
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
-                .build();
+        ChangeLog.Diff diff = this.syncedGeneration >= 0 ? this.changes.since(this.syncedGeneration) : null;
+
+        RegisterRequest body;
+        List<String> sorted = null;
+        if (diff != null) {
+            body = new RegisterRequest("127.0.0.1", this.clientPort, this.commandPort,
+                    Util.compressPrefixes(diff.added));
+            body.removed = Util.compressPrefixes(diff.removed);
+            body.prefix_compressed = true;
+            body.since = this.syncedGeneration;
+            body.generation = diff.generation;
+            System.out.printf("Registering changes since generation %d: %d added, %d removed%n",
+                    body.since, diff.added.size(), diff.removed.size());
+        } else {
+            sorted = new ArrayList<>(this.files);
+            sorted.sort(Util.NAMESPACE_ORDER);
+            body = new RegisterRequest("127.0.0.1", this.clientPort, this.commandPort,
+                    sorted.subList(0, Math.min(REGISTRATION_PAGE_SIZE, sorted.size())));
+            body.more = sorted.size() > REGISTRATION_PAGE_SIZE;
+            body.generation = generation;
+        }
+        this.syncedGeneration = -1;
+
+        SuccessfulRegistrationResponse response = postRegistration(url, body);
+        if (response == null) {
+            return new SuccessfulRegistrationResponse();
+        }
+        List<String> deleted = new ArrayList<>(response.files == null ? List.of() : List.of(response.files));
+        int sent = 0;
+        if (response.full_required) {
+            System.out.println("Naming server needs the full listing");
+            sorted = new ArrayList<>(this.files);
+            sorted.sort(Util.NAMESPACE_ORDER);
+        } else if (diff == null) {
+            sent = body.files.size();
+        } else {
+            sorted = List.of();
+        }
+
+        String pageUrl = String.format("http://127.0.0.1:%d/register_page", this.naminServerPort);
+        while (response.session != null) {
+            List<String> page = sorted.subList(sent, Math.min(sent + REGISTRATION_PAGE_SIZE, sorted.size()));
+            sent += page.size();
+            response = postRegistration(pageUrl, new RegisterPageRequest(response.session,
+                    Util.compressPrefixes(page), null, sent < sorted.size(), true));
+            if (response == null) {
+                return new SuccessfulRegistrationResponse(deleted.toArray(new String[0]));
+            }
+            if (response.files != null) {
+                deleted.addAll(List.of(response.files));
+            }
+        }
+
+        this.syncedGeneration = response.synced_generation;
+        SuccessfulRegistrationResponse result = new SuccessfulRegistrationResponse(deleted.toArray(new String[0]));
+        result.synced_generation = response.synced_generation;
+        return result;
+    }
 
+    private SuccessfulRegistrationResponse postRegistration(String url, Object body) {
         try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<byte[]> response = RpcClient.send(RpcClient.post(url, body),
+                    HttpResponse.BodyHandlers.ofByteArray());
             if (response.statusCode() == 200) {
-                return gson.fromJson(response.body(), SuccessfulRegistrationResponse.class);
+                return RpcClient.decode(response, SuccessfulRegistrationResponse.class);
             } else {
                 System.err.println("Error from naming server: " + response.statusCode());
-                return new SuccessfulRegistrationResponse();
+                return null;
             }
         } catch (IOException e) {
             e.printStackTrace();
-            return new SuccessfulRegistrationResponse();
+            return null;
         } catch (InterruptedException e) {
             e.printStackTrace();
             Thread.currentThread().interrupt();
-            return new SuccessfulRegistrationResponse();
+            return null;
+        }
+    }
+
+    // Opens the index, loading the one saved at the last clean shutdown if
+    // there is one
+    public void openIndex() {
+        Path root = Paths.get(this.rootPath).toAbsolutePath().normalize();
+        String saved = System.getProperty("storage.indexFile");
+        this.indexFile = saved != null ? Paths.get(saved) : root.resolveSibling(root.getFileName() + ".index");
+        String staging = System.getProperty("storage.stagingDir");
+        this.stagingDir = staging != null ? Paths.get(staging) : root.resolveSibling(root.getFileName() + ".staging");
+        this.index = new FileIndex(root, Integer.getInteger("storage.index.openHandles", 256));
+        try {
+            this.indexLoaded = this.index.load(this.indexFile);
+            if (this.indexLoaded) {
+                System.out.printf("Loaded %d files from %s%n", this.index.size(), this.indexFile);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not load " + this.indexFile + ", scanning instead: " + e);
         }
+    }
 
+    public void saveIndex() {
+        try {
+            this.index.save(this.indexFile);
+            System.out.printf("Saved %d files to %s%n", this.index.size(), this.indexFile);
+        } catch (IOException e) {
+            System.err.println("Could not save " + this.indexFile + ": " + e);
+        }
     }
 
     public void registerStorageServer() {
         System.out.println("Registering with storage server, state" + this);
-        SuccessfulRegistrationResponse response = makeCallToNamingServer();
-        if (response != null) {
-            System.out.println("Successfully registered, deleting files " + response.files);
+        // Taken before listing, so changes made while listing are sent again
+        // next time rather than lost
+        long generation = this.changes.generation();
+        // The root is scanned once, unless a saved index was loaded; after
+        // that the index is kept current and registering again lists it
+        List<String> emptyDirectories = List.of();
+        if (!this.indexLoaded) {
+            Inventory inventory = scanInventory();
+            this.index.rebuild(inventory);
+            emptyDirectories = inventory.emptyDirectories;
+            this.indexLoaded = true;
+        }
+        this.files = this.index.paths();
+        this.fileCount.set(this.index.size());
+        this.usedBytes.set(this.index.totalBytes());
+        SuccessfulRegistrationResponse response = makeCallToNamingServer(generation);
+        if (response != null && response.files != null) {
+            System.out.println("Successfully registered, deleting files " + Arrays.toString(response.files));
             // do pruning of the listed files
             deleteFiles(this.rootPath, List.of(response.files));
-            deleteEmptyDirFiles(this.rootPath);
-            this.files = listFilesRelativePaths(this.rootPath);
+            pruneEmptyDirectories(emptyDirectories, List.of(response.files));
+
+            for (String file : response.files) {
+                this.index.removed(registryPath(file));
+            }
+            this.files = this.index.paths();
+            this.fileCount.set(this.index.size());
+            this.usedBytes.set(this.index.totalBytes());
 
             System.out.println("New state of storage server, state" + this);
         }
     }
 
+    // Runs a data-path handler while counting it as in flight and timing it
+    public void tracked(AtomicInteger inFlight, HttpExchange exchange, HttpHandler handler) throws IOException {
+        inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            handler.handle(exchange);
+        } finally {
+            this.latencies.record(System.nanoTime() - start);
+            inFlight.decrementAndGet();
+        }
+    }
+
+    public HeartbeatRequest heartbeat() {
+        HeartbeatRequest heartbeat = new HeartbeatRequest("127.0.0.1", this.clientPort, this.commandPort);
+        heartbeat.free_bytes = new File(this.rootPath).getUsableSpace();
+        heartbeat.file_count = this.fileCount.get();
+        heartbeat.used_bytes = this.usedBytes.get();
+        heartbeat.reads_in_flight = this.readsInFlight.get();
+        heartbeat.writes_in_flight = this.writesInFlight.get();
+        double[] percentiles = this.latencies.drainPercentiles(0.5, 0.99);
+        heartbeat.latency_p50_ms = percentiles[0];
+        heartbeat.latency_p99_ms = percentiles[1];
+        return heartbeat;
+    }
+
+    // Sends a heartbeat to the naming server; registers again if the naming
+    // server no longer knows this storage server, e.g. after it restarted.
+    public void sendHeartbeat() {
+        String url = String.format("http://127.0.0.1:%d/heartbeat", this.naminServerPort);
+        try {
+            HttpResponse<byte[]> response = RpcClient.send(RpcClient.post(url, heartbeat()),
+                    HttpResponse.BodyHandlers.ofByteArray());
+            if (response.statusCode() == 200 && !RpcClient.decode(response, BooleanReturn.class).success) {
+                System.out.println("Naming server does not know this storage server, registering again");
+                registerStorageServer();
+            }
+        } catch (IOException e) {
+            System.err.println("Heartbeat to naming server failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void startHeartbeats(long periodMillis) {
+        ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeats.scheduleWithFixedDelay(this::sendHeartbeat, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // findSize result for a path that is neither a file nor a directory
+    private static final long NO_SUCH_FILE = -2;
+
     private long findSize(String path) {
         path = Util.sanitizePath(path);
 
@@ -320,34 +562,16 @@ public class StorageServer {
             return 0;
         }
 
-        File file = new File(path);
-        if (file.isDirectory()) {
+        String key = registryPath(path);
+        FileIndex.Entry entry = this.index.lookup(key);
+        if (entry != null) {
+            return entry.size;
+        }
+        if (this.index.isDirectory(key)) {
             System.out.println(path + " is a directory");
             return -1;
         }
-        return file.length();
-    }
-
-    // Helper method to send error responses
-    private void sendErrorResponse(HttpExchange exchange, String errorType, String errorMessage) throws IOException {
-        ExceptionReturn errorResponse = new ExceptionReturn(errorType, errorMessage);
-        
-        byte[] responseBytes = gson.toJson(errorResponse).getBytes();
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(400, responseBytes.length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(responseBytes);
-        }
-    }
-
-    // Helper method to send JSON responses
-    private void sendJsonResponse(HttpExchange exchange, int statusCode, Object response) throws IOException {
-        String responseBody = gson.toJson(response);
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(statusCode, responseBody.getBytes().length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(responseBody.getBytes());
-        }
+        return NO_SUCH_FILE;
     }
 
     public void storageSizeHandler(HttpExchange exchange) throws IOException {
@@ -357,9 +581,8 @@ public class StorageServer {
         }
 
         PathRequest pathRequest = null;
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            String requestBody = reader.lines().collect(Collectors.joining("\n"));
-            pathRequest = gson.fromJson(requestBody, PathRequest.class);
+        try {
+            pathRequest = readRequest(exchange, PathRequest.class);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -369,36 +592,36 @@ public class StorageServer {
             System.out.println("Santitized to dir" + pathRequest.path);
         }
 
-        long size = findSize(String.format("%s/%s", this.rootPath, pathRequest.path));
+        long size = findSize(pathRequest.path);
         if (size == -1) {
             sendErrorResponse(exchange, "IllegalArgumentException", "Illegal argument");
             return;
         }
+        if (size == NO_SUCH_FILE) {
+            sendErrorResponse(exchange, "FileNotFoundException", pathRequest.path + " does not exist");
+            return;
+        }
 
         SizeReturn response = new SizeReturn(size);
+        FileIndex.Entry entry = size > 0 ? this.index.lookup(registryPath(pathRequest.path)) : null;
+        if (entry != null) {
+            response.modified = entry.modifiedMillis;
+        }
         sendJsonResponse(exchange, 200, response);
     }
 
+    // path is relative to the storage root
     public void fileWrite(String path, long offset, String data) throws IOException {
-        path = Util.sanitizePath(path);
-        if (path.equals(this.rootPath)) {
-            throw new IllegalArgumentException("Root path is not allowed");
-        }
-        if (offset < 0) {
-            throw new IndexOutOfBoundsException("Offset cannot be < 0");
-        }
-
-        File file = new File(path);
-        if (file.isDirectory()) {
-            throw new IllegalArgumentException("Path is a directory");
-        }
-        try (FileOutputStream fileOutputStream = new FileOutputStream(path, true)) {
-            if (fileOutputStream.getChannel().size() < offset) {
-                throw new IndexOutOfBoundsException("Offset is greater than the file size");
+        FileIndex.Entry entry = indexedFile(path, offset);
+        ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(data));
+        try (FileIndex.Handle handle = openHandle(path)) {
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                position += handle.channel.write(buffer, position);
             }
-            byte[] dataBytes = Base64.getDecoder().decode(data);
-            fileOutputStream.getChannel().position(offset);
-            fileOutputStream.write(dataBytes);
+            this.usedBytes.addAndGet(entry.written(position));
+        } catch (FileNotFoundException e) {
+            throw e;
         } catch (IOException e) {
             throw new IOException("IOException while writing to file", e);
         }
@@ -411,9 +634,8 @@ public class StorageServer {
         }
 
         WriteRequest request = null;
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            String requestBody = reader.lines().collect(Collectors.joining("\n"));
-            request = gson.fromJson(requestBody, WriteRequest.class);
+        try {
+            request = readRequest(exchange, WriteRequest.class);
         } catch (Exception e) {
             e.printStackTrace();
             sendErrorResponse(exchange, "BadRequestException", "Bad Request");
@@ -426,7 +648,7 @@ public class StorageServer {
         }
         
         try {
-            fileWrite(String.format("%s/%s", this.rootPath, request.path), request.offset, request.data);
+            fileWrite(request.path, request.offset, request.data);
         } catch (Exception e) {
             e.printStackTrace();
             sendErrorResponse(exchange, e.getClass().getSimpleName(), e.getMessage());
@@ -436,30 +658,26 @@ public class StorageServer {
         sendJsonResponse(exchange, 200, new BooleanReturn(true));
     }
 
+    // path is relative to the storage root
     private String fileRead(String path, long offset, long length) throws IOException {
-        path = Util.sanitizePath(path);
-        if (path.equals(this.rootPath)) {
-            throw new IllegalArgumentException("Root path is not allowed");
-        }
-        if (offset < 0) {
-            throw new IndexOutOfBoundsException("Offset cannot be < 0");
-        }
         if (length < 0) {
             throw new IndexOutOfBoundsException("Length cannot be < 0");
         }
-
-        File file = new File(path);
-        if (file.isDirectory()) {
-            throw new IllegalArgumentException("Path is a directory");
-        }
-        try (FileInputStream fileInputStream = new FileInputStream(path)) {
-            if (fileInputStream.getChannel().size() < offset) {
-                throw new IndexOutOfBoundsException("Offset is greater than the file size");
+        indexedFile(path, offset);
+        byte[] dataBytes = new byte[(int) length];
+        ByteBuffer buffer = ByteBuffer.wrap(dataBytes);
+        try (FileIndex.Handle handle = openHandle(path)) {
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                int n = handle.channel.read(buffer, position);
+                if (n < 0) {
+                    break;
+                }
+                position += n;
             }
-            byte[] dataBytes = new byte[(int) length];
-            fileInputStream.getChannel().position(offset);
-            fileInputStream.read(dataBytes);
             return Base64.getEncoder().encodeToString(dataBytes);
+        } catch (FileNotFoundException e) {
+            throw e;
         } catch (IOException e) {
             throw new IOException("IOException while reading from file", e);
         }
@@ -472,9 +690,8 @@ public class StorageServer {
         }
 
         ReadRequest request = null;
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            String requestBody = reader.lines().collect(Collectors.joining("\n"));
-            request = gson.fromJson(requestBody, ReadRequest.class);
+        try {
+            request = readRequest(exchange, ReadRequest.class);
         } catch (Exception e) {
             e.printStackTrace();
             sendErrorResponse(exchange, "BadRequestException", "Bad Request");
@@ -487,7 +704,7 @@ public class StorageServer {
         }
         
         try {
-            String data = fileRead(String.format("%s/%s", this.rootPath, request.path), request.offset, request.length);
+            String data = fileRead(request.path, request.offset, request.length);
             sendJsonResponse(exchange, 200, new DataReturn(data));
         } catch (Exception e) {
             e.printStackTrace();
@@ -495,62 +712,169 @@ public class StorageServer {
         }
     }
 
-    private SizeReturn sizeCallToStorageServer(String url, String path) {
-        PathRequest pathRequest = new PathRequest(path);
-        System.out.println("Making a size call to storage server for copy" + url);
+    // Raw endpoints carry the path, offset and length in these headers instead of
+    // a JSON body so the file bytes can move without Base64 or Gson copies.
+    public static final String PATH_HEADER = "X-DFS-Path";
+    public static final String OFFSET_HEADER = "X-DFS-Offset";
+    public static final String LENGTH_HEADER = "X-DFS-Length";
 
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(pathRequest)))
-                .build();
+    private String requireHeader(HttpExchange exchange, String name) {
+        String value = exchange.getRequestHeaders().getFirst(name);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing header " + name);
+        }
+        return value.trim();
+    }
+
+    // Checks a data-path request against the index: the path, relative to the
+    // storage root, must name a file at least offset bytes long
+    private FileIndex.Entry indexedFile(String path, long offset) throws IOException {
+        String key = registryPath(Util.sanitizePath(path));
+        if ("/".equals(key)) {
+            throw new IllegalArgumentException("Root path is not allowed");
+        }
+        if (offset < 0) {
+            throw new IndexOutOfBoundsException("Offset cannot be < 0");
+        }
+
+        FileIndex.Entry entry = this.index.lookup(key);
+        if (entry == null) {
+            if (this.index.isDirectory(key)) {
+                throw new IllegalArgumentException("Path is a directory");
+            }
+            throw new FileNotFoundException("File not found on storage server");
+        }
+        if (entry.size < offset) {
+            throw new IndexOutOfBoundsException("Offset is greater than the file size");
+        }
+        return entry;
+    }
 
+    // /storage_read_raw endpoint streams a byte range straight from the file
+    // channel into the response body
+    public void storageReadRawHandler(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            sendErrorResponse(exchange, "MethodNotAllowedException", "Method not allowed");
+            return;
+        }
+
+        String path;
+        long offset;
+        long length;
+        try (InputStream body = exchange.getRequestBody()) {
+            body.readAllBytes();
+            path = Util.sanitizePath(requireHeader(exchange, PATH_HEADER));
+            offset = Long.parseLong(requireHeader(exchange, OFFSET_HEADER));
+            length = Long.parseLong(requireHeader(exchange, LENGTH_HEADER));
+        } catch (Exception e) {
+            sendErrorResponse(exchange, "BadRequestException", "Bad Request");
+            return;
+        }
+
+        FileIndex.Handle handle;
         try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-            if (response.statusCode() == 200) {
-                return gson.fromJson(response.body(), SizeReturn.class);
-            } else {
-                System.err.println("Error from naming server: " + response.statusCode());
-                return new SizeReturn(0);
+            if (length < 0) {
+                throw new IndexOutOfBoundsException("Length cannot be < 0");
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return new SizeReturn(0);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            Thread.currentThread().interrupt();
-            return new SizeReturn(0);
+            if (offset + length > indexedFile(path, offset).size) {
+                throw new IndexOutOfBoundsException("Range exceeds the file size");
+            }
+            handle = openHandle(path);
+        } catch (Exception e) {
+            sendErrorResponse(exchange, e.getClass().getSimpleName(), e.getMessage());
+            return;
         }
 
+        try (FileIndex.Handle held = handle) {
+            FileChannel in = held.channel;
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, length == 0 ? -1 : length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                WritableByteChannel out = Channels.newChannel(os);
+                long sent = 0;
+                while (sent < length) {
+                    long n = in.transferTo(offset + sent, length - sent, out);
+                    if (n <= 0) {
+                        throw new IOException("Unexpected end of file while streaming " + path);
+                    }
+                    sent += n;
+                }
+            }
+        }
     }
 
-    private DataReturn readCallToStorageServer(String url, String path, long offset, long length) {
-        ReadRequest readRequest = new ReadRequest(path, offset, length);
-
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(readRequest)))
-                .build();
+    // /storage_write_raw endpoint streams the request body straight into the
+    // file channel at the given offset; the length is taken from the header
+    public void storageWriteRawHandler(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            sendErrorResponse(exchange, "MethodNotAllowedException", "Method not allowed");
+            return;
+        }
 
+        String path;
+        long offset;
+        long length;
         try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-            if (response.statusCode() == 200) {
-                return gson.fromJson(response.body(), DataReturn.class);
-            } else {
-                System.err.println("Error from naming server: " + response.statusCode());
-                return new DataReturn("");
+            path = Util.sanitizePath(requireHeader(exchange, PATH_HEADER));
+            offset = Long.parseLong(requireHeader(exchange, OFFSET_HEADER));
+            length = Long.parseLong(requireHeader(exchange, LENGTH_HEADER));
+            if (length < 0) {
+                throw new IllegalArgumentException("Length cannot be < 0");
             }
-        } catch (IOException e) {
+        } catch (Exception e) {
+            exchange.getRequestBody().close();
+            sendErrorResponse(exchange, "BadRequestException", "Bad Request");
+            return;
+        }
+
+        try (InputStream body = exchange.getRequestBody()) {
+            FileIndex.Entry entry = indexedFile(path, offset);
+            try (FileIndex.Handle handle = openHandle(path)) {
+                ReadableByteChannel in = Channels.newChannel(body);
+                long received = 0;
+                try {
+                    while (received < length) {
+                        long n = handle.channel.transferFrom(in, offset + received, length - received);
+                        if (n <= 0) {
+                            throw new IOException("Request body shorter than " + LENGTH_HEADER);
+                        }
+                        received += n;
+                    }
+                } finally {
+                    this.usedBytes.addAndGet(entry.written(offset + received));
+                }
+            }
+        } catch (Exception e) {
             e.printStackTrace();
-            return new DataReturn("");
+            sendErrorResponse(exchange, e.getClass().getSimpleName(), e.getMessage());
+            return;
+        }
+
+        sendJsonResponse(exchange, 200, new BooleanReturn(true));
+    }
+
+    // Size and modification time of the source's copy. A source that does not
+    // have the file reports FileNotFoundException; any other failure is an
+    // IOException, so an empty file is never mistaken for a missing one.
+    private SizeReturn sizeCallToStorageServer(String url, String path) throws IOException {
+        PathRequest pathRequest = new PathRequest(path);
+        System.out.println("Making a size call to storage server for copy" + url);
+
+        HttpResponse<byte[]> response;
+        try {
+            response = RpcClient.send(RpcClient.post(url, pathRequest), HttpResponse.BodyHandlers.ofByteArray());
         } catch (InterruptedException e) {
-            e.printStackTrace();
             Thread.currentThread().interrupt();
-            return new DataReturn("");
+            throw new IOException("Interrupted while sizing " + path, e);
         }
+        if (response.statusCode() == 200) {
+            return RpcClient.decode(response, SizeReturn.class);
+        }
+        ExceptionReturn error = RpcClient.decode(response, ExceptionReturn.class);
+        if (error != null && "FileNotFoundException".equals(error.exception_type)) {
+            throw new FileNotFoundException("Remote path " + path + " does not exist");
+        }
+        throw new IOException("Error from storage server: " + response.statusCode());
     }
 
     // Handle file copy between storage servers
@@ -561,9 +885,8 @@ public class StorageServer {
         }
 
         CopyRequest copyRequest = null;
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            String requestBody = reader.lines().collect(Collectors.joining("\n"));
-            copyRequest = gson.fromJson(requestBody, CopyRequest.class);
+        try {
+            copyRequest = readRequest(exchange, CopyRequest.class);
         } catch (Exception e) {
             e.printStackTrace();
             sendErrorResponse(exchange, "BadRequestException", "Bad Request");
@@ -586,65 +909,201 @@ public class StorageServer {
         }
     }
 
-    // Same method as delete call, create call and write call
-    private BooleanReturn createCallToStorageServer(String url, String path) {
-        PathRequest pathRequest = new PathRequest(path);
+    // Replica copies are pulled in fixed-size chunks with a bounded number of
+    // requests in flight. Chunks are written to a part file in the staging
+    // directory, and the contiguous prefix forced to disk is recorded next to it,
+    // with the source's size and modification time, so an interrupted copy of
+    // an unchanged source resumes from there instead of starting over.
+    public static final int COPY_CHUNK_SIZE = 4 * 1024 * 1024;
+    public static final int COPY_MAX_IN_FLIGHT = 4;
+    public static final int COPY_MAX_ATTEMPTS = 3;
+    // Wait before the second attempt, doubled before each one after it
+    public static final long COPY_RETRY_DELAY_MILLIS = 200;
+    // Copies in progress by path; a copy of a path that is already being
+    // copied waits for it, since both would write the same part file
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> copies = new ConcurrentHashMap<>();
+
+    // Name the staged copy of a path goes by: a hash, so every path gets a
+    // flat name of the same length however deep or long it is
+    private static String stagingName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private long readCopyProgress(Path progressFile, Path partFile, SizeReturn source) {
+        try {
+            if (!Files.exists(progressFile) || !Files.exists(partFile)) {
+                return 0;
+            }
+            String[] fields = Files.readString(progressFile).trim().split(" ");
+            if (fields.length != 3) {
+                return 0;
+            }
+            long recordedSize = Long.parseLong(fields[0]);
+            long recordedModified = Long.parseLong(fields[1]);
+            long committed = Long.parseLong(fields[2]);
+            if (recordedSize != source.size || source.modified == 0 || recordedModified != source.modified
+                    || committed > Files.size(partFile) || committed < 0) {
+                return 0;
+            }
+            return committed;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private void writeCopyProgress(Path progressFile, SizeReturn source, long committed) throws IOException {
+        Path tmp = progressFile.resolveSibling(progressFile.getFileName() + ".tmp");
+        Files.writeString(tmp, source.size + " " + source.modified + " " + committed);
+        Files.move(tmp, progressFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
 
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(pathRequest)))
+    private CompletableFuture<byte[]> fetchChunk(String url, String path, long offset, long length) {
+        HttpRequest request = RpcClient.request(url)
+                .header(PATH_HEADER, path)
+                .header(OFFSET_HEADER, Long.toString(offset))
+                .header(LENGTH_HEADER, Long.toString(length))
+                .POST(HttpRequest.BodyPublishers.noBody())
                 .build();
 
+        return RpcClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).thenApply(response -> {
+            if (response.statusCode() != 200) {
+                throw new CompletionException(new IOException("Error from storage server: " + response.statusCode()));
+            }
+            if (response.body().length != length) {
+                throw new CompletionException(new IOException("Short chunk at offset " + offset));
+            }
+            return response.body();
+        });
+    }
+
+    // Copies [committed, size) into the part file, returning the new committed
+    // offset. Stops at the first failed chunk so the caller can retry from there.
+    private long copyChunks(String readUrl, String remotePath, FileChannel out,
+            Path progressFile, SizeReturn source, long committed) throws IOException {
+        ArrayDeque<CompletableFuture<byte[]>> window = new ArrayDeque<>();
+        long size = source.size;
+        long next = committed;
+
         try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-            if (response.statusCode() == 200) {
-                return gson.fromJson(response.body(), BooleanReturn.class);
-            } else {
-                System.err.println("Error from naming server: " + response.statusCode());
-                return new BooleanReturn(false);
+            while (committed < size) {
+                while (window.size() < COPY_MAX_IN_FLIGHT && next < size) {
+                    long length = Math.min(COPY_CHUNK_SIZE, size - next);
+                    window.add(fetchChunk(readUrl, remotePath, next, length));
+                    next += length;
+                }
+
+                byte[] chunk = window.poll().join();
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                long position = committed;
+                while (buffer.hasRemaining()) {
+                    position += out.write(buffer, position);
+                }
+                out.force(false);
+                committed = position;
+                writeCopyProgress(progressFile, source, committed);
+            }
+        } catch (CompletionException e) {
+            System.err.println("Copy of " + remotePath + " interrupted at offset " + committed + ": " + e.getCause());
+        } finally {
+            for (CompletableFuture<byte[]> pending : window) {
+                pending.cancel(true);
             }
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
-            return new BooleanReturn(false);
         }
+        return committed;
     }
 
-    public boolean copyFile(String remotePath, String source, int port) {
+    // Waits before another copy attempt, so a source that failed a chunk gets
+    // a moment to recover instead of being asked again straight away
+    private static void backOff(String remotePath, long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while retrying the copy of " + remotePath, e);
+        }
+    }
+
+    public boolean copyFile(String remotePath, String source, int port) throws IOException {
         if (remotePath.isEmpty()) {
             throw new IllegalArgumentException("Remote path is empty");
         }
+        remotePath = Util.sanitizePath(remotePath);
+        String key = registryPath(remotePath);
 
+        CompletableFuture<Void> mine = new CompletableFuture<>();
+        CompletableFuture<Void> running;
+        while ((running = this.copies.putIfAbsent(key, mine)) != null) {
+            running.handle((v, failure) -> null).join();
+        }
+        try {
+            return copyFileExclusively(remotePath, key, source, port);
+        } finally {
+            this.copies.remove(key, mine);
+            mine.complete(null);
+        }
+    }
+
+    private boolean copyFileExclusively(String remotePath, String key, String source, int port) throws IOException {
         String sizeUrl = String.format("http://%s:%d/storage_size", source, port);
 
         SizeReturn sizeReturn = sizeCallToStorageServer(sizeUrl, remotePath);
-        if (sizeReturn.size == 0) {
-            throw new IllegalArgumentException("Remote path does not exist");
+        long size = sizeReturn.size;
+
+        Path target = Paths.get(Util.sanitizePath(String.format("%s/%s", this.rootPath, remotePath)));
+        String staged = stagingName(key);
+        Path partFile = this.stagingDir.resolve(staged + ".part");
+        Path progressFile = this.stagingDir.resolve(staged + ".progress");
+        Files.createDirectories(this.stagingDir);
+
+        long committed = readCopyProgress(progressFile, partFile, sizeReturn);
+        if (committed > 0) {
+            System.out.println("Resuming copy of " + remotePath + " at offset " + committed);
         }
 
-        String readUrl = String.format("http://%s:%d/storage_read", source, port);
-        DataReturn dataReturn = readCallToStorageServer(readUrl, remotePath, 0L, sizeReturn.size);
-        if (dataReturn.data.isEmpty()) {
-            throw new IllegalArgumentException("Remote path does not exist");
+        String readUrl = String.format("http://%s:%d/storage_read_raw", source, port);
+
+        try (FileChannel out = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            out.truncate(committed);
+            long delay = COPY_RETRY_DELAY_MILLIS;
+            for (int attempt = 0; attempt < COPY_MAX_ATTEMPTS && committed < size; attempt++) {
+                if (attempt > 0) {
+                    backOff(remotePath, delay);
+                    delay *= 2;
+                }
+                committed = copyChunks(readUrl, remotePath, out, progressFile, sizeReturn, committed);
+            }
         }
 
-        sizeUrl = String.format("http://%s:%d/storage_size", "localhost", this.commandPort);
-        sizeReturn = sizeCallToStorageServer(sizeUrl, remotePath);
-        if (sizeReturn.size == 0) {
-            String createUrl = String.format("http://%s:%d/storage_create", "localhost", this.commandPort);
-            createCallToStorageServer(createUrl, remotePath);
-        } else {
-            String deleteUrl = String.format("http://%s:%d/storage_delete", "localhost", this.commandPort);
-            createCallToStorageServer(deleteUrl, remotePath);
+        if (committed < size) {
+            throw new IOException("Copy of " + remotePath + " incomplete after " + COPY_MAX_ATTEMPTS
+                    + " attempts, " + committed + " of " + size + " bytes are resumable");
+        }
 
-            String createUrl = String.format("http://%s:%d/storage_create", "localhost", this.commandPort);
-            createCallToStorageServer(createUrl, remotePath);
+        // A source rewritten while it was being copied leaves a mix of old and
+        // new bytes, which is not kept
+        SizeReturn after = sizeCallToStorageServer(sizeUrl, remotePath);
+        if (after.size != size || after.modified != sizeReturn.modified) {
+            Files.deleteIfExists(partFile);
+            Files.deleteIfExists(progressFile);
+            throw new IOException("Source of " + remotePath + " changed while it was being copied");
         }
 
-        String writeUrl = String.format("http://%s:%d/storage_write", "localhost", this.commandPort);
-        BooleanReturn writeReturn = createCallToStorageServer(writeUrl, remotePath);
-        return writeReturn.success;
+        FileIndex.Entry previous = this.index.lookup(key);
+        Files.createDirectories(target.getParent());
+        Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.index.replaced(key, size);
+        if (previous == null) {
+            this.fileCount.incrementAndGet();
+            this.changes.record(key, true);
+        }
+        this.usedBytes.addAndGet(size - (previous == null ? 0 : previous.size));
+        Files.deleteIfExists(progressFile);
+        return true;
     }
 
     public static void main(String[] args) {
@@ -670,9 +1129,8 @@ public class StorageServer {
             server.commandPort = commandPort;
             server.naminServerPort = registrationPort;
             server.rootPath = storagePath;
-
-            // List files in the storage directory
-            server.files = server.listFilesRelativePaths(storagePath);
+            server.openIndex();
+            Runtime.getRuntime().addShutdownHook(new Thread(server::saveIndex));
 
             // Create HTTP server for client requests
             HttpServer clientServer = HttpServer.create(new InetSocketAddress(clientPort), 0);
@@ -686,6 +1144,23 @@ public class StorageServer {
                 server.clientHandler(exchange);
             });
 
+            // Storage interface used by clients and peer storage servers
+            clientServer.createContext("/storage_size", exchange -> {
+                server.storageSizeHandler(exchange);
+            });
+            clientServer.createContext("/storage_read", exchange -> {
+                server.tracked(server.readsInFlight, exchange, server::storageReadHandler);
+            });
+            clientServer.createContext("/storage_write", exchange -> {
+                server.tracked(server.writesInFlight, exchange, server::storageWriteHandler);
+            });
+            clientServer.createContext("/storage_read_raw", exchange -> {
+                server.tracked(server.readsInFlight, exchange, server::storageReadRawHandler);
+            });
+            clientServer.createContext("/storage_write_raw", exchange -> {
+                server.tracked(server.writesInFlight, exchange, server::storageWriteRawHandler);
+            });
+
             // Set up handlers for command server
             commandServer.createContext("/command-endpoint", exchange -> {
                 // Handle command requests
@@ -700,10 +1175,16 @@ public class StorageServer {
                 server.storageSizeHandler(exchange);
             });
             commandServer.createContext("/storage_read", exchange -> {
-                server.storageReadHandler(exchange);
+                server.tracked(server.readsInFlight, exchange, server::storageReadHandler);
             });
             commandServer.createContext("/storage_write", exchange -> {
-                server.storageWriteHandler(exchange);
+                server.tracked(server.writesInFlight, exchange, server::storageWriteHandler);
+            });
+            commandServer.createContext("/storage_read_raw", exchange -> {
+                server.tracked(server.readsInFlight, exchange, server::storageReadRawHandler);
+            });
+            commandServer.createContext("/storage_write_raw", exchange -> {
+                server.tracked(server.writesInFlight, exchange, server::storageWriteRawHandler);
             });
             commandServer.createContext("/storage_delete", exchange -> {
                 server.storageDeleteHandler(exchange);
@@ -712,15 +1193,20 @@ public class StorageServer {
                 server.storageCopyHandler(exchange);
             });
 
-            // Start servers with thread pools
-            clientServer.setExecutor(Executors.newFixedThreadPool(10));
-            commandServer.setExecutor(Executors.newFixedThreadPool(10));
+            // Start servers with thread pools (see ServerExecutors for -Dstorage.executor)
+            clientServer.setExecutor(ServerExecutors.fromProperties("storage", 10));
+            commandServer.setExecutor(ServerExecutors.fromProperties("storage", 10));
             
             clientServer.start();
             commandServer.start();
 
-            // Register with the naming server
+            // Register with the naming server, then report load every
+            // -Dstorage.heartbeatMillis (0 disables heartbeats)
             server.registerStorageServer();
+            long heartbeatMillis = Long.getLong("storage.heartbeatMillis", 5000);
+            if (heartbeatMillis > 0) {
+                server.startHeartbeats(heartbeatMillis);
+            }
 
             System.out.println("Storage server started successfully");
             System.out.println("Client server listening on port: " + clientPort);
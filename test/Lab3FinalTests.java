@@ -24,6 +24,13 @@ public class Lab3FinalTests {
            test.naming.TestFinal_Naming_Queue.class,
            test.naming.TestFinal_Naming_Replication.class,
             test.naming.TestFinal_Naming_Deletion.class,
+            test.naming.TestFinal_Naming_BatchReplay.class,
+            test.naming.TestFinal_Naming_LogOrder.class,
+            test.naming.TestFinal_Naming_LeaseExpiry.class,
+            test.naming.TestFinal_Naming_ListPaging.class,
+            test.naming.TestFinal_Naming_NoHolder.class,
+            test.storage.TestFinal_Storage_ChangeLog.class,
+            test.common.TestFinal_Common_BinaryCodec.class,
 //            test.storage.TestCheckpoint_Storage_Registration.class,
 //            test.storage.TestCheckpoint_Storage_Access.class,
 //            test.storage.TestCheckpoint_Storage_Directory.class,
@@ -41,6 +48,13 @@ public class Lab3FinalTests {
    points.put("test.naming.TestFinal_Naming_Queue", 25);
        points.put("test.naming.TestFinal_Naming_Replication", 25);
         points.put("test.naming.TestFinal_Naming_Deletion", 25);
+        points.put("test.naming.TestFinal_Naming_BatchReplay", 10);
+        points.put("test.naming.TestFinal_Naming_LogOrder", 10);
+        points.put("test.naming.TestFinal_Naming_LeaseExpiry", 10);
+        points.put("test.naming.TestFinal_Naming_ListPaging", 10);
+        points.put("test.naming.TestFinal_Naming_NoHolder", 5);
+        points.put("test.storage.TestFinal_Storage_ChangeLog", 5);
+        points.put("test.common.TestFinal_Common_BinaryCodec", 5);
 //        points.put("test.storage.TestCheckpoint_Storage_Registration", 10);
 //        points.put("test.storage.TestCheckpoint_Storage_Access", 20);
 //        points.put("test.storage.TestCheckpoint_Storage_Directory", 20);
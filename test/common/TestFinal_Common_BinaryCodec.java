@@ -0,0 +1,150 @@
+package test.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.gson.Gson;
+import common.BooleanReturn;
+import common.CopyRequest;
+import common.ErrorRegistrationResponse;
+import common.ExceptionReturn;
+import common.HeartbeatRequest;
+import common.PathRequest;
+import common.RegisterPageRequest;
+import common.RegisterRequest;
+import common.SizeReturn;
+import common.SuccessfulRegistrationResponse;
+import test.util.Test;
+import test.util.TestFailed;
+import util.BinaryCodec;
+
+/** Tests that messages survive a round trip through the binary encoding.
+
+    <p>
+    Every message type with a binary encoding is encoded and decoded again,
+    once with its fields filled in and once with its strings and lists left
+    <code>null</code>, and must come back with the same JSON form. Empty
+    strings and lists must not come back as <code>null</code>, nor the other
+    way round. A truncated message, and a message decoded as the wrong type,
+    must be rejected.
+ */
+public class TestFinal_Common_BinaryCodec extends Test {
+    /** Test notice. */
+    public static final String notice =
+        "checking binary encoding round trips, including null strings";
+
+    /** Converts messages to JSON for comparison. Fields left
+        <code>null</code> are omitted, so they differ from empty ones. */
+    private final Gson gson = new Gson();
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed {
+        roundTrip(new PathRequest("/directory/file"));
+        roundTrip(new PathRequest(""));
+        roundTrip(new PathRequest(null));
+
+        roundTrip(new CopyRequest("/file", "127.0.0.1", 7001));
+        roundTrip(new CopyRequest(null, null, 0));
+
+        SizeReturn size = new SizeReturn(-2);
+        size.modified = Long.MAX_VALUE;
+        roundTrip(size);
+        roundTrip(new SizeReturn(1L << 40));
+
+        roundTrip(new BooleanReturn(true));
+        roundTrip(new BooleanReturn(false));
+
+        roundTrip(new ExceptionReturn("FileNotFoundException", "no such file: \u00e9\u4e2d\ud83d\ude00"));
+        roundTrip(new ExceptionReturn("IllegalStateException", null));
+        roundTrip(new ExceptionReturn(null, null));
+        roundTrip(new ErrorRegistrationResponse("IllegalStateException", null));
+
+        HeartbeatRequest heartbeat = new HeartbeatRequest("127.0.0.1", 7003, 7001);
+        heartbeat.free_bytes = -1;
+        heartbeat.file_count = 1L << 33;
+        heartbeat.used_bytes = Long.MIN_VALUE;
+        heartbeat.reads_in_flight = Integer.MAX_VALUE;
+        heartbeat.writes_in_flight = Integer.MIN_VALUE;
+        heartbeat.latency_p50_ms = 0.25;
+        heartbeat.latency_p99_ms = -1;
+        roundTrip(heartbeat);
+        roundTrip(new HeartbeatRequest(null, 0, 0));
+
+        RegisterRequest register = new RegisterRequest("127.0.0.1", 7003, 7001,
+            Arrays.asList("/a", "", "/b/\u00e9", null));
+        register.more = true;
+        register.prefix_compressed = true;
+        register.generation = 42;
+        register.since = 17;
+        register.removed = new ArrayList<>();
+        roundTrip(register);
+        roundTrip(new RegisterRequest(null, 7003, 7001, null));
+        roundTrip(new RegisterRequest("127.0.0.1", 7003, 7001, List.of()));
+
+        roundTrip(new RegisterPageRequest("session", List.of("0:/a", "2:b"),
+                                          List.of("0:/c"), true, true));
+        roundTrip(new RegisterPageRequest(null, null, null, false, false));
+
+        SuccessfulRegistrationResponse response =
+            new SuccessfulRegistrationResponse(new String[] {"/a", null, ""});
+        response.session = "session";
+        response.full_required = true;
+        response.synced_generation = 9;
+        roundTrip(response);
+        roundTrip(new SuccessfulRegistrationResponse(null));
+        roundTrip(new SuccessfulRegistrationResponse(new String[0]));
+
+        checkRejected();
+    }
+
+    /** Encodes a message, decodes it again and compares the two.
+
+        @param message The message.
+        @throws TestFailed If the decoded message differs from the original, or
+                           cannot be decoded.
+     */
+    private void roundTrip(Object message) throws TestFailed {
+        String expected = gson.toJson(message);
+        Object decoded;
+        try {
+            decoded = BinaryCodec.decode(BinaryCodec.encode(message),
+                                         message.getClass());
+        } catch(IOException e) {
+            throw new TestFailed("unable to decode " + expected, e);
+        }
+
+        String actual = gson.toJson(decoded);
+        if(!actual.equals(expected)) {
+            throw new TestFailed(message.getClass().getSimpleName() +
+                                 " changed in a round trip: sent " + expected +
+                                 ", received " + actual);
+        }
+    }
+
+    /** Checks that damaged and mistyped messages are rejected.
+
+        @throws TestFailed If such a message is decoded.
+     */
+    private void checkRejected() throws TestFailed {
+        byte[] bytes = BinaryCodec.encode(new PathRequest("/directory/file"));
+
+        try {
+            BinaryCodec.decode(Arrays.copyOf(bytes, bytes.length - 1),
+                               PathRequest.class);
+            throw new TestFailed("truncated message decoded");
+        } catch(IOException e) {
+        }
+
+        try {
+            BinaryCodec.decode(bytes, ExceptionReturn.class);
+            throw new TestFailed("message decoded as the wrong type");
+        } catch(IOException e) {
+        }
+    }
+}
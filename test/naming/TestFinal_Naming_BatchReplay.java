@@ -0,0 +1,201 @@
+package test.naming;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.gson.Gson;
+import common.BatchOperation;
+import common.BatchRequest;
+import common.BatchResult;
+import common.BatchReturn;
+import common.ExceptionReturn;
+import common.PathRequest;
+import test.common.DFSException;
+import test.storage.TemporaryDirectory;
+import test.util.Test;
+import test.util.TestFailed;
+
+/** Tests that a batch deleting a directory between two creates under it is
+    recovered from the namespace log as it was applied.
+
+    <p>
+    This test starts the Java naming server with a namespace log directory and
+    sends one batch that creates <code>/q/r/a</code>, deletes <code>/q</code>
+    and then creates <code>/q/r/b</code>. The last create must fail, since its
+    parent went away with <code>/q</code>. The naming server is then restarted
+    on the same log, and <code>/q</code> must still be gone after the replay.
+ */
+public class TestFinal_Naming_BatchReplay extends Test {
+    /** Test notice. */
+    public static final String notice =
+        "checking naming server batch deletion and log replay";
+
+    /** Port the naming server is started on. */
+    private static final int port = 8180;
+
+    /** Naming server under test. */
+    private Process server = null;
+    /** Directory holding the naming server's namespace log. */
+    private TemporaryDirectory directory = null;
+
+    private final Gson gson = new Gson();
+
+    /** Creates the namespace log directory and starts the naming server.
+
+        @throws TestFailed If the directory cannot be created or the naming
+                           server cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed {
+        try {
+            directory = new TemporaryDirectory("/tmp/dist-systems-namespace");
+        } catch(Throwable t) {
+            throw new TestFailed("unable to create namespace log directory", t);
+        }
+
+        start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed {
+        List<BatchOperation> operations = Arrays.asList(
+            new BatchOperation("create_directory", "/q", false),
+            new BatchOperation("create_directory", "/q/r", false),
+            new BatchOperation("create_directory", "/q/r/a", false),
+            new BatchOperation("delete", "/q", false),
+            new BatchOperation("create_directory", "/q/r/b", false));
+
+        BatchReturn batch;
+        try {
+            HttpResponse<String> response = getResponse("/batch", new BatchRequest(operations));
+            batch = gson.fromJson(response.body(), BatchReturn.class);
+            if(batch == null || batch.results == null) {
+                throw new Throwable(response.body());
+            }
+        } catch(Throwable t) {
+            throw new TestFailed("unable to apply batch", t);
+        }
+
+        if(batch.results.size() != operations.size()) {
+            throw new TestFailed("batch returned " + batch.results.size() +
+                                 " results for " + operations.size() + " operations");
+        }
+        for(int i = 0; i < 4; i++) {
+            if(!batch.results.get(i).success) {
+                throw new TestFailed("batch operation " + operations.get(i) + " failed");
+            }
+        }
+
+        BatchResult last = batch.results.get(4);
+        if(last.success) {
+            throw new TestFailed("batch created /q/r/b after /q was deleted");
+        }
+        if(DFSException.valueOf(last.exception_type) != DFSException.FileNotFoundException) {
+            throw new TestFailed("batch create of /q/r/b failed with " + last.exception_type +
+                                 " instead of FileNotFoundException");
+        }
+
+        checkDeleted("before restart");
+
+        stop();
+        start();
+
+        checkDeleted("after replay");
+    }
+
+    /** Checks that <code>/q</code> does not exist.
+
+        @param when Description of the point in the test, for the failure.
+        @throws TestFailed If <code>/q</code> exists or cannot be checked.
+     */
+    private void checkDeleted(String when) throws TestFailed {
+        String exception_type;
+        try {
+            HttpResponse<String> response = getResponse("/is_directory", new PathRequest("/q"));
+            exception_type = gson.fromJson(response.body(), ExceptionReturn.class).exception_type;
+        } catch(Throwable t) {
+            throw new TestFailed("unable to check /q " + when, t);
+        }
+
+        if(exception_type == null) {
+            throw new TestFailed("/q exists " + when);
+        }
+        if(DFSException.valueOf(exception_type) != DFSException.FileNotFoundException) {
+            throw new TestFailed("checking /q " + when + " failed with " + exception_type);
+        }
+    }
+
+    private HttpResponse<String> getResponse(String method, Object requestObj)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder().uri(URI.create("http://localhost:" + port + method))
+                .setHeader("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(requestObj)))
+                .build();
+
+        return HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /** Starts the naming server on the namespace log directory and waits
+        until it accepts connections.
+
+        @throws TestFailed If the naming server cannot be started.
+     */
+    private void start() throws TestFailed {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        try {
+            ProcessBuilder b = new ProcessBuilder(java,
+                "-cp", System.getProperty("java.class.path"),
+                "-Dnaming.dataDir=" + new File(directory.root(), "namespace"),
+                "naming.NameServer", Integer.toString(port));
+            b.inheritIO();
+            server = b.start();
+        } catch(Throwable t) {
+            throw new TestFailed("unable to start naming server");
+        }
+
+        // Attempt to make the connection.
+        while(true) {
+            try(Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                break;
+            } catch(IOException e) {
+                // Ignore the exception to give server some time to start up
+            }
+        }
+    }
+
+    /** Stops the naming server and waits for it to exit. */
+    private void stop() {
+        if(server != null) {
+            server.destroy();
+
+            try {
+                server.waitFor();
+            } catch(InterruptedException e) { }
+            server = null;
+        }
+    }
+
+    /** Stops the naming server and removes the namespace log directory. */
+    @Override
+    protected void clean() {
+        stop();
+
+        if(directory != null) {
+            directory.remove();
+            directory = null;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package test.naming;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import common.ExceptionReturn;
+import common.Path;
+import naming.LeaseManager;
+import naming.Replicator;
+import naming.TreeNode;
+import test.util.Test;
+import test.util.TestFailed;
+
+/** Tests that a lock whose lease is not renewed is released when the lease
+    expires.
+
+    <p>
+    This test locks a file exclusively through an in-process namespace tree
+    and records the lock as a lease with a short lease period. A second
+    exclusive request on the file must wait while the first lease is renewed,
+    and must be granted once renewals stop and the lease expires. Renewing the
+    expired lease must then fail.
+ */
+public class TestFinal_Naming_LeaseExpiry extends Test {
+    /** Test notice. */
+    public static final String notice =
+        "checking that an expired lock lease releases its lock";
+
+    /** Lease period used by the test, in milliseconds. */
+    private static final long LEASE_MILLIS = 200;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed {
+        TreeNode root = new TreeNode("", true, -1);
+        Path path = Path.of("/a/file");
+        root.addFile(path, false, 7003);
+
+        LeaseManager leases = new LeaseManager(LEASE_MILLIS, Replicator.NONE);
+        leases.start();
+
+        LeaseManager.Lease lease;
+        CompletableFuture<TreeNode[]> waiting;
+        try {
+            lease = leases.grant(path, true, root.lock(path, true, Replicator.NONE));
+            waiting = root.lockAsync(path, true, Replicator.NONE, Runnable::run);
+        } catch(ExceptionReturn e) {
+            throw new TestFailed("unable to lock " + path, e);
+        }
+
+        // Held for three lease periods while it is renewed
+        for(int i = 0; i < 6; i++) {
+            sleep(LEASE_MILLIS / 2);
+            try {
+                leases.renew(lease.id);
+            } catch(ExceptionReturn e) {
+                throw new TestFailed("lease expired while it was being renewed", e);
+            }
+            if(waiting.isDone()) {
+                throw new TestFailed("second exclusive lock granted while the first " +
+                                     "lease was being renewed");
+            }
+        }
+
+        TreeNode[] chain;
+        try {
+            chain = waiting.get(LEASE_MILLIS * 10, TimeUnit.MILLISECONDS);
+        } catch(Throwable t) {
+            throw new TestFailed("second exclusive lock not granted after the first " +
+                                 "lease expired", t);
+        }
+
+        try {
+            leases.renew(lease.id);
+            throw new TestFailed("expired lease was renewed");
+        } catch(ExceptionReturn e) {
+        }
+
+        TreeNode.unlock(chain, true);
+    }
+
+    /** Waits for the given time.
+
+        @param millis Time to wait, in milliseconds.
+        @throws TestFailed If interrupted while waiting.
+     */
+    private void sleep(long millis) throws TestFailed {
+        try {
+            Thread.sleep(millis);
+        } catch(InterruptedException e) {
+            throw new TestFailed("interrupted while waiting", e);
+        }
+    }
+}
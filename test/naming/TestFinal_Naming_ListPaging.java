@@ -0,0 +1,264 @@
+package test.naming;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.google.gson.Gson;
+import common.BatchOperation;
+import common.BatchRequest;
+import common.BatchReturn;
+import common.FilesReturn;
+import common.ListRequest;
+import test.util.Test;
+import test.util.TestFailed;
+
+/** Tests that paging through a directory with <code>/list</code> neither
+    repeats nor skips names while entries are being added to it.
+
+    <p>
+    This test starts the Java naming server and creates a directory holding a
+    few entries spread over the range of names the test uses. One thread then
+    creates the rest of the range in random order while the test pages through
+    the directory a few names at a time, following the continuation token.
+    The directory starts small enough that it changes representation while
+    being paged. Every pass must return names in strictly increasing order and
+    include every entry that existed throughout; a last pass once all creates
+    are done must return the whole range.
+ */
+public class TestFinal_Naming_ListPaging extends Test {
+    /** Test notice. */
+    public static final String notice =
+        "checking /list paging across concurrent inserts";
+
+    /** Port the naming server is started on. */
+    private static final int port = 8181;
+    /** Number of names in the directory once every create is done. */
+    private static final int NAMES = 1500;
+    /** Every how many names one is created before paging starts. */
+    private static final int SPACING = 60;
+    /** Names asked for in each page. */
+    private static final int PAGE = 7;
+    /** Creates sent in each batch by the inserting thread. */
+    private static final int BATCH = 20;
+
+    /** Naming server under test. */
+    private Process server = null;
+
+    private final Gson gson = new Gson();
+
+    /** Starts the naming server.
+
+        @throws TestFailed If the naming server cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        try {
+            ProcessBuilder b = new ProcessBuilder(java,
+                "-cp", System.getProperty("java.class.path"),
+                "naming.NameServer", Integer.toString(port));
+            b.inheritIO();
+            server = b.start();
+        } catch(Throwable t) {
+            throw new TestFailed("unable to start naming server");
+        }
+
+        // Attempt to make the connection.
+        while(true) {
+            try(Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                break;
+            } catch(IOException e) {
+                // Ignore the exception to give server some time to start up
+            }
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed {
+        Set<String> initial = new HashSet<>();
+        List<String> inserted = new ArrayList<>();
+        for(int i = 0; i < NAMES; i++) {
+            (i % SPACING == 0 ? initial : inserted).add(name(i));
+        }
+        Collections.shuffle(inserted, new Random(23));
+
+        List<String> directory = new ArrayList<>(List.of("/d"));
+        directory.addAll(initial);
+        create(directory);
+
+        List<Throwable> failures = new ArrayList<>();
+        Thread inserter = new Thread(() -> {
+            try {
+                for(int i = 0; i < inserted.size(); i += BATCH) {
+                    create(inserted.subList(i, Math.min(i + BATCH, inserted.size())));
+                }
+            } catch(Throwable t) {
+                synchronized(failures) {
+                    failures.add(t);
+                }
+            }
+        });
+        inserter.start();
+
+        do {
+            check(page(), initial, "while names were being added");
+        } while(inserter.isAlive());
+
+        try {
+            inserter.join();
+        } catch(InterruptedException e) {
+            throw new TestFailed("interrupted waiting for creates", e);
+        }
+        if(!failures.isEmpty()) {
+            throw new TestFailed("unable to create directory entries", failures.get(0));
+        }
+
+        List<String> all = page();
+        check(all, initial, "after every name was added");
+        if(all.size() != NAMES) {
+            throw new TestFailed("paging returned " + all.size() + " names once all " +
+                                 NAMES + " were created");
+        }
+    }
+
+    /** Name of the i-th entry of the test directory.
+
+        @param i Index of the entry.
+        @return The entry's name; names sort in index order.
+     */
+    private static String name(int i) {
+        return String.format("n%05d", i);
+    }
+
+    /** Creates directories in one batch.
+
+        @param names Paths of the directories, or names of entries of the test
+                     directory.
+        @throws TestFailed If any of them cannot be created.
+     */
+    private void create(List<String> names) throws TestFailed {
+        List<BatchOperation> operations = new ArrayList<>();
+        for(String name : names) {
+            operations.add(new BatchOperation("create_directory",
+                name.startsWith("/") ? name : "/d/" + name, false));
+        }
+
+        BatchReturn batch;
+        try {
+            HttpResponse<String> response = getResponse("/batch", new BatchRequest(operations));
+            batch = gson.fromJson(response.body(), BatchReturn.class);
+        } catch(Throwable t) {
+            throw new TestFailed("unable to apply batch", t);
+        }
+        if(batch == null || batch.results == null || batch.results.size() != operations.size()) {
+            throw new TestFailed("batch of " + operations.size() + " creates returned no " +
+                                 "result for each");
+        }
+        for(int i = 0; i < operations.size(); i++) {
+            if(!batch.results.get(i).success) {
+                throw new TestFailed("batch operation " + operations.get(i) + " failed");
+            }
+        }
+    }
+
+    /** Lists the test directory a page at a time, following the continuation
+        token from each page to the next.
+
+        @return The names from every page, in the order they were returned.
+        @throws TestFailed If a page cannot be listed.
+     */
+    private List<String> page() throws TestFailed {
+        List<String> names = new ArrayList<>();
+        String after = null;
+        do {
+            FilesReturn files;
+            try {
+                HttpResponse<String> response = getResponse("/list", new ListRequest("/d", PAGE, after));
+                files = gson.fromJson(response.body(), FilesReturn.class);
+            } catch(Throwable t) {
+                throw new TestFailed("unable to list /d after " + after, t);
+            }
+            if(files == null || files.files == null) {
+                throw new TestFailed("listing /d after " + after + " returned no names");
+            }
+            if(files.files.size() > PAGE) {
+                throw new TestFailed("page of " + PAGE + " names returned " +
+                                     files.files.size());
+            }
+            if(files.next != null && files.files.isEmpty()) {
+                throw new TestFailed("empty page returned a continuation token");
+            }
+            names.addAll(files.files);
+            after = files.next;
+        } while(after != null);
+        return names;
+    }
+
+    /** Checks the names returned by paging through the test directory.
+
+        @param names The names, in the order they were returned.
+        @param initial Names that existed throughout.
+        @param when Description of the pass, for the failure.
+        @throws TestFailed If a name was repeated, returned out of order or
+                           unknown, or one that existed throughout is missing.
+     */
+    private void check(List<String> names, Set<String> initial, String when)
+        throws TestFailed
+    {
+        for(int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            if(i > 0 && names.get(i - 1).compareTo(name) >= 0) {
+                throw new TestFailed("paging " + when + " returned " + name +
+                                     " after " + names.get(i - 1));
+            }
+            if(!name.matches("n\\d{5}") || Integer.parseInt(name.substring(1)) >= NAMES) {
+                throw new TestFailed("paging " + when + " returned unknown name " + name);
+            }
+        }
+
+        Set<String> missing = new HashSet<>(initial);
+        missing.removeAll(names);
+        if(!missing.isEmpty()) {
+            throw new TestFailed("paging " + when + " skipped " + missing);
+        }
+    }
+
+    private HttpResponse<String> getResponse(String method, Object requestObj)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder().uri(URI.create("http://localhost:" + port + method))
+                .setHeader("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(requestObj)))
+                .build();
+
+        return HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /** Stops the naming server. */
+    @Override
+    protected void clean() {
+        if(server != null) {
+            server.destroy();
+
+            try {
+                server.waitFor();
+            } catch(InterruptedException e) { }
+            server = null;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package test.naming;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import common.ExceptionReturn;
+import common.Path;
+import naming.NamespaceLog;
+import naming.TreeNode;
+import test.storage.TemporaryDirectory;
+import test.util.Test;
+import test.util.TestFailed;
+
+/** Tests that concurrent creates and deletes of the same paths are recorded
+    in the namespace log in the order they were applied to the tree.
+
+    <p>
+    This test races creates against deletes of the same files in an
+    in-process namespace tree that journals every change. In one directory a
+    thread creates each file while another deletes it as soon as it appears;
+    in a second directory a thread deletes each existing file while another
+    creates it again as soon as it is gone. A second tree is then recovered
+    from the log, and every file must exist in it exactly when it exists in
+    the original tree.
+ */
+public class TestFinal_Naming_LogOrder extends Test {
+    /** Test notice. */
+    public static final String notice =
+        "checking namespace log ordering of concurrent creates and deletes";
+
+    /** Number of files raced on in each directory. */
+    private static final int FILES = 2000;
+
+    /** Directory holding the namespace log. */
+    private TemporaryDirectory directory = null;
+    /** Namespace tree changed by the test threads. */
+    private TreeNode root;
+    /** Log the tree's changes are journaled to. */
+    private NamespaceLog journal;
+    /** Storage servers holding deleted files; always empty. */
+    private final Map<Integer, Integer> portMap = new HashMap<>();
+
+    /** Creates the namespace log directory.
+
+        @throws TestFailed If the directory cannot be created.
+     */
+    @Override
+    protected void initialize() throws TestFailed {
+        try {
+            directory = new TemporaryDirectory("/tmp/dist-systems-log-order");
+        } catch(Throwable t) {
+            throw new TestFailed("unable to create namespace log directory", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed {
+        File logDir = new File(directory.root(), "namespace");
+        journal = new NamespaceLog(logDir);
+        root = new TreeNode("", true, -1);
+        try {
+            journal.recover(root, portMap);
+        } catch(Throwable t) {
+            throw new TestFailed("unable to open namespace log", t);
+        }
+        for(int i = 0; i < FILES; i++) {
+            root.addFile(Path.of("/recreated/f" + i), false, 7003, journal);
+        }
+        root.addFile(Path.of("/deleted"), true, 0, journal);
+
+        List<Throwable> failures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        threads.add(racer("/deleted", true, false, failures));
+        threads.add(racer("/deleted", false, true, failures));
+        threads.add(racer("/recreated", false, false, failures));
+        threads.add(racer("/recreated", true, true, failures));
+
+        for(Thread thread : threads) {
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            try {
+                thread.join();
+            } catch(InterruptedException e) {
+                throw new TestFailed("interrupted waiting for namespace changes", e);
+            }
+        }
+        if(!failures.isEmpty()) {
+            throw new TestFailed("unable to change the namespace", failures.get(0));
+        }
+
+        TreeNode recovered = new TreeNode("", true, -1);
+        try {
+            new NamespaceLog(logDir).recover(recovered, new HashMap<>());
+        } catch(Throwable t) {
+            throw new TestFailed("unable to recover namespace log", t);
+        }
+
+        check(recovered, "/deleted");
+        check(recovered, "/recreated");
+    }
+
+    /** Creates a thread that creates or deletes every file in a directory in
+        turn, journaling each change.
+
+        <p>
+        A thread that waits retries each file until its change succeeds, so it
+        changes the file right after the other thread in the same directory
+        does. Records are committed in order, so the thread's last journal
+        write covers every record appended before it.
+
+        @param dir Directory holding the files.
+        @param create Whether the thread creates or deletes the files.
+        @param wait Whether the thread retries each file until it succeeds.
+        @param failures List receiving any error the thread runs into.
+        @return The thread, not yet started.
+     */
+    private Thread racer(String dir, boolean create, boolean wait, List<Throwable> failures) {
+        return new Thread(() -> {
+            try {
+                CompletableFuture<Void> logged = CompletableFuture.completedFuture(null);
+                for(int i = 0; i < FILES; i++) {
+                    Path path = Path.of(dir + "/f" + i);
+                    CompletableFuture<Void> changed;
+                    do {
+                        changed = create ? root.addFile(path, false, 7003, journal) : delete(path);
+                    } while(changed == null && wait);
+                    if(changed != null) {
+                        logged = changed;
+                    }
+                }
+                logged.join();
+            } catch(Throwable t) {
+                synchronized(failures) {
+                    failures.add(t);
+                }
+            }
+        });
+    }
+
+    /** Deletes a file and journals the deletion.
+
+        @param path The file to delete.
+        @return The journal write, or <code>null</code> if the file did not
+                exist.
+     */
+    private CompletableFuture<Void> delete(Path path) {
+        try {
+            return root.deleteFile(path, portMap, journal);
+        } catch(ExceptionReturn e) {
+            return null;
+        }
+    }
+
+    /** Checks that every file in a directory exists in the recovered tree
+        exactly when it exists in the tree the test changed.
+
+        @param recovered Tree recovered from the namespace log.
+        @param dir Directory holding the files.
+        @throws TestFailed If a file differs between the two trees.
+     */
+    private void check(TreeNode recovered, String dir) throws TestFailed {
+        for(int i = 0; i < FILES; i++) {
+            Path path = Path.of(dir + "/f" + i);
+            boolean live = root.findNode(path) != null;
+            boolean replayed = recovered.findNode(path) != null;
+            if(live != replayed) {
+                throw new TestFailed(path + " " + (live ? "exists" : "does not exist") +
+                                     " in the namespace but " + (replayed ? "exists" : "does not exist") +
+                                     " after replaying the log");
+            }
+        }
+    }
+
+    /** Removes the namespace log directory. */
+    @Override
+    protected void clean() {
+        if(directory != null) {
+            directory.remove();
+            directory = null;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package test.naming;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpServer;
+import common.ExceptionReturn;
+import common.Path;
+import common.StorageRequest;
+import common.StorageReturn;
+import naming.ClusterView;
+import naming.NameServer;
+import naming.ReplicaSelector;
+import naming.TreeNode;
+import test.util.Test;
+import test.util.TestFailed;
+
+/** Tests that <code>/get_storage</code> reports a file whose only holder is
+    gone, whichever replica selector is configured.
+
+    <p>
+    This test serves <code>/get_storage</code> from an in-process naming server
+    holding one file on one storage server. The storage server is then dropped
+    from the file's holders. Asking for the file must then fail with
+    <code>IllegalStateException</code> rather than leave the request without
+    a response. Every replica selector must also order an empty list of
+    holders as an empty list.
+ */
+public class TestFinal_Naming_NoHolder extends Test {
+    /** Test notice. */
+    public static final String notice =
+        "checking /get_storage for a file with no holder left";
+
+    /** Port the naming server is started on. */
+    private static final int port = 8182;
+    /** Replica selectors that can be configured. */
+    private static final String[] SELECTORS =
+        {"first", "round-robin", "p2c", "least-latency"};
+
+    /** Naming server under test. */
+    private NameServer nameServer;
+    /** HTTP server serving <code>/get_storage</code>. */
+    private HttpServer server = null;
+
+    private final Gson gson = new Gson();
+
+    /** Starts the in-process naming server with one file on one storage
+        server.
+
+        @throws TestFailed If the HTTP server cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed {
+        nameServer = new NameServer();
+        nameServer.fileSystem = new TreeNode("", true, -1);
+        nameServer.fileSystem.addFile(Path.of("/f"), false, 7003);
+        nameServer.cluster = new ClusterView();
+        nameServer.cluster.add(7003, 7001);
+
+        try {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+        } catch(IOException e) {
+            throw new TestFailed("unable to start naming server", e);
+        }
+        server.createContext("/get_storage", nameServer::getStorage);
+        server.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed {
+        List<ReplicaSelector> selectors = new ArrayList<>();
+        String configured = System.getProperty("naming.replicaSelector");
+        try {
+            for(String name : SELECTORS) {
+                System.setProperty("naming.replicaSelector", name);
+                selectors.add(ReplicaSelector.fromProperties());
+            }
+        } finally {
+            if(configured == null) {
+                System.clearProperty("naming.replicaSelector");
+            } else {
+                System.setProperty("naming.replicaSelector", configured);
+            }
+        }
+
+        for(int i = 0; i < SELECTORS.length; i++) {
+            nameServer.selector = selectors.get(i);
+            StorageReturn storage = gson.fromJson(getStorage(SELECTORS[i]), StorageReturn.class);
+            if(storage.server_port != 7003) {
+                throw new TestFailed(SELECTORS[i] + " selector returned port " +
+                                     storage.server_port + " for /f, held on 7003");
+            }
+        }
+
+        TreeNode file = nameServer.fileSystem.findNode(Path.of("/f"));
+        file.removeSource(7003);
+
+        for(int i = 0; i < SELECTORS.length; i++) {
+            ReplicaSelector selector = selectors.get(i);
+            List<Integer> ordered;
+            try {
+                ordered = selector.order(new ArrayList<>(), nameServer.cluster, System.nanoTime());
+            } catch(Throwable t) {
+                throw new TestFailed(SELECTORS[i] + " selector failed to order no holders", t);
+            }
+            if(!ordered.isEmpty()) {
+                throw new TestFailed(SELECTORS[i] + " selector ordered no holders as " + ordered);
+            }
+
+            nameServer.selector = selector;
+            ExceptionReturn error = gson.fromJson(getStorage(SELECTORS[i]), ExceptionReturn.class);
+            if(!"IllegalStateException".equals(error.exception_type)) {
+                throw new TestFailed(SELECTORS[i] + " selector: /get_storage for /f with " +
+                                     "no holder returned " + error.exception_type +
+                                     " instead of IllegalStateException");
+            }
+        }
+    }
+
+    /** Asks the naming server which storage server holds <code>/f</code>.
+
+        @param selector Name of the configured selector, for the failure.
+        @return The response body.
+        @throws TestFailed If the request gets no response.
+     */
+    private String getStorage(String selector) throws TestFailed {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + port + "/get_storage"))
+                .setHeader("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(new StorageRequest("/f"))))
+                .build();
+        try {
+            return HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString()).body();
+        } catch(Throwable t) {
+            throw new TestFailed(selector + " selector: /get_storage for /f got no response", t);
+        }
+    }
+
+    /** Stops the HTTP server. */
+    @Override
+    protected void clean() {
+        if(server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+}
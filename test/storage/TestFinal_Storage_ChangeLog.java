@@ -0,0 +1,91 @@
+package test.storage;
+
+import java.util.List;
+
+import storage.ChangeLog;
+import test.util.Test;
+import test.util.TestFailed;
+
+/** Tests which diffs a storage server's change log can still produce once it
+    has started forgetting old changes.
+
+    <p>
+    This test records changes in a change log with room for three paths. Once
+    the oldest change has been evicted, a diff starting at the generation of
+    the evicted change must still be produced, since every later change is
+    remembered, and a diff starting before it must not. The same must hold
+    when the evicted change is not the oldest generation recorded, because a
+    path that changed again was moved to the end of the log.
+ */
+public class TestFinal_Storage_ChangeLog extends Test {
+    /** Test notice. */
+    public static final String notice =
+        "checking change log diffs at the eviction boundary";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed {
+        ChangeLog log = new ChangeLog(3);
+        log.record("/a", true);
+        log.record("/b", true);
+        log.record("/c", true);
+        if(log.since(0) == null) {
+            throw new TestFailed("diff from generation 0 missing before any " +
+                                 "change was evicted");
+        }
+
+        // Evicts the change to /a, generation 1
+        log.record("/d", true);
+        check(log.since(1), List.of("/b", "/c", "/d"), List.of(), 4);
+        if(log.since(0) != null) {
+            throw new TestFailed("diff from generation 0 produced after its " +
+                                 "change to /a was evicted");
+        }
+
+        // Moves /b to the end, then evicts the change to /c, generation 3
+        log.record("/b", false);
+        log.record("/e", true);
+        check(log.since(3), List.of("/d", "/e"), List.of("/b"), 6);
+        if(log.since(2) != null) {
+            throw new TestFailed("diff from generation 2 produced after its " +
+                                 "change to /c was evicted");
+        }
+
+        check(log.since(6), List.of(), List.of(), 6);
+        if(log.since(7) != null) {
+            throw new TestFailed("diff produced from a generation not yet " +
+                                 "reached");
+        }
+    }
+
+    /** Checks a diff produced by the change log.
+
+        @param diff The diff.
+        @param added Paths the diff is expected to report added.
+        @param removed Paths the diff is expected to report removed.
+        @param generation Generation the diff is expected to reach.
+        @throws TestFailed If the diff is missing or differs from the
+                           expected one.
+     */
+    private void check(ChangeLog.Diff diff, List<String> added,
+                       List<String> removed, long generation)
+        throws TestFailed
+    {
+        if(diff == null) {
+            throw new TestFailed("diff missing although every change it " +
+                                 "covers is remembered");
+        }
+        if(!diff.added.equals(added) || !diff.removed.equals(removed)) {
+            throw new TestFailed("diff reports " + diff.added + " added and " +
+                                 diff.removed + " removed, expected " + added +
+                                 " and " + removed);
+        }
+        if(diff.generation != generation) {
+            throw new TestFailed("diff reaches generation " + diff.generation +
+                                 ", expected " + generation);
+        }
+    }
+}
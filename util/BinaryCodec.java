@@ -0,0 +1,476 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import common.BooleanReturn;
+import common.CopyRequest;
+import common.ErrorRegistrationResponse;
+import common.ExceptionReturn;
+import common.HeartbeatRequest;
+import common.PathRequest;
+import common.RegisterPageRequest;
+import common.RegisterRequest;
+import common.SizeReturn;
+import common.SuccessfulRegistrationResponse;
+
+// Compact binary encoding of the messages servers send each other, used in
+// place of JSON when -Drpc.wire=binary. A request in this encoding carries
+// Content-Type CONTENT_TYPE and asks for the response in it with Accept;
+// servers answer in JSON to anyone who does not ask, so clients of the JSON
+// API documented in API/ are unaffected.
+//
+// A message is framed as a version byte, a type tag and the varint length of
+// the fields that follow. Fields are written in declaration order: integers
+// as zigzag varints, booleans as one byte, doubles as 8 bytes, and strings
+// and lists with a varint count plus one, so that 0 stands for null. Strings
+// are UTF-8.
+//
+// Messages are encoded into a buffer reused by each thread, so sending one
+// allocates nothing beyond the bytes handed to the HTTP layer.
+public class BinaryCodec {
+    public static final String CONTENT_TYPE = "application/x-dfs-binary";
+    public static final boolean ENABLED = "binary".equals(System.getProperty("rpc.wire", "json"));
+
+    private static final int VERSION = 1;
+    // Buffers grown beyond this by a large message are not kept for reuse; a
+    // default registration page of 10000 paths fits
+    private static final int RETAINED_BUFFER = 1 << 20;
+
+    private interface Codec<T> {
+        void write(Writer out, T message);
+
+        T read(Reader in) throws IOException;
+    }
+
+    private static final Map<Class<?>, Integer> TAGS = new HashMap<>();
+    private static final List<Codec<?>> CODECS = new ArrayList<>();
+
+    private static <T> void register(Class<T> type, Codec<T> codec) {
+        TAGS.put(type, CODECS.size());
+        CODECS.add(codec);
+    }
+
+    static {
+        register(PathRequest.class, new Codec<PathRequest>() {
+            public void write(Writer out, PathRequest m) {
+                out.string(m.path);
+            }
+
+            public PathRequest read(Reader in) throws IOException {
+                return new PathRequest(in.string());
+            }
+        });
+        register(CopyRequest.class, new Codec<CopyRequest>() {
+            public void write(Writer out, CopyRequest m) {
+                out.string(m.path);
+                out.string(m.server_ip);
+                out.varlong(m.server_port);
+            }
+
+            public CopyRequest read(Reader in) throws IOException {
+                return new CopyRequest(in.string(), in.string(), in.varint());
+            }
+        });
+        register(SizeReturn.class, new Codec<SizeReturn>() {
+            public void write(Writer out, SizeReturn m) {
+                out.varlong(m.size);
+                out.varlong(m.modified);
+            }
+
+            public SizeReturn read(Reader in) throws IOException {
+                SizeReturn m = new SizeReturn(in.varlong());
+                // absent in messages from servers that predate it
+                if (in.hasMore()) {
+                    m.modified = in.varlong();
+                }
+                return m;
+            }
+        });
+        register(BooleanReturn.class, new Codec<BooleanReturn>() {
+            public void write(Writer out, BooleanReturn m) {
+                out.bool(m.success);
+            }
+
+            public BooleanReturn read(Reader in) throws IOException {
+                return new BooleanReturn(in.bool());
+            }
+        });
+        register(ExceptionReturn.class, new Codec<ExceptionReturn>() {
+            public void write(Writer out, ExceptionReturn m) {
+                out.string(m.exception_type);
+                out.string(m.exception_info);
+            }
+
+            public ExceptionReturn read(Reader in) throws IOException {
+                return new ExceptionReturn(in.string(), in.string());
+            }
+        });
+        register(ErrorRegistrationResponse.class, new Codec<ErrorRegistrationResponse>() {
+            public void write(Writer out, ErrorRegistrationResponse m) {
+                out.string(m.exception_type);
+                out.string(m.exception_info);
+            }
+
+            public ErrorRegistrationResponse read(Reader in) throws IOException {
+                return new ErrorRegistrationResponse(in.string(), in.string());
+            }
+        });
+        register(HeartbeatRequest.class, new Codec<HeartbeatRequest>() {
+            public void write(Writer out, HeartbeatRequest m) {
+                out.string(m.storage_ip);
+                out.varlong(m.client_port);
+                out.varlong(m.command_port);
+                out.varlong(m.free_bytes);
+                out.varlong(m.file_count);
+                out.varlong(m.used_bytes);
+                out.varlong(m.reads_in_flight);
+                out.varlong(m.writes_in_flight);
+                out.float64(m.latency_p50_ms);
+                out.float64(m.latency_p99_ms);
+            }
+
+            public HeartbeatRequest read(Reader in) throws IOException {
+                HeartbeatRequest m = new HeartbeatRequest(in.string(), in.varint(), in.varint());
+                m.free_bytes = in.varlong();
+                m.file_count = in.varlong();
+                m.used_bytes = in.varlong();
+                m.reads_in_flight = in.varint();
+                m.writes_in_flight = in.varint();
+                m.latency_p50_ms = in.float64();
+                m.latency_p99_ms = in.float64();
+                return m;
+            }
+        });
+        register(RegisterRequest.class, new Codec<RegisterRequest>() {
+            public void write(Writer out, RegisterRequest m) {
+                out.string(m.storage_ip);
+                out.varlong(m.client_port);
+                out.varlong(m.command_port);
+                out.strings(m.files);
+                out.bool(m.more);
+                out.bool(m.prefix_compressed);
+                out.varlong(m.generation);
+                out.varlong(m.since);
+                out.strings(m.removed);
+            }
+
+            public RegisterRequest read(Reader in) throws IOException {
+                RegisterRequest m = new RegisterRequest(in.string(), in.varint(), in.varint(), in.strings());
+                m.more = in.bool();
+                m.prefix_compressed = in.bool();
+                m.generation = in.varlong();
+                m.since = in.varlong();
+                m.removed = in.strings();
+                return m;
+            }
+        });
+        register(RegisterPageRequest.class, new Codec<RegisterPageRequest>() {
+            public void write(Writer out, RegisterPageRequest m) {
+                out.string(m.session);
+                out.strings(m.files);
+                out.strings(m.removed);
+                out.bool(m.more);
+                out.bool(m.prefix_compressed);
+            }
+
+            public RegisterPageRequest read(Reader in) throws IOException {
+                return new RegisterPageRequest(in.string(), in.strings(), in.strings(), in.bool(), in.bool());
+            }
+        });
+        register(SuccessfulRegistrationResponse.class, new Codec<SuccessfulRegistrationResponse>() {
+            public void write(Writer out, SuccessfulRegistrationResponse m) {
+                out.strings(m.files == null ? null : Arrays.asList(m.files));
+                out.string(m.session);
+                out.bool(m.full_required);
+                out.varlong(m.synced_generation);
+            }
+
+            public SuccessfulRegistrationResponse read(Reader in) throws IOException {
+                List<String> files = in.strings();
+                SuccessfulRegistrationResponse m = new SuccessfulRegistrationResponse(
+                        files == null ? null : files.toArray(new String[0]));
+                m.session = in.string();
+                m.full_required = in.bool();
+                m.synced_generation = in.varlong();
+                return m;
+            }
+        });
+    }
+
+    public static class Writer {
+        private byte[] buffer = new byte[256];
+        private int position;
+        private int frameStart;
+
+        private void ensure(int bytes) {
+            if (this.position + bytes > this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer,
+                        Math.max(this.buffer.length * 2, this.position + bytes));
+            }
+        }
+
+        private void unsigned(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                this.buffer[this.position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            this.buffer[this.position++] = (byte) value;
+        }
+
+        public void varlong(long value) {
+            unsigned((value << 1) ^ (value >> 63));
+        }
+
+        public void bool(boolean value) {
+            ensure(1);
+            this.buffer[this.position++] = (byte) (value ? 1 : 0);
+        }
+
+        public void float64(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                this.buffer[this.position++] = (byte) (bits >>> shift);
+            }
+        }
+
+        public void string(String value) {
+            if (value == null) {
+                unsigned(0);
+                return;
+            }
+            int length = value.length();
+            // paths are almost always ASCII: copy the chars straight in
+            // instead of encoding into a temporary array
+            boolean ascii = true;
+            for (int i = 0; i < length && ascii; i++) {
+                ascii = value.charAt(i) < 0x80;
+            }
+            if (ascii) {
+                unsigned(length + 1L);
+                ensure(length);
+                for (int i = 0; i < length; i++) {
+                    this.buffer[this.position++] = (byte) value.charAt(i);
+                }
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            unsigned(bytes.length + 1L);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, this.buffer, this.position, bytes.length);
+            this.position += bytes.length;
+        }
+
+        public void strings(List<String> values) {
+            if (values == null) {
+                unsigned(0);
+                return;
+            }
+            unsigned(values.size() + 1L);
+            for (String value : values) {
+                string(value);
+            }
+        }
+    }
+
+    public static class Reader {
+        private final byte[] buffer;
+        private int position;
+        private final int limit;
+
+        Reader(byte[] buffer, int position, int limit) {
+            this.buffer = buffer;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        private byte next() throws IOException {
+            if (this.position >= this.limit) {
+                throw new IOException("Truncated binary message");
+            }
+            return this.buffer[this.position++];
+        }
+
+        private long unsigned() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = next();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in binary message");
+        }
+
+        private int count() throws IOException {
+            long count = unsigned();
+            if (count > this.limit - this.position + 1) {
+                throw new IOException("Length exceeds binary message");
+            }
+            return (int) count;
+        }
+
+        public boolean hasMore() {
+            return this.position < this.limit;
+        }
+
+        public long varlong() throws IOException {
+            long value = unsigned();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public int varint() throws IOException {
+            return (int) varlong();
+        }
+
+        public boolean bool() throws IOException {
+            return next() != 0;
+        }
+
+        public double float64() throws IOException {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | (next() & 0xFF);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        public String string() throws IOException {
+            int length = count() - 1;
+            if (length < 0) {
+                return null;
+            }
+            String value = new String(this.buffer, this.position, length, StandardCharsets.UTF_8);
+            this.position += length;
+            return value;
+        }
+
+        public List<String> strings() throws IOException {
+            int count = count() - 1;
+            if (count < 0) {
+                return null;
+            }
+            List<String> values = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                values.add(string());
+            }
+            return values;
+        }
+    }
+
+    private static final ThreadLocal<Writer> WRITERS = ThreadLocal.withInitial(Writer::new);
+    // Room left ahead of the fields for the version, tag and a varint length
+    private static final int HEADER_RESERVE = 7;
+
+    public static boolean supports(Class<?> type) {
+        return TAGS.containsKey(type);
+    }
+
+    // Encodes a message into the thread's buffer, which then holds the frame
+    // between frameStart and position
+    @SuppressWarnings("unchecked")
+    private static Writer frame(Object message) {
+        Integer tag = TAGS.get(message.getClass());
+        if (tag == null) {
+            throw new IllegalArgumentException("No binary encoding for " + message.getClass().getSimpleName());
+        }
+        Writer out = WRITERS.get();
+        out.position = HEADER_RESERVE;
+        ((Codec<Object>) CODECS.get(tag)).write(out, message);
+
+        int length = out.position - HEADER_RESERVE;
+        int lengthBytes = 1;
+        for (int rest = length >>> 7; rest != 0; rest >>>= 7) {
+            lengthBytes++;
+        }
+        int start = HEADER_RESERVE - 2 - lengthBytes;
+        int end = out.position;
+        out.position = start;
+        out.buffer[out.position++] = VERSION;
+        out.buffer[out.position++] = (byte) (int) tag;
+        out.unsigned(length);
+        out.frameStart = start;
+        out.position = end;
+        return out;
+    }
+
+    private static void release(Writer out) {
+        if (out.buffer.length > RETAINED_BUFFER) {
+            WRITERS.remove();
+        }
+    }
+
+    public static byte[] encode(Object message) {
+        Writer out = frame(message);
+        try {
+            return Arrays.copyOfRange(out.buffer, out.frameStart, out.position);
+        } finally {
+            release(out);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> T decode(byte[] bytes, Class<T> type) throws IOException {
+        Integer tag = TAGS.get(type);
+        if (tag == null) {
+            throw new IllegalArgumentException("No binary encoding for " + type.getSimpleName());
+        }
+        Reader in = new Reader(bytes, 0, bytes.length);
+        if (in.next() != VERSION) {
+            throw new IOException("Unsupported binary message version");
+        }
+        if (in.next() != (byte) (int) tag) {
+            throw new IOException("Expected a binary " + type.getSimpleName());
+        }
+        if (in.unsigned() != bytes.length - in.position) {
+            throw new IOException("Binary message length does not match its body");
+        }
+        T message = ((Codec<T>) CODECS.get(tag)).read(in);
+        if (in.position != bytes.length) {
+            throw new IOException("Trailing bytes after binary " + type.getSimpleName());
+        }
+        return message;
+    }
+
+    // Server side: whether the request body is binary, and whether the client
+    // asked for a binary response
+    public static boolean isBinary(HttpExchange exchange) {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        return contentType != null && contentType.startsWith(CONTENT_TYPE);
+    }
+
+    public static boolean acceptsBinary(HttpExchange exchange) {
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        return accept != null && accept.contains(CONTENT_TYPE);
+    }
+
+    // Sends a response in binary if the client asked for it and the message
+    // has a binary encoding; returns false, having sent nothing, otherwise
+    public static boolean sendIfAccepted(HttpExchange exchange, int statusCode, Object response) throws IOException {
+        if (!acceptsBinary(exchange) || !supports(response.getClass())) {
+            return false;
+        }
+        Writer out = frame(response);
+        try {
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(statusCode, out.position - out.frameStart);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(out.buffer, out.frameStart, out.position - out.frameStart);
+            }
+        } finally {
+            release(out);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,125 @@
+package util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+
+import common.ExceptionReturn;
+
+// Request parsing and response writing shared by the naming and storage
+// servers' handlers. Request bodies are parsed by a JsonReader straight off
+// the request stream rather than collected into a String first. Responses
+// are written by a JsonWriter into a pooled buffer, then sent from it with
+// their exact length, so a response is encoded once and not copied again.
+//
+// Bodies in BinaryCodec's encoding are read and written here as well.
+public abstract class JsonServer {
+    public final Gson gson = new Gson();
+
+    // Buffers are shared by all handler threads, virtual ones included;
+    // buffers grown beyond RETAINED_BUFFER by a large response are dropped
+    private static final int POOLED_BUFFERS = 32;
+    private static final int RETAINED_BUFFER = 1 << 20;
+    private static final ArrayBlockingQueue<ResponseBuffer> pool = new ArrayBlockingQueue<>(POOLED_BUFFERS);
+    private static final int STREAM_CHUNK = 8192;
+
+    // A growable byte array that its own UTF-8 writer encodes into. JsonWriter
+    // writes in small pieces, which the encoder would copy one by one, so they
+    // are gathered in a char buffer first.
+    static class ResponseBuffer extends OutputStream {
+        byte[] bytes = new byte[8192];
+        int count;
+        final Writer chars = new BufferedWriter(new OutputStreamWriter(this, StandardCharsets.UTF_8), 8192);
+
+        @Override
+        public void write(int b) {
+            ensure(1);
+            this.bytes[this.count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, this.bytes, this.count, len);
+            this.count += len;
+        }
+
+        private void ensure(int len) {
+            if (this.count + len > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.count + len));
+            }
+        }
+    }
+
+    static ResponseBuffer acquire() {
+        ResponseBuffer buffer = pool.poll();
+        if (buffer == null) {
+            buffer = new ResponseBuffer();
+        }
+        buffer.count = 0;
+        return buffer;
+    }
+
+    static void release(ResponseBuffer buffer) {
+        if (buffer.bytes.length <= RETAINED_BUFFER) {
+            pool.offer(buffer);
+        }
+    }
+
+    // Reads a request body, null if it is empty
+    protected <T> T readRequest(HttpExchange exchange, Class<T> type) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            if (BinaryCodec.isBinary(exchange)) {
+                return BinaryCodec.decode(body.readAllBytes(), type);
+            }
+            JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+            return this.gson.fromJson(reader, type);
+        }
+    }
+
+    protected void sendJsonResponse(HttpExchange exchange, int statusCode, Object response) throws IOException {
+        if (BinaryCodec.sendIfAccepted(exchange, statusCode, response)) {
+            return;
+        }
+        // A buffer is only pooled again after a response was fully written
+        // into it, so no partial output stays behind in its writer
+        ResponseBuffer buffer = acquire();
+        JsonWriter writer = this.gson.newJsonWriter(buffer.chars);
+        this.gson.toJson(response, response.getClass(), writer);
+        writer.flush();
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(statusCode, buffer.count);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(buffer.bytes, 0, buffer.count);
+        }
+        release(buffer);
+    }
+
+    // Starts a response of unknown length, sent with chunked transfer encoding
+    // as it is written; closing the writer ends it. Nothing is buffered beyond
+    // one chunk, so a large response neither waits to be built nor is held in
+    // memory.
+    protected JsonWriter startStreamingResponse(HttpExchange exchange, int statusCode) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(statusCode, 0);
+        return this.gson.newJsonWriter(new BufferedWriter(
+                new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), STREAM_CHUNK));
+    }
+
+    protected void sendErrorResponse(HttpExchange exchange, String errorType, String errorMessage) throws IOException {
+        sendJsonResponse(exchange, 400, new ExceptionReturn(errorType, errorMessage));
+    }
+}
@@ -0,0 +1,36 @@
+package util;
+
+import java.util.Arrays;
+
+// Keeps the most recent request latencies in a fixed ring so percentiles can be
+// reported periodically without unbounded memory.
+public class LatencyWindow {
+    private final long[] samples;
+    private long count = 0;
+
+    public LatencyWindow(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    public synchronized void record(long nanos) {
+        this.samples[(int) (this.count++ % this.samples.length)] = nanos;
+    }
+
+    // Returns the given percentiles in milliseconds over the samples recorded
+    // since the last call, or -1 for each if there were none, and starts over.
+    public double[] drainPercentiles(double... percentiles) {
+        long[] window;
+        synchronized (this) {
+            window = Arrays.copyOf(this.samples, (int) Math.min(this.count, this.samples.length));
+            this.count = 0;
+        }
+
+        double[] result = new double[percentiles.length];
+        Arrays.sort(window);
+        for (int i = 0; i < percentiles.length; i++) {
+            result[i] = window.length == 0 ? -1
+                    : window[Math.min(window.length - 1, (int) (window.length * percentiles[i]))] / 1e6;
+        }
+        return result;
+    }
+}
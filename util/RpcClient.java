@@ -0,0 +1,192 @@
+package util;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.gson.Gson;
+
+// Shared client for all server-to-server calls. One HttpClient keeps its
+// connections alive and reuses them across calls, instead of every call
+// building a new client with its own selector thread and socket.
+//
+// Calls to the same host:port are limited to -Drpc.maxPerDestination in
+// flight (default 16); further calls queue without blocking the caller's
+// thread. Every request times out after -Drpc.timeoutMillis (default 30000),
+// unless the caller passes its own timeout. Cancelling the returned future
+// aborts the call and frees its place.
+public class RpcClient {
+    public static final int MAX_PER_DESTINATION = Integer.getInteger("rpc.maxPerDestination", 16);
+    public static final Duration TIMEOUT = Duration.ofMillis(Long.getLong("rpc.timeoutMillis", 30000));
+    public static final Duration CONNECT_TIMEOUT = Duration.ofMillis(Long.getLong("rpc.connectTimeoutMillis", 5000));
+
+    private static final Gson gson = new Gson();
+    private static final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
+    private static final Map<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+    // Admits up to MAX_PER_DESTINATION calls and queues the rest in FIFO order
+    private static class Limiter {
+        private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+        private int available = MAX_PER_DESTINATION;
+
+        void submit(Runnable call) {
+            synchronized (this) {
+                if (available == 0) {
+                    waiting.add(call);
+                    return;
+                }
+                available--;
+            }
+            call.run();
+        }
+
+        void release() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    available++;
+                    return;
+                }
+            }
+            next.run();
+        }
+    }
+
+    public static HttpRequest.Builder request(String url) {
+        return request(url, TIMEOUT);
+    }
+
+    // A null timeout lets the call run as long as the server takes, for calls
+    // such as /storage_copy that only answer once a whole file has been moved
+    public static HttpRequest.Builder request(String url, Duration timeout) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder().uri(URI.create(url));
+        return timeout == null ? builder : builder.timeout(timeout);
+    }
+
+    public static HttpRequest postJson(String url, Object body) {
+        return postJson(url, body, TIMEOUT);
+    }
+
+    public static HttpRequest postJson(String url, Object body, Duration timeout) {
+        String json = body instanceof String ? (String) body : gson.toJson(body);
+        return request(url, timeout)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build();
+    }
+
+    // A server-to-server call: in BinaryCodec's encoding with -Drpc.wire=binary,
+    // for the message types it covers, and JSON otherwise
+    public static HttpRequest post(String url, Object body) {
+        return post(url, body, TIMEOUT);
+    }
+
+    public static HttpRequest post(String url, Object body, Duration timeout) {
+        if (!BinaryCodec.ENABLED || !BinaryCodec.supports(body.getClass())) {
+            return postJson(url, body, timeout);
+        }
+        return request(url, timeout)
+                .header("Content-Type", BinaryCodec.CONTENT_TYPE)
+                .header("Accept", BinaryCodec.CONTENT_TYPE)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(BinaryCodec.encode(body)))
+                .build();
+    }
+
+    // Decodes a response to post() in whichever encoding the server chose
+    public static <T> T decode(HttpResponse<byte[]> response, Class<T> type) throws IOException {
+        String contentType = response.headers().firstValue("Content-Type").orElse("");
+        if (contentType.startsWith(BinaryCodec.CONTENT_TYPE)) {
+            return BinaryCodec.decode(response.body(), type);
+        }
+        return gson.fromJson(new String(response.body(), StandardCharsets.UTF_8), type);
+    }
+
+    public static <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+                                                                   HttpResponse.BodyHandler<T> handler) {
+        URI uri = request.uri();
+        Limiter limiter = limiters.computeIfAbsent(uri.getHost() + ":" + uri.getPort(), k -> new Limiter());
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        // The permit is freed once, by whichever comes first: the call ending
+        // or the caller cancelling it
+        AtomicBoolean admitted = new AtomicBoolean(true);
+        Runnable release = () -> {
+            if (admitted.compareAndSet(true, false)) {
+                limiter.release();
+            }
+        };
+        limiter.submit(() -> {
+            // cancelled while it was queued
+            if (result.isDone()) {
+                release.run();
+                return;
+            }
+            CompletableFuture<HttpResponse<T>> call = client.sendAsync(request, handler);
+            // A caller that gives up on the call, e.g. a fan-out that timed out,
+            // aborts the exchange instead of leaving it to hold the permit
+            result.whenComplete((response, failure) -> {
+                if (result.isCancelled()) {
+                    call.cancel(true);
+                    release.run();
+                }
+            });
+            call.whenComplete((response, failure) -> {
+                release.run();
+                if (failure instanceof CompletionException && failure.getCause() != null) {
+                    result.completeExceptionally(failure.getCause());
+                } else if (failure != null) {
+                    result.completeExceptionally(failure);
+                } else {
+                    result.complete(response);
+                }
+            });
+        });
+        return result;
+    }
+
+    public static <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        CompletableFuture<HttpResponse<T>> response = sendAsync(request, handler);
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            response.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    public static CompletableFuture<HttpResponse<String>> postJsonAsync(String url, Object body) {
+        return sendAsync(postJson(url, body), HttpResponse.BodyHandlers.ofString());
+    }
+
+    public static CompletableFuture<HttpResponse<byte[]>> postAsync(String url, Object body) {
+        return postAsync(url, body, TIMEOUT);
+    }
+
+    public static CompletableFuture<HttpResponse<byte[]>> postAsync(String url, Object body, Duration timeout) {
+        return sendAsync(post(url, body, timeout), HttpResponse.BodyHandlers.ofByteArray());
+    }
+}
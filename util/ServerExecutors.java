@@ -0,0 +1,52 @@
+package util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Builds the executors the HTTP servers run their handlers on. The mode is
+// chosen at startup with -D<prefix>.executor and -D<prefix>.threads, e.g.
+// -Dnaming.executor=virtual or -Dstorage.executor=fixed -Dstorage.threads=32.
+//
+//   fixed         fixed pool of <threads> platform threads (the default)
+//   cached        unbounded pool of platform threads, reused when idle
+//   workstealing  ForkJoin work-stealing pool with <threads> parallelism
+//   virtual       one virtual thread per request (Java 21+)
+public class ServerExecutors {
+    public static final String[] MODES = {"fixed", "cached", "workstealing", "virtual"};
+
+    public static ExecutorService fromProperties(String prefix, int defaultThreads) {
+        String mode = System.getProperty(prefix + ".executor", "fixed");
+        int threads = Integer.getInteger(prefix + ".threads", defaultThreads);
+        System.out.println("Using " + mode + " executor for " + prefix + " server");
+        return create(mode, threads);
+    }
+
+    public static ExecutorService create(String mode, int threads) {
+        switch (mode) {
+            case "fixed":
+                return Executors.newFixedThreadPool(threads);
+            case "cached":
+                return Executors.newCachedThreadPool();
+            case "workstealing":
+                return Executors.newWorkStealingPool(threads);
+            case "virtual":
+                return newVirtualThreadPerTaskExecutor();
+            default:
+                throw new IllegalArgumentException("unknown executor mode " + mode
+                        + ", expected one of fixed, cached, workstealing, virtual");
+        }
+    }
+
+    // Looked up reflectively so the servers still build and run on JDKs without
+    // virtual threads; there the mode falls back to a cached pool.
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads are not available on this JDK, using a cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -1,91 +1,74 @@
 package util;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import com.google.gson.Gson;
 
-import common.CopyRequest;
 import common.PathRequest;
-import naming.TreeNode;
 
 public class Util {
     public static final Gson gson = new Gson();
-    public static void handleReplication(TreeNode current, List<Integer> storageNodes, String path, List<Integer> client_ports,
-            Map<Integer, Integer> port_map) {
-        Integer sourceNode = current.sourcePorts.get(0);
-        Map<Integer, Boolean> sourceMap = new HashMap<>();
-        for (Integer node : current.sourcePorts) {
-            sourceMap.put(node, true);
-        }
-
-        for (Integer node : client_ports) {
-            if (!sourceMap.containsKey(node)) {
-                Integer port = port_map.get(node);
-                callStorageServerToReplicate(String.format("http://127.0.0.1:%d/storage_copy", port), path, sourceNode);
-                current.sourcePorts.add(node);
-                break;
+    public static final long FANOUT_TIMEOUT_MILLIS = Long.getLong("naming.fanoutTimeoutMillis", 10000);
+
+    // Maps client ports, as recorded in sourcePorts, to the command ports the
+    // storage servers accept /storage_* calls on. Unknown ports are skipped.
+    public static Set<Integer> commandPorts(Collection<Integer> clientPorts, Map<Integer, Integer> port_map) {
+        Set<Integer> ports = new LinkedHashSet<>();
+        for (Integer clientPort : clientPorts) {
+            Integer port = port_map.get(clientPort);
+            if (port != null) {
+                ports.add(port);
             }
         }
-
+        return ports;
     }
 
-    public static void callStorageServerToReplicate(String format, String path, Integer sourceNode) {
-        CopyRequest requestObj = new CopyRequest(path, "127.0.0.1", sourceNode);
-        String requestBody = gson.toJson(requestObj);
-
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(format))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                .build();
-
-        try {
-            client.send(request, HttpResponse.BodyHandlers.discarding());
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    // Sends the same request to every given storage server at once. The future
+    // completes when all have answered or FANOUT_TIMEOUT_MILLIS has passed;
+    // failures are logged, not propagated.
+    public static CompletableFuture<Void> fanOut(String endpoint, Collection<Integer> commandPorts, Object body) {
+        if (commandPorts.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
         }
-
-    }
-
-    public static void handleReplicaDeletion(TreeNode current, String path, Map<Integer, Integer> port_map) {
-        List<Integer> node_list = current.sourcePorts;
-        if (node_list.size() == 1) {
-            return;
+        CompletableFuture<?>[] sent = new CompletableFuture<?>[commandPorts.size()];
+        CompletableFuture<?>[] calls = new CompletableFuture<?>[commandPorts.size()];
+        int i = 0;
+        for (Integer port : commandPorts) {
+            String url = String.format("http://127.0.0.1:%d/%s", port, endpoint);
+            CompletableFuture<HttpResponse<byte[]>> call = RpcClient.postAsync(url, body);
+            sent[i] = call;
+            calls[i++] = call.handle((response, failure) -> {
+                if (failure != null) {
+                    System.err.println("Call to " + url + " failed: " + failure);
+                } else if (response.statusCode() != 200) {
+                    System.err.println("Call to " + url + " returned " + response.statusCode());
+                }
+                return null;
+            });
         }
-
-        current.sourcePorts = List.of(node_list.get(0));
-        System.out.println("Deleting copies on:");
-        for (int i = 1; i < node_list.size(); i++) {
-            System.out.println(node_list.get(i));
-            callStorageServer(String.format("http://127.0.0.1:%d/storage_delete", port_map.get(node_list.get(i))),
-                    path);
-            System.out.println("Deleted");
-        }
-
+        // calls still running when the fan-out times out are cancelled
+        return CompletableFuture.allOf(calls).completeOnTimeout(null, FANOUT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .whenComplete((v, failure) -> {
+                    for (CompletableFuture<?> call : sent) {
+                        call.cancel(true);
+                    }
+                });
     }
 
     public static void callStorageServer(String url, String path) {
         PathRequest requestPath = new PathRequest(path);
-        String requestBody = gson.toJson(requestPath);
-
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                .build();
 
         try {
-            client.send(request, HttpResponse.BodyHandlers.discarding());
+            RpcClient.send(RpcClient.postJson(url, requestPath), HttpResponse.BodyHandlers.discarding());
         } catch (IOException e) {
             e.printStackTrace();
         } catch (InterruptedException e) {
@@ -102,5 +85,52 @@ public class Util {
         return cleanPath;
     }
 
+    // Orders path strings the way a walk of the namespace visits them: name by
+    // name, with a directory before everything inside it. The same order as
+    // Path.compareTo without parsing the strings.
+    public static final Comparator<String> NAMESPACE_ORDER = (a, b) -> {
+        int limit = Math.min(a.length(), b.length());
+        for (int i = 0; i < limit; i++) {
+            char x = a.charAt(i);
+            char y = b.charAt(i);
+            if (x != y) {
+                return x == '/' ? -1 : y == '/' ? 1 : Character.compare(x, y);
+            }
+        }
+        return Integer.compare(a.length(), b.length());
+    };
+
+    // Front-codes a sorted list of paths: each entry becomes "<n>:<suffix>",
+    // where n is the number of leading characters it shares with the previous
+    // entry. Paths under the same directory then cost little more than their
+    // names.
+    public static List<String> compressPrefixes(List<String> sorted) {
+        List<String> encoded = new ArrayList<>(sorted.size());
+        String previous = "";
+        for (String path : sorted) {
+            int shared = 0;
+            int limit = Math.min(previous.length(), path.length());
+            while (shared < limit && previous.charAt(shared) == path.charAt(shared)) {
+                shared++;
+            }
+            encoded.add(shared + ":" + path.substring(shared));
+            previous = path;
+        }
+        return encoded;
+    }
 
+    public static List<String> expandPrefixes(List<String> encoded) {
+        List<String> paths = new ArrayList<>(encoded.size());
+        String previous = "";
+        for (String entry : encoded) {
+            int colon = entry.indexOf(':');
+            int shared = Integer.parseInt(entry.substring(0, colon));
+            if (shared > previous.length()) {
+                throw new IllegalArgumentException("bad prefix length in " + entry);
+            }
+            previous = previous.substring(0, shared) + entry.substring(colon + 1);
+            paths.add(previous);
+        }
+        return paths;
+    }
 }